@@ -0,0 +1,79 @@
+package consumption.benchmarks;
+
+import consumption.impl.ConsumerEntity;
+import consumption.impl.ConsumerState;
+import consumption.impl.DailyConsumption;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the state updates and lookups of the {@link ConsumerEntity}, for states holding from one day to ten
+ * years of consumption.
+ * <p>
+ * Each invocation uses the next of a fixed set of timestamps spread over the state's days, so that the figures aren't
+ * for a single day that stays in cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumerEntityBenchmark
+{
+  private static final LocalDate FIRST_DATE = LocalDate.of(2018, 1, 1);
+  private static final int TIMESTAMP_COUNT = 1024;
+
+  @Param({"1", "31", "365", "3650"})
+  public int days;
+
+  private ConsumerState state;
+  private LocalDateTime[] timestamps;
+  private int next;
+
+  @Setup
+  public void setup()
+  {
+    int firstEpochDay = (int)FIRST_DATE.toEpochDay();
+    DailyConsumption[] dailyConsumptions = new DailyConsumption[days];
+    for (int day = 0; day < days; day++) {
+      int[] ptuValues = new int[DailyConsumption.PTUS_PER_DAY];
+      for (int ptu = 0; ptu < ptuValues.length; ptu++) {
+        ptuValues[ptu] = 100 + day + ptu;
+      }
+      dailyConsumptions[day] = new DailyConsumption(firstEpochDay + day, ptuValues);
+    }
+    state = new ConsumerState(dailyConsumptions);
+    timestamps = new LocalDateTime[TIMESTAMP_COUNT];
+    for (int i = 0; i < TIMESTAMP_COUNT; i++) {
+      timestamps[i] = FIRST_DATE.plusDays((i * 7919L) % days).atTime((i * 31) % 24, (i * 17) % 60);
+    }
+  }
+
+  private LocalDateTime nextTimestamp()
+  {
+    next = (next + 1) & (TIMESTAMP_COUNT - 1);
+    return timestamps[next];
+  }
+
+  @Benchmark
+  public ConsumerState getUpdatedState()
+  {
+    return ConsumerEntity.getUpdatedState(state, nextTimestamp(), 123);
+  }
+
+  @Benchmark
+  public int getPTUValue()
+  {
+    return ConsumerEntity.getPTUValue(state, nextTimestamp());
+  }
+
+  @Benchmark
+  public int getPTUValueIndex()
+  {
+    return ConsumerEntity.getPTUValueIndex(nextTimestamp());
+  }
+}
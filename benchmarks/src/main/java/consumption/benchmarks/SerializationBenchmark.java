@@ -0,0 +1,101 @@
+package consumption.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.datatype.pcollections.PCollectionsModule;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import consumption.impl.*;
+import org.openjdk.jmh.annotations.*;
+import org.pcollections.TreePVector;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the round trips of the {@link ConsumerState} snapshots and the {@link ConsumerEvent}s, both through
+ * Jackson, as Lagom's JSON serializer does, and through the binary serializers bound to them.
+ * <p>
+ * The object mapper has the modules Lagom registers that these classes need. Lagom's serializer also compresses
+ * {@link com.lightbend.lagom.serialization.CompressedJsonable} payloads, which isn't measured here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark
+{
+  private static final LocalDate FIRST_DATE = LocalDate.of(2018, 1, 1);
+
+  @Param({"1", "62", "365"})
+  public int days;
+
+  private final ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule())
+                                                        .registerModule(new Jdk8Module())
+                                                        .registerModule(new PCollectionsModule());
+  private final ConsumerStateSerializer stateSerializer = new ConsumerStateSerializer();
+  private final ConsumptionRecordedSerializer eventSerializer = new ConsumptionRecordedSerializer();
+
+  private ConsumerState state;
+  private ConsumerEvent.ConsumptionRecorded consumptionRecorded;
+  private ConsumerEvent.DaysArchived daysArchived;
+
+  @Setup
+  public void setup()
+  {
+    int firstEpochDay = (int)FIRST_DATE.toEpochDay();
+    DailyConsumption[] dailyConsumptions = new DailyConsumption[days];
+    for (int day = 0; day < days; day++) {
+      int[] ptuValues = new int[DailyConsumption.PTUS_PER_DAY];
+      for (int ptu = 0; ptu < ptuValues.length; ptu++) {
+        ptuValues[ptu] = 100 + day + ptu;
+      }
+      dailyConsumptions[day] = new DailyConsumption(firstEpochDay + day, ptuValues);
+    }
+    state = new ConsumerState(dailyConsumptions);
+    consumptionRecorded =
+      new ConsumerEvent.ConsumptionRecorded("ABC123",
+                                            LocalDateTime.of(2018, 4, 1, 13, 45).toEpochSecond(ZoneOffset.UTC),
+                                            123);
+    daysArchived = new ConsumerEvent.DaysArchived("ABC123",
+                                                  1,
+                                                  firstEpochDay + days,
+                                                  TreePVector.from(Arrays.asList(dailyConsumptions)));
+  }
+
+  @Benchmark
+  public ConsumerState stateJson() throws IOException
+  {
+    return mapper.readValue(mapper.writeValueAsBytes(state), ConsumerState.class);
+  }
+
+  @Benchmark
+  public Object stateBinary() throws IOException
+  {
+    return stateSerializer.fromBinary(stateSerializer.toBinary(state), stateSerializer.manifest(state));
+  }
+
+  @Benchmark
+  public ConsumerEvent consumptionRecordedJson() throws IOException
+  {
+    return mapper.readValue(mapper.writeValueAsBytes(consumptionRecorded), ConsumerEvent.ConsumptionRecorded.class);
+  }
+
+  @Benchmark
+  public Object consumptionRecordedBinary() throws IOException
+  {
+    return eventSerializer.fromBinary(eventSerializer.toBinary(consumptionRecorded),
+                                      eventSerializer.manifest(consumptionRecorded));
+  }
+
+  @Benchmark
+  public ConsumerEvent daysArchivedJson() throws IOException
+  {
+    return mapper.readValue(mapper.writeValueAsBytes(daysArchived), ConsumerEvent.DaysArchived.class);
+  }
+}
@@ -0,0 +1,134 @@
+package usage.benchmarks;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.ConfigFactory;
+import consumption.api.ConsumerEvent;
+import metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+import usage.impl.ConsumptionSubscriber;
+import usage.impl.InMemoryUsageRepository;
+import usage.impl.MappedUsageRepository;
+import usage.impl.ProjectionSettings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the {@link ConsumptionSubscriber}'s flow, mapping topic messages to usage updates, with an updater that
+ * completes immediately so that the figures are for the flow rather than Cassandra, or that writes them to an
+ * {@link InMemoryUsageRepository} or to a {@link MappedUsageRepository} in a temporary directory, to compare the
+ * projection's throughput with each repository without external services.
+ * <p>
+ * Standard output is discarded while the benchmark runs, the flow's logging is still included in the figures.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumptionSubscriberBenchmark
+{
+  private static final int MESSAGES = 10_000;
+  private static final CompletionStage<Done> DONE = CompletableFuture.completedFuture(Done.getInstance());
+
+  @Param({"1", "4"})
+  public int parallelism;
+
+  @Param({"none", "memory", "mapped"})
+  public String repository;
+
+  private ProjectionSettings settings;
+  private ActorSystem system;
+  private Materializer materializer;
+  private PrintStream standardOut;
+  private List<ConsumerEvent> messages;
+  private Path directory;
+  private MappedUsageRepository mapped;
+  private ConsumptionSubscriber.UsageUpdater updater;
+
+  @Setup
+  public void setup() throws IOException
+  {
+    system = ActorSystem.create("ConsumptionSubscriberBenchmark",
+                                ConfigFactory.parseString("akka.loglevel = WARNING")
+                                             .withFallback(ConfigFactory.defaultReference()));
+    materializer = ActorMaterializer.create(system);
+    settings = new ProjectionSettings(500, Duration.ofMillis(200), parallelism);
+    standardOut = System.out;
+    System.setOut(new PrintStream(new OutputStream()
+    {
+      @Override
+      public void write(int b)
+      {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len)
+      {
+      }
+    }));
+    messages = new ArrayList<>(MESSAGES);
+    LocalDateTime timestamp = LocalDateTime.of(2018, 4, 1, 0, 0);
+    for (int i = 0; i < MESSAGES; i++) {
+      messages.add(new ConsumerEvent.ConsumptionRecorded("consumer-" + (i % 100),
+                                                         timestamp.plusMinutes(i).toString(),
+                                                         i % 500));
+    }
+    switch (repository) {
+      case "memory":
+        updater = new InMemoryUsageRepository()::updateUsage;
+        break;
+      case "mapped":
+        directory = Files.createTempDirectory("usage-benchmark");
+        mapped = new MappedUsageRepository(directory, new Metrics());
+        updater = mapped::updateUsage;
+        break;
+      default:
+        updater = (consumerId, consumptionByEpochHour) -> DONE;
+    }
+  }
+
+  @TearDown
+  public void teardown() throws IOException, InterruptedException
+  {
+    System.setOut(standardOut);
+    system.terminate();
+    if (mapped != null) {
+      mapped.close();
+    }
+    if (directory != null) {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(MESSAGES)
+  public Done usageFlow() throws Exception
+  {
+    return Source.from(messages)
+                 .via(ConsumptionSubscriber.usageFlow(updater, settings))
+                 .runWith(Sink.last(), materializer)
+                 .toCompletableFuture()
+                 .get(1, TimeUnit.MINUTES);
+  }
+}
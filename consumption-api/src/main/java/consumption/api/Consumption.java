@@ -6,8 +6,13 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
 
+import java.util.Optional;
+
 /**
  * The request body sent to the Consumption Ingestion service ingest() method
+ * <p>
+ * The optional reading id makes retrying the reading safe: a reading whose id matches one of the consumer's recent
+ * readings is acknowledged without being recorded again. Ids only need to be unique for each consumer.
  *
  * @author Nathan
  * Created : 17/02/2018
@@ -20,11 +25,17 @@ public final class Consumption
   public final String consumerId;
   public final String timestamp;
   public final int consumption;
+  public final Optional<String> readingId;
 
-  @JsonCreator
   public Consumption(String consumerId, String timestamp, int consumption) {
+    this(consumerId, timestamp, consumption, Optional.empty());
+  }
+
+  @JsonCreator
+  public Consumption(String consumerId, String timestamp, int consumption, Optional<String> readingId) {
     this.consumerId = Preconditions.checkNotNull(consumerId, "consumerID");
     this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
     this.consumption = consumption;
+    this.readingId = readingId == null ? Optional.empty() : readingId;
   }
 }
@@ -0,0 +1,43 @@
+package consumption.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+/**
+ * The aggregated consumption in watts of every PTU of a consumer's days, returned by the Consumption Ingestion
+ * service queryProfile() method.
+ * <p>
+ * To keep the response compact the values are a single flat array, day by day from the from date, holding
+ * {@link Timestamps#PTUS_PER_DAY} values for each day, so the value of a PTU is at
+ * {@code day * PTUS_PER_DAY + ptuIndex}.
+ */
+@Value
+@JsonDeserialize
+public final class ConsumptionProfile
+{
+  public final String consumerId;
+  public final String fromDate;
+  public final int days;
+  public final int[] ptuValues;
+
+  @JsonCreator
+  public ConsumptionProfile(String consumerId, String fromDate, int days, int[] ptuValues)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.fromDate = Preconditions.checkNotNull(fromDate, "fromDate");
+    this.ptuValues = Preconditions.checkNotNull(ptuValues, "ptuValues");
+    Preconditions.checkArgument(ptuValues.length == days * Timestamps.PTUS_PER_DAY,
+                                "ptuValues must hold %s values for each of %s days", Timestamps.PTUS_PER_DAY, days);
+    this.days = days;
+  }
+
+  /**
+   * @return the aggregated consumption in watts of the PTU of the day, counting days from the from date
+   */
+  public int ptuValue(int day, int ptuIndex)
+  {
+    return ptuValues[day * Timestamps.PTUS_PER_DAY + ptuIndex];
+  }
+}
@@ -1,9 +1,12 @@
 package consumption.api;
 
 import akka.Done;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.*;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
 import com.lightbend.lagom.javadsl.api.broker.kafka.KafkaProperties;
+import org.pcollections.PSequence;
 
 import static com.lightbend.lagom.javadsl.api.Service.*;
 
@@ -21,11 +24,42 @@ public interface ConsumptionService extends Service
    */
   ServiceCall<Consumption, Done> ingest();
 
+  /**
+   * Records many readings in one call. Readings are grouped by consumer so that each consumer's entity receives
+   * a command for up to consumption.ingest.max-command-readings of them, and a result is returned for every reading
+   * in the order they were submitted. A call of more than consumption.ingest.max-batch-readings is a bad request.
+   * <p>
+   * Example: curl -H "Content-Type: application/json" -X POST -d '[{"consumerId" : "ABC123", "timestamp" : "2012-04-23T18:25:43", "consumption" : 123}, {"consumerId" : "ABC123", "timestamp" : "2012-04-23T18:26:43", "consumption" : 45}]' http://localhost:9000/api/consumption/notify-batch
+   */
+  ServiceCall<PSequence<Consumption>, PSequence<IngestResult>> ingestBatch();
+
+  /**
+   * Records a continuous feed of readings over a single WebSocket connection, emitting one result per reading
+   * in the order the readings were received. The rate at which readings are consumed is governed by how quickly
+   * the Consumer entities persist them, so a slow journal backpressures the sender rather than timing out.
+   */
+  ServiceCall<Source<Consumption, NotUsed>, Source<IngestResult, NotUsed>> ingestStream();
+
   /**
    * Example: curl -H "Content-Type: application/json" -X POST -d '{"consumerId" : "ABC123", "timestamp" : "2012-04-23T18:25:43.511Z"}' http://localhost:9000/api/consumption/query
    */
   ServiceCall<ConsumptionQuery, Integer> query();
 
+  /**
+   * Reads the aggregated consumption of every PTU of a consumer's day, or range of days, in one call.
+   * <p>
+   * Example: curl -H "Content-Type: application/json" -X POST -d '{"consumerId" : "ABC123", "fromDate" : "2012-04-23", "toDate" : "2012-04-24"}' http://localhost:9000/api/consumption/profile
+   */
+  ServiceCall<ProfileQuery, ConsumptionProfile> queryProfile();
+
+  /**
+   * The service's metrics, in the Prometheus text format: ingest latencies, entity persist and event handler times,
+   * and the events published by topic shard, with an estimate of their bytes.
+   * <p>
+   * Example: curl http://localhost:9000/api/consumption/metrics
+   */
+  ServiceCall<NotUsed, String> metrics();
+
   /**
    * This gets published to Kafka.
    */
@@ -36,7 +70,11 @@ public interface ConsumptionService extends Service
   {
     return named("consumption-ingestion").withCalls(
       pathCall("/api/consumption/notify", this::ingest),
-      pathCall("/api/consumption/query", this::query)
+      pathCall("/api/consumption/notify-batch", this::ingestBatch),
+      pathCall("/api/consumption/notify-stream", this::ingestStream),
+      pathCall("/api/consumption/query", this::query),
+      pathCall("/api/consumption/profile", this::queryProfile),
+      pathCall("/api/consumption/metrics", this::metrics)
     ).withTopics(
       topic("consumption-ingestion-events", this::consumerEvents)
         // Kafka partitions messages, messages within the same partition will
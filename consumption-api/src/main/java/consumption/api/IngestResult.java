@@ -0,0 +1,54 @@
+package consumption.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * The outcome of ingesting a single reading, returned by the Consumption Ingestion service ingestBatch() method
+ * in the same order as the readings were submitted.
+ * <p>
+ * A reading that isn't accepted is either rejected as invalid, or failed, e.g. its Consumer entity didn't reply in
+ * time, in which case it's retryable: it may still have been recorded, but sending it again with the same reading id
+ * doesn't record it twice.
+ */
+
+@Value
+@JsonDeserialize
+public final class IngestResult
+{
+  public final String consumerId;
+  public final String timestamp;
+  public final boolean accepted;
+  public final Optional<String> rejectionReason;
+  public final boolean retryable;
+
+  @JsonCreator
+  public IngestResult(String consumerId, String timestamp, boolean accepted, Optional<String> rejectionReason,
+                      boolean retryable)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+    this.accepted = accepted;
+    this.rejectionReason = Preconditions.checkNotNull(rejectionReason, "rejectionReason");
+    this.retryable = retryable;
+  }
+
+  public static IngestResult accepted(Consumption consumption)
+  {
+    return new IngestResult(consumption.consumerId, consumption.timestamp, true, Optional.empty(), false);
+  }
+
+  public static IngestResult rejected(Consumption consumption, String reason)
+  {
+    return new IngestResult(consumption.consumerId, consumption.timestamp, false, Optional.of(reason), false);
+  }
+
+  public static IngestResult failed(Consumption consumption, String reason)
+  {
+    return new IngestResult(consumption.consumerId, consumption.timestamp, false, Optional.of(reason), true);
+  }
+}
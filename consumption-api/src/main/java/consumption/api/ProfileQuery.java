@@ -0,0 +1,29 @@
+package consumption.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * The request body sent to the Consumption Ingestion service queryProfile() method, for the PTU profile of the
+ * consumer's ISO-8601 dates from and to inclusive, or of just the from date if there's no to date.
+ */
+@Value
+@JsonDeserialize
+public final class ProfileQuery
+{
+  public final String consumerId;
+  public final String fromDate;
+  public final Optional<String> toDate;
+
+  @JsonCreator
+  public ProfileQuery(String consumerId, String fromDate, Optional<String> toDate)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.fromDate = Preconditions.checkNotNull(fromDate, "fromDate");
+    this.toDate = toDate == null ? Optional.empty() : toDate;
+  }
+}
@@ -0,0 +1,217 @@
+package consumption.api;
+
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parses the ISO-8601 timestamps of consumption readings into primitive values, without allocating.
+ * <p>
+ * A timestamp is a local date-time, {@code yyyy-MM-ddTHH:mm[:ss[.fraction]]}, optionally followed by {@code Z} or an
+ * offset ({@code +HH:mm}, {@code +HHmm} or {@code +HH}). A local date-time is taken as UTC, one with an offset is
+ * normalized to UTC. Fractions of a second are ignored, as readings are aggregated by PTU.
+ * <p>
+ * Timestamps are parsed once where they enter a service, and carried as an epoch second from then on;
+ * {@link #epochDay(long)}, {@link #epochHour(long)} and {@link #ptuIndex(long)} derive the day, hour and PTU of the
+ * reading from it.
+ */
+public final class Timestamps
+{
+  public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+  public static final int SECONDS_PER_HOUR = 60 * 60;
+  public static final int PTUS_PER_DAY = 48;
+  public static final int SECONDS_PER_PTU = SECONDS_PER_DAY / PTUS_PER_DAY;
+
+  private Timestamps()
+  {
+  }
+
+  /**
+   * @return the epoch second of the timestamp
+   * @throws DateTimeParseException if the timestamp isn't a valid ISO-8601 date-time
+   */
+  public static long parseEpochSecond(CharSequence text)
+  {
+    int length = text.length();
+    if (length < 16 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T' ||
+        text.charAt(13) != ':') {
+      throw invalid(text, 0);
+    }
+    int year = digits(text, 0, 4);
+    int month = digits(text, 5, 2);
+    int day = digits(text, 8, 2);
+    int hour = digits(text, 11, 2);
+    int minute = digits(text, 14, 2);
+    int second = 0;
+    int i = 16;
+    if (i < length && text.charAt(i) == ':') {
+      second = digits(text, i + 1, 2);
+      i += 3;
+      if (i < length && text.charAt(i) == '.') {
+        int fractionStart = ++i;
+        while (i < length && isDigit(text.charAt(i))) {
+          i++;
+        }
+        if (i == fractionStart || i - fractionStart > 9) {
+          throw invalid(text, fractionStart);
+        }
+      }
+    }
+    if (month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) ||
+        hour > 23 || minute > 59 || second > 59) {
+      throw invalid(text, 0);
+    }
+    int offsetSeconds = 0;
+    // no offset or 'Z' is UTC
+    if (i < length && !(text.charAt(i) == 'Z' && i + 1 == length)) {
+      char sign = text.charAt(i);
+      if ((sign == '+' || sign == '-') && (length == i + 3 || length == i + 5 || length == i + 6)) {
+        int offsetHours = digits(text, i + 1, 2);
+        int offsetMinutes = 0;
+        if (length == i + 6) {
+          if (text.charAt(i + 3) != ':') {
+            throw invalid(text, i + 3);
+          }
+          offsetMinutes = digits(text, i + 4, 2);
+        } else if (length == i + 5) {
+          offsetMinutes = digits(text, i + 3, 2);
+        }
+        if (offsetHours > 18 || offsetMinutes > 59 || offsetHours * 60 + offsetMinutes > 18 * 60) {
+          throw invalid(text, i);
+        }
+        offsetSeconds = (offsetHours * 60 + offsetMinutes) * 60 * (sign == '-' ? -1 : 1);
+      } else {
+        throw invalid(text, i);
+      }
+    }
+    return epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - offsetSeconds;
+  }
+
+  /**
+   * Parses a date given to a service call, e.g. the start of a query's range.
+   *
+   * @return the ISO-8601 date, {@code yyyy-MM-dd}
+   * @throws BadRequest if it isn't a valid date
+   */
+  public static LocalDate parseDate(String date)
+  {
+    try {
+      return LocalDate.parse(date);
+    } catch (DateTimeParseException e) {
+      throw new BadRequest("Invalid date format : " + date);
+    }
+  }
+
+  /**
+   * @return the epoch day of the epoch second
+   */
+  public static int epochDay(long epochSecond)
+  {
+    return (int)Math.floorDiv(epochSecond, SECONDS_PER_DAY);
+  }
+
+  /**
+   * @return the epoch hour of the epoch second, the hours since 1970-01-01T00:00Z
+   */
+  public static int epochHour(long epochSecond)
+  {
+    return (int)Math.floorDiv(epochSecond, SECONDS_PER_HOUR);
+  }
+
+  /**
+   * @return the index of the PTU of the epoch second within its day
+   */
+  public static int ptuIndex(long epochSecond)
+  {
+    return (int)(Math.floorMod(epochSecond, SECONDS_PER_DAY) / SECONDS_PER_PTU);
+  }
+
+  /**
+   * @return the ISO-8601 date, {@code yyyy-MM-dd}, of the epoch day
+   */
+  public static String isoDate(int epochDay)
+  {
+    // the inverse of epochDay(year, month, day), see there
+    long z = epochDay + 719468L;
+    long era = Math.floorDiv(z, 146097);
+    int dayOfEra = (int)(z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    if (year < 0 || year > 9999) {
+      throw new IllegalArgumentException("Epoch day out of range : " + epochDay);
+    }
+    char[] chars = new char[10];
+    int y = (int)year;
+    chars[0] = (char)('0' + y / 1000);
+    chars[1] = (char)('0' + y / 100 % 10);
+    chars[2] = (char)('0' + y / 10 % 10);
+    chars[3] = (char)('0' + y % 10);
+    chars[4] = '-';
+    chars[5] = (char)('0' + month / 10);
+    chars[6] = (char)('0' + month % 10);
+    chars[7] = '-';
+    chars[8] = (char)('0' + day / 10);
+    chars[9] = (char)('0' + day % 10);
+    return new String(chars);
+  }
+
+  /**
+   * @return the epoch day of the date in the proleptic Gregorian calendar, counting years from March so that the
+   * leap day is the last day of the year
+   */
+  private static long epochDay(int year, int month, int day)
+  {
+    int y = month <= 2 ? year - 1 : year;
+    int era = Math.floorDiv(y, 400);
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  private static int lengthOfMonth(int year, int month)
+  {
+    switch (month) {
+      case 2:
+        return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  private static int digits(CharSequence text, int start, int count)
+  {
+    if (start + count > text.length()) {
+      throw invalid(text, start);
+    }
+    int result = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = text.charAt(i);
+      if (!isDigit(c)) {
+        throw invalid(text, i);
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  private static DateTimeParseException invalid(CharSequence text, int index)
+  {
+    return new DateTimeParseException("Text '" + text + "' could not be parsed at index " + index, text, index);
+  }
+}
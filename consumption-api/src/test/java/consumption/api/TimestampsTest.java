@@ -0,0 +1,96 @@
+package consumption.api;
+
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+import static org.junit.Assert.*;
+
+public class TimestampsTest
+{
+  @Test
+  public void testLocalDateTimesAreTakenAsUTC()
+  {
+    for (String timestamp : new String[]{"2018-04-01T00:00", "2018-04-01T13:45:10", "2018-04-01T23:59:59.999999999",
+                                         "2016-02-29T12:30:00.5", "1969-12-31T23:59:59", "0001-01-01T00:00",
+                                         "9999-12-31T23:59:59"}) {
+      assertEquals(timestamp,
+                   LocalDateTime.parse(timestamp).toEpochSecond(ZoneOffset.UTC),
+                   Timestamps.parseEpochSecond(timestamp));
+    }
+  }
+
+  @Test
+  public void testOffsetDateTimesAreNormalizedToUTC()
+  {
+    assertEquals(OffsetDateTime.parse("2012-04-23T18:25:43.511Z").toEpochSecond(),
+                 Timestamps.parseEpochSecond("2012-04-23T18:25:43.511Z"));
+    assertEquals(OffsetDateTime.parse("2012-04-23T18:25:43+02:00").toEpochSecond(),
+                 Timestamps.parseEpochSecond("2012-04-23T18:25:43+02:00"));
+    assertEquals(OffsetDateTime.parse("2012-04-23T01:25-05:30").toEpochSecond(),
+                 Timestamps.parseEpochSecond("2012-04-23T01:25-0530"));
+    assertEquals(OffsetDateTime.parse("2012-04-23T01:25-05:00").toEpochSecond(),
+                 Timestamps.parseEpochSecond("2012-04-23T01:25-05"));
+  }
+
+  @Test
+  public void testInvalidTimestampsAreRejected()
+  {
+    for (String timestamp : new String[]{"", "3:55pm 24th June 2018", "2018-04-01", "2018-04-01 10:00",
+                                         "2018-13-01T10:00", "2018-02-29T10:00", "2018-04-31T10:00",
+                                         "2018-04-01T24:00", "2018-04-01T10:60", "2018-04-01T10:00:60",
+                                         "2018-04-01T10:00:00.", "2018-04-01T10:00Zulu", "2018-04-01T10:00+2",
+                                         "2018-04-01T10:00+19:00", "2018-04-01T10:00:00.1234567890",
+                                         "2018-04-01T1O:00"}) {
+      try {
+        Timestamps.parseEpochSecond(timestamp);
+        fail("Expected " + timestamp + " to be rejected");
+      } catch (DateTimeParseException e) {
+        assertEquals(timestamp, e.getParsedString());
+      }
+    }
+  }
+
+  @Test
+  public void testEpochDayHourAndPTUIndex()
+  {
+    long epochSecond = Timestamps.parseEpochSecond("2018-04-01T13:45:10");
+    assertEquals(LocalDate.of(2018, 4, 1).toEpochDay(), Timestamps.epochDay(epochSecond));
+    assertEquals(LocalDate.of(2018, 4, 1).toEpochDay() * 24 + 13, Timestamps.epochHour(epochSecond));
+    assertEquals(27, Timestamps.ptuIndex(epochSecond));
+    long beforeEpoch = Timestamps.parseEpochSecond("1969-12-31T23:59:59");
+    assertEquals(-1, Timestamps.epochDay(beforeEpoch));
+    assertEquals(-1, Timestamps.epochHour(beforeEpoch));
+    assertEquals(47, Timestamps.ptuIndex(beforeEpoch));
+  }
+
+  @Test
+  public void testIsoDate()
+  {
+    for (LocalDate date : new LocalDate[]{LocalDate.of(2018, 4, 1), LocalDate.of(2016, 2, 29),
+                                          LocalDate.of(2000, 3, 1), LocalDate.of(1969, 12, 31),
+                                          LocalDate.of(1, 1, 1), LocalDate.of(9999, 12, 31)}) {
+      assertEquals(date.toString(), Timestamps.isoDate((int)date.toEpochDay()));
+    }
+    for (int epochDay = -800; epochDay < 800; epochDay++) {
+      assertEquals(LocalDate.ofEpochDay(epochDay).toString(), Timestamps.isoDate(epochDay));
+    }
+  }
+
+  @Test
+  public void testParseDate()
+  {
+    assertEquals(LocalDate.of(2018, 4, 1), Timestamps.parseDate("2018-04-01"));
+    try {
+      Timestamps.parseDate("01/04/2018");
+      fail("Expected the date to be rejected");
+    } catch (BadRequest e) {
+      assertEquals("Invalid date format : 01/04/2018", e.getMessage());
+    }
+  }
+}
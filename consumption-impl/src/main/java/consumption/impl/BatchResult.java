@@ -0,0 +1,28 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.serialization.Jsonable;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.util.Optional;
+
+/**
+ * The reply to a {@link ConsumerCommand.RecordConsumptionBatch} command, holding for each reading of the batch
+ * (in the same order) either nothing if it was recorded or the reason it was rejected.
+ */
+@SuppressWarnings("serial")
+@Value
+@JsonDeserialize
+public final class BatchResult implements Jsonable
+{
+  public final PSequence<Optional<String>> rejections;
+
+  @JsonCreator
+  public BatchResult(PSequence<Optional<String>> rejections)
+  {
+    this.rejections = Preconditions.checkNotNull(rejections, "rejections");
+  }
+}
@@ -8,6 +8,9 @@ import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
 import com.lightbend.lagom.serialization.CompressedJsonable;
 import com.lightbend.lagom.serialization.Jsonable;
 import lombok.Value;
+import org.pcollections.PSequence;
+
+import java.util.Optional;
 
 /**
  * This interface defines all the commands that the Consumer entity supports.
@@ -20,6 +23,9 @@ public interface ConsumerCommand extends Jsonable {
   /**
    * A command to add the consumption to the consumer's aggregate.
    * <p>
+   * A reading sent with a reading id is only added once: if the id is one of the consumer's recent readings' it's
+   * a retry, and is acknowledged without being added again.
+   * <p>
    * It has a reply type of {@link akka.Done}, which is sent back to the caller
    * when all the events emitted by this command are successfully persisted.
    */
@@ -29,23 +35,67 @@ public interface ConsumerCommand extends Jsonable {
   final class RecordConsumption implements ConsumerCommand, CompressedJsonable, PersistentEntity.ReplyType<Done> {
     public final String timestamp;
     public final int consumption;
+    public final Optional<String> readingId;
 
-    @JsonCreator
     public RecordConsumption(String timestamp, int consumption) {
+      this(timestamp, consumption, Optional.empty());
+    }
+
+    @JsonCreator
+    public RecordConsumption(String timestamp, int consumption, Optional<String> readingId) {
       this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
       this.consumption = consumption;
+      this.readingId = readingId == null ? Optional.empty() : readingId;
+    }
+  }
+
+  /**
+   * A command to add many consumptions to the consumer's aggregate at once.
+   * <p>
+   * It has a reply type of {@link BatchResult}, which holds a rejection reason for each invalid reading (in the
+   * same order as the readings) and is sent back when all the events for the valid readings are persisted.
+   */
+  @SuppressWarnings("serial")
+  @Value
+  @JsonDeserialize
+  final class RecordConsumptionBatch
+    implements ConsumerCommand, CompressedJsonable, PersistentEntity.ReplyType<BatchResult> {
+    public final PSequence<RecordConsumption> readings;
+
+    @JsonCreator
+    public RecordConsumptionBatch(PSequence<RecordConsumption> readings) {
+      this.readings = Preconditions.checkNotNull(readings, "readings");
     }
   }
 
+  /**
+   * A command to persist the readings the consumer's entity has acknowledged but not yet persisted, in write-behind
+   * mode (see {@link ConsumptionSettings.Durability#WRITE_BEHIND}). It's sent by the {@link WriteBehindFlusher}, and
+   * as {@link #BEFORE_PASSIVATION} by the {@link EntityPassivator}.
+   * <p>
+   * It has a reply type of {@link akka.Done}, which is sent back once the readings are persisted, straight away if
+   * there are none.
+   */
+  enum FlushPending implements ConsumerCommand, PersistentEntity.ReplyType<Done> {
+    INSTANCE,
+    /**
+     * Persists the pending readings as the entity is about to be passivated, so that the readings it handles until
+     * then are persisted straight away too.
+     */
+    BEFORE_PASSIVATION
+  }
+
   /**
    * A command to request the aggregated consumption for the consumer for the PTU specified by the timestamp.
    * <p>
-   * It has a reply type of Integer, which is the aggregated consumption in watts.
+   * It has a reply type of {@link PTUConsumption}, which is the aggregated consumption in watts, unless the PTU's
+   * day has been archived.
    */
   @SuppressWarnings("serial")
   @Value
   @JsonDeserialize
-  final class GetConsumption implements ConsumerCommand, CompressedJsonable, PersistentEntity.ReplyType<Integer> {
+  final class GetConsumption
+    implements ConsumerCommand, CompressedJsonable, PersistentEntity.ReplyType<PTUConsumption> {
     public final String timestamp;
 
     @JsonCreator
@@ -53,4 +103,27 @@ public interface ConsumerCommand extends Jsonable {
       this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
     }
   }
+
+  /**
+   * A command to request the aggregated consumption for every PTU of the consumer's days, starting from the epoch
+   * day.
+   * <p>
+   * It has a reply type of {@link DailyProfiles}, which holds the PTU values of the days, and the epoch day before
+   * which days have been archived.
+   */
+  @SuppressWarnings("serial")
+  @Value
+  @JsonDeserialize
+  final class GetDailyProfiles
+    implements ConsumerCommand, CompressedJsonable, PersistentEntity.ReplyType<DailyProfiles> {
+    public final int fromEpochDay;
+    public final int days;
+
+    @JsonCreator
+    public GetDailyProfiles(int fromEpochDay, int days) {
+      Preconditions.checkArgument(days > 0, "days must be positive");
+      this.fromEpochDay = fromEpochDay;
+      this.days = days;
+    }
+  }
 }
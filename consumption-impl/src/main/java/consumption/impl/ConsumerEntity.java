@@ -1,23 +1,37 @@
 package consumption.impl;
 
 import akka.Done;
+import consumption.impl.ConsumerEvent.ConsumptionAdded;
 import consumption.impl.ConsumerEvent.ConsumptionRecorded;
+import consumption.impl.ConsumerEvent.DaysArchived;
+import consumption.impl.ConsumerEvent.PtuAggregated;
+import consumption.api.Timestamps;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
-import org.apache.commons.lang3.ArrayUtils;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import org.jetbrains.annotations.NotNull;
+import org.pcollections.TreePVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This is an event sourced entity. It has a state, {@link ConsumerState}, which
  * stores the Consumption values aggregated by PTU.
  * <p>
- * Event sourced entities are interacted with by sending them commands. This entity supports two commands,
+ * Event sourced entities are interacted with by sending them commands. This entity supports five commands,
  * an {@link ConsumerCommand.RecordConsumption} command which is used to update the aggregated consumption for
- * the Consumer, and a {@link ConsumerCommand.GetConsumption} command which is used to query the Consumers consumption state.
+ * the Consumer, an {@link ConsumerCommand.RecordConsumptionBatch} command which does the same for many readings
+ * at once, a {@link ConsumerCommand.GetConsumption} command which is used to query the Consumers consumption state,
+ * a {@link ConsumerCommand.GetDailyProfiles} command which queries every PTU of a range of days at once, and a
+ * {@link ConsumerCommand.FlushPending} command which persists the readings held in write-behind mode.
  * <p>
  * Commands get translated to events, and it's the events that get persisted by
  * the entity. Each event will have an event handler registered for it, and an
@@ -26,11 +40,82 @@ import java.util.*;
  * loaded from the database - each event will be replayed to recreate the state
  * of the entity.
  * <p>
- * This entity defines one event, the {@link ConsumptionRecorded} event,
- * which is emitted when a {@link ConsumerCommand.RecordConsumption} command is received.
+ * This entity defines three events, the {@link ConsumptionRecorded} event,
+ * which is emitted when a {@link ConsumerCommand.RecordConsumption} command is received, and once for each valid
+ * reading of a {@link ConsumerCommand.RecordConsumptionBatch} command, the {@link PtuAggregated} event, which is
+ * emitted instead in write-behind mode for the readings of each PTU together, and the {@link DaysArchived} event,
+ * which is emitted after them when recording the consumption leaves days outside the entity's retention window.
+ * <p>
+ * In write-behind mode (see {@link ConsumptionSettings.Durability#WRITE_BEHIND}) readings are acknowledged once
+ * they're added to the entity's {@link PendingReadings}, which the queries include. They're persisted when a reading
+ * for a later PTU arrives, when the entity holds the configured most readings, and when the {@link WriteBehindFlusher}
+ * sends a {@link ConsumerCommand.FlushPending} command. Once the {@link EntityPassivator} has flushed them before
+ * passivating the entity, readings are persisted straight away instead, for {@link #PASSIVATION_GRACE_NANOS}, so that
+ * none are acknowledged and left pending when the passivation reaches it.
+ * <p>
+ * Readings sent with a reading id are recorded with its key, which the state holds for the most recent readings (see
+ * {@link RecentReadings}). A reading whose key is held, or pending, is a retry of a reading that has already been
+ * recorded, so it's acknowledged without persisting anything.
+ * <p>
+ * The entity records an estimate of the heap it holds in the {@link EntityMemoryRegistry} as it handles the commands
+ * of clients, so that the {@link EntityPassivator} can passivate the least recently used entities when the node's
+ * entities exceed their memory budget.
  */
 public class ConsumerEntity extends PersistentEntity<ConsumerCommand, ConsumerEvent, ConsumerState>
 {
+  private static final Logger log = LoggerFactory.getLogger(ConsumerEntity.class);
+
+  // A rough estimate of the heap held by an active entity other than its state and pending readings: its actor,
+  // mailbox, behavior and journal plugin bookkeeping
+  static final int ENTITY_BYTES = 2048;
+  // How long an entity told it's about to be passivated persists its readings straight away in write-behind mode,
+  // which covers the time until the passivation reaches it
+  static final long PASSIVATION_GRACE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final ConsumptionSettings settings;
+  // The time from handling a command to its events being persisted, and the time taken to apply each event
+  private final LatencyHistogram persistLatency;
+  private final LatencyHistogram eventHandlerTime;
+  // The PTU events persisted in write-behind mode, and the readings they aggregate
+  private final LongAdder ptuAggregatedEvents;
+  private final LongAdder ptuAggregatedReadings;
+  // The retried readings acknowledged without being recorded again
+  private final LongAdder duplicateReadings;
+  private final WriteBehindRegistry writeBehindRegistry;
+  private final EntityMemoryRegistry memoryRegistry;
+  // The readings acknowledged in write-behind mode that haven't been persisted yet
+  private final PendingReadings pending = new PendingReadings();
+  // The nano time until which readings are persisted straight away in write-behind mode, as the entity is about to be
+  // passivated, and whether it's set
+  private long passivatingUntilNanos;
+  private boolean passivating;
+
+  public ConsumerEntity()
+  {
+    this(ConsumptionSettings.load());
+  }
+
+  public ConsumerEntity(ConsumptionSettings settings)
+  {
+    this(settings, new Metrics(), new WriteBehindRegistry(), new EntityMemoryRegistry());
+  }
+
+  @Inject
+  public ConsumerEntity(ConsumptionSettings settings,
+                        Metrics metrics,
+                        WriteBehindRegistry writeBehindRegistry,
+                        EntityMemoryRegistry memoryRegistry)
+  {
+    this.settings = settings;
+    this.persistLatency = metrics.histogram("consumption_entity_persist_seconds");
+    this.eventHandlerTime = metrics.histogram("consumption_entity_event_handler_seconds");
+    this.ptuAggregatedEvents = metrics.counter("consumption_entity_ptu_aggregated_events_total");
+    this.ptuAggregatedReadings = metrics.counter("consumption_entity_ptu_aggregated_readings_total");
+    this.duplicateReadings = metrics.counter("consumption_entity_duplicate_readings_total");
+    this.writeBehindRegistry = writeBehindRegistry;
+    this.memoryRegistry = memoryRegistry;
+  }
+
   /**
    * An entity can define different behaviours for different states, but it will
    * always start with an initial behaviour. This entity only has one behaviour.
@@ -49,7 +134,7 @@ public class ConsumerEntity extends PersistentEntity<ConsumerCommand, ConsumerEv
      * Otherwise, the default state is empty.
      */
     BehaviorBuilder b = newBehaviorBuilder(
-      snapshotState.orElse(new ConsumerState(new DailyConsumption[0])));
+      snapshotState.orElse(ConsumerState.EMPTY));
 
     /*
      * Command handler for the RecordConsumption command.
@@ -57,13 +142,25 @@ public class ConsumerEntity extends PersistentEntity<ConsumerCommand, ConsumerEv
     b.setCommandHandler(ConsumerCommand.RecordConsumption.class, (cmd, ctx) ->
     {
       // In response to this command, first persist it as a ConsumptionRecorded event
+      long start = System.nanoTime();
+      used();
       try {
-        LocalDateTime.parse(cmd.getTimestamp()); // check it's valid
-        ConsumptionRecorded event = new ConsumptionRecorded(entityId(), cmd.getTimestamp(), cmd.getConsumption());
-        System.out.println("Storing " + event);
-        return ctx.thenPersist(event,
-                               // Then once the event is successfully persisted, we respond with done.
-                               evt -> ctx.reply(Done.getInstance()));
+        ConsumptionRecorded event = recorded(cmd);
+        if (isDuplicate(event.getReadingKey())) {
+          duplicateReadings.increment();
+          ctx.reply(Done.getInstance());
+          return ctx.done();
+        }
+        if (isWriteBehind()) {
+          return recordWriteBehind(Collections.singletonList(event), ctx, Done.getInstance(), start);
+        }
+        log.debug("Storing {}", event);
+        return ctx.thenPersistAll(withArchival(Collections.singletonList(event)),
+                                  // Then once the events are successfully persisted, we respond with done.
+                                  () -> {
+                                    persistLatency.recordSince(start);
+                                    ctx.reply(Done.getInstance());
+                                  });
       } catch (DateTimeParseException e) {
         ctx.invalidCommand("Invalid timestamp format : " + cmd.getTimestamp());
         return ctx.done();
@@ -71,47 +168,271 @@ public class ConsumerEntity extends PersistentEntity<ConsumerCommand, ConsumerEv
     });
 
     /*
-     * Event handler for the ConsumptionRecorded event.
+     * Command handler for the RecordConsumptionBatch command.
+     */
+    b.setCommandHandler(ConsumerCommand.RecordConsumptionBatch.class, (cmd, ctx) ->
+    {
+      // Invalid readings are rejected individually, the valid ones are persisted together, and retried ones
+      // are accepted without being persisted
+      long start = System.nanoTime();
+      used();
+      List<ConsumptionRecorded> events = new ArrayList<>(cmd.getReadings().size());
+      List<Optional<String>> rejections = new ArrayList<>(cmd.getReadings().size());
+      Set<Long> batchReadingKeys = new HashSet<>();
+      for (ConsumerCommand.RecordConsumption reading : cmd.getReadings()) {
+        try {
+          ConsumptionRecorded event = recorded(reading);
+          OptionalLong readingKey = event.getReadingKey();
+          if (isDuplicate(readingKey) ||
+              readingKey.isPresent() && !batchReadingKeys.add(readingKey.getAsLong())) {
+            duplicateReadings.increment();
+          } else {
+            events.add(event);
+          }
+          rejections.add(Optional.empty());
+        } catch (DateTimeParseException e) {
+          rejections.add(Optional.of("Invalid timestamp format : " + reading.getTimestamp()));
+        }
+      }
+      BatchResult result = new BatchResult(TreePVector.from(rejections));
+      if (events.isEmpty()) {
+        ctx.reply(result);
+        return ctx.done();
+      }
+      if (isWriteBehind()) {
+        return recordWriteBehind(events, ctx, result, start);
+      }
+      log.debug("Storing {} events", events.size());
+      return ctx.thenPersistAll(withArchival(events),
+                                // Then once all the events are successfully persisted, we respond with the result.
+                                () -> {
+                                  persistLatency.recordSince(start);
+                                  ctx.reply(result);
+                                });
+    });
+
+    /*
+     * Command handler for the FlushPending command.
+     */
+    b.setCommandHandler(ConsumerCommand.FlushPending.class, (cmd, ctx) ->
+    {
+      long start = System.nanoTime();
+      if (cmd == ConsumerCommand.FlushPending.BEFORE_PASSIVATION) {
+        passivating = true;
+        passivatingUntilNanos = start + PASSIVATION_GRACE_NANOS;
+      }
+      List<PtuAggregated> events = pending.drain(entityId());
+      writeBehindRegistry.flushed(entityId());
+      if (events.isEmpty()) {
+        ctx.reply(Done.getInstance());
+        return ctx.done();
+      }
+      return persistAggregated(events, ctx, Done.getInstance(), start);
+    });
+
+    /*
+     * Event handlers for the ConsumptionRecorded and PtuAggregated events.
+     */
+    b.setEventHandler(ConsumptionRecorded.class, this::addConsumption);
+    b.setEventHandler(PtuAggregated.class, this::addConsumption);
+
+    /*
+     * Event handler for the DaysArchived event.
      */
-    b.setEventHandler(ConsumptionRecorded.class,
-                      // We aggregate the current state with the consumption from the event.
+    b.setEventHandler(DaysArchived.class,
+                      // We remove the archived days from the state.
                       evt ->
                       {
-                        System.out.println("Handling " + evt);
-                        return getUpdatedState(state(),
-                                               LocalDateTime.parse(evt.getTimestamp()),
-                                               evt.getConsumption());
+                        long start = System.nanoTime();
+                        ConsumerState newState = state().withDaysArchived(evt.getArchivedBefore(), evt.getSequence());
+                        eventHandlerTime.recordSince(start);
+                        return newState;
                       });
 
     b.setReadOnlyCommandHandler(ConsumerCommand.GetConsumption.class, (cmd, ctx) -> {
+      used();
       try {
-        LocalDateTime timestamp = LocalDateTime.parse(cmd.getTimestamp());
-        ctx.reply(getPTUValue(state().getDailyConsumptions(), timestamp));
+        long epochSecond = Timestamps.parseEpochSecond(cmd.getTimestamp());
+        int epochDay = Timestamps.epochDay(epochSecond);
+        int ptuIndex = Timestamps.ptuIndex(epochSecond);
+        ctx.reply(state().isArchived(epochDay) ?
+                  PTUConsumption.ARCHIVED :
+                  PTUConsumption.of(state().ptuValue(epochDay, ptuIndex) + pending.consumption(epochDay, ptuIndex)));
       } catch (DateTimeParseException e) {
         ctx.invalidCommand("Invalid timestamp format : " + cmd.getTimestamp());
       }
     });
 
+    b.setReadOnlyCommandHandler(ConsumerCommand.GetDailyProfiles.class, (cmd, ctx) -> {
+      used();
+      // Days that aren't recorded, or have been archived, are left as 0
+      int[] ptuValues = new int[cmd.getDays() * DailyConsumption.PTUS_PER_DAY];
+      for (int day = 0; day < cmd.getDays(); day++) {
+        DailyConsumption dailyConsumption = state().dailyConsumption(cmd.getFromEpochDay() + day);
+        if (dailyConsumption != null) {
+          System.arraycopy(dailyConsumption.getPtuValues(), 0, ptuValues, day * DailyConsumption.PTUS_PER_DAY,
+                           DailyConsumption.PTUS_PER_DAY);
+        }
+      }
+      pending.addTo(cmd.getFromEpochDay(), ptuValues);
+      ctx.reply(new DailyProfiles(ptuValues, state().getArchivedBefore()));
+    });
+
     /*
      * We've defined all our behaviour, so build and return it.
      */
     return b.build();
   }
 
-  public static int getPTUValue(DailyConsumption[] dailyConsumptions,
-                                LocalDateTime timestamp)
+  /**
+   * Records that the entity has handled a client's command, and the heap it holds. It's recorded before the command
+   * changes the state, so the estimate lags by one command.
+   */
+  private void used()
+  {
+    memoryRegistry.used(entityId(), estimatedSize());
+  }
+
+  /**
+   * @return whether readings are held as pending readings, as they are in write-behind mode unless the entity is
+   * about to be passivated, when they'd be lost with it
+   */
+  private boolean isWriteBehind()
+  {
+    if (passivating && System.nanoTime() - passivatingUntilNanos >= 0) {
+      passivating = false;
+    }
+    return settings.isWriteBehind() && !passivating;
+  }
+
+  /**
+   * @return an estimate of the heap held by the entity, in bytes
+   */
+  long estimatedSize()
+  {
+    return ENTITY_BYTES + state().estimatedSize() + pending.estimatedSize();
+  }
+
+  /**
+   * We aggregate the current state with the consumption from the event.
+   */
+  private ConsumerState addConsumption(ConsumptionAdded evt)
+  {
+    log.debug("Handling {}", evt);
+    long start = System.nanoTime();
+    ConsumerState newState = state().withConsumption(evt.epochDay(), evt.ptuIndex(), evt.getConsumption())
+                                    .withReadingKeys(evt.readingKeys(), settings.getDedupWindow());
+    eventHandlerTime.recordSince(start);
+    return newState;
+  }
+
+  /**
+   * @return the event recording the reading, with its reading id's key if reading ids are held
+   * @throws DateTimeParseException if the reading's timestamp is invalid
+   */
+  private ConsumptionRecorded recorded(ConsumerCommand.RecordConsumption reading)
+  {
+    long epochSecond = Timestamps.parseEpochSecond(reading.getTimestamp());
+    OptionalLong readingKey = settings.getDedupWindow() > 0 && reading.getReadingId().isPresent() ?
+                              OptionalLong.of(RecentReadings.key(reading.getReadingId().get())) :
+                              OptionalLong.empty();
+    return new ConsumptionRecorded(entityId(), epochSecond, reading.getConsumption(), readingKey);
+  }
+
+  /**
+   * @return whether a reading with the key has already been recorded, or is pending
+   */
+  private boolean isDuplicate(OptionalLong readingKey)
+  {
+    return readingKey.isPresent() &&
+           (state().isRecentReading(readingKey.getAsLong()) || pending.containsReading(readingKey.getAsLong()));
+  }
+
+  /**
+   * Adds the readings to the pending readings, draining them into events when a reading is for a later PTU than the
+   * pending ones, or the most readings are pending, then replies once the drained events are persisted, or straight
+   * away if none were.
+   */
+  private <R> Persist<? extends ConsumerEvent> recordWriteBehind(List<ConsumptionRecorded> readings,
+                                                                 CommandContext<R> ctx,
+                                                                 R reply,
+                                                                 long start)
+  {
+    List<PtuAggregated> events = new ArrayList<>();
+    for (ConsumptionRecorded reading : readings) {
+      if (pending.isAfterPending(reading.epochDay(), reading.ptuIndex())) {
+        events.addAll(pending.drain(entityId()));
+      }
+      pending.add(reading.epochDay(), reading.ptuIndex(), reading.getConsumption(), reading.readingKeys(), start);
+      if (pending.readings() >= settings.getWriteBehindMaxReadings()) {
+        events.addAll(pending.drain(entityId()));
+      }
+    }
+    if (pending.isEmpty()) {
+      writeBehindRegistry.flushed(entityId());
+    } else {
+      writeBehindRegistry.pending(entityId(), pending.oldestNanos());
+    }
+    if (events.isEmpty()) {
+      ctx.reply(reply);
+      return ctx.done();
+    }
+    return persistAggregated(events, ctx, reply, start);
+  }
+
+  private <R> Persist<? extends ConsumerEvent> persistAggregated(List<PtuAggregated> events,
+                                                                 CommandContext<R> ctx,
+                                                                 R reply,
+                                                                 long start)
+  {
+    log.debug("Storing {} aggregated PTUs", events.size());
+    ptuAggregatedEvents.add(events.size());
+    for (PtuAggregated event : events) {
+      ptuAggregatedReadings.add(event.getReadings());
+    }
+    return ctx.thenPersistAll(withArchival(events),
+                              // Then once the events are successfully persisted, we respond with the reply.
+                              () -> {
+                                persistLatency.recordSince(start);
+                                ctx.reply(reply);
+                              });
+  }
+
+  /**
+   * @return the events, followed by a {@link DaysArchived} event if applying them would leave days older than the
+   * retention window in the state
+   */
+  private List<ConsumerEvent> withArchival(List<? extends ConsumptionAdded> recorded)
+  {
+    List<ConsumerEvent> events = new ArrayList<>(recorded);
+    if (settings.getRetentionDays() <= 0) {
+      return events;
+    }
+    int newestEpochDay = state().newestEpochDay();
+    int oldestEpochDay = state().oldestEpochDay();
+    for (ConsumptionAdded event : recorded) {
+      newestEpochDay = Math.max(newestEpochDay, event.epochDay());
+      oldestEpochDay = Math.min(oldestEpochDay, event.epochDay());
+    }
+    int retainedFrom = newestEpochDay - settings.getRetentionDays() + 1;
+    if (oldestEpochDay < retainedFrom) {
+      // work out the days to archive from the state as it will be once the consumptions are recorded
+      ConsumerState newState = state();
+      for (ConsumptionAdded event : recorded) {
+        newState = newState.withConsumption(event.epochDay(), event.ptuIndex(), event.getConsumption());
+      }
+      events.add(new DaysArchived(entityId(),
+                                  newState.getArchiveSequence() + 1,
+                                  retainedFrom,
+                                  TreePVector.from(newState.daysBefore(retainedFrom))));
+    }
+    return events;
+  }
+
+  public static int getPTUValue(@NotNull ConsumerState state,
+                                @NotNull LocalDateTime timestamp)
   {
-    LocalDate date = timestamp.toLocalDate();
-    // find the existing daily consumption for the date
-    int index = Arrays.binarySearch(dailyConsumptions,
-                                    new DailyConsumption(date.toString()),
-                                    Comparator.comparing(dailyConsumption ->
-                                                           LocalDate.parse(dailyConsumption.getDate())));
-    // extract the current PTU value array
-    int[] currentPTUValues = index >= 0 ?
-                             dailyConsumptions[index].getPtuValues() :
-                             DailyConsumption.EMPTY_PTU_VALUES;
-    return currentPTUValues[getPTUValueIndex(timestamp)];
+    return state.ptuValue((int)timestamp.toLocalDate().toEpochDay(), getPTUValueIndex(timestamp));
   }
 
   @NotNull
@@ -119,37 +440,10 @@ public class ConsumerEntity extends PersistentEntity<ConsumerCommand, ConsumerEv
                                               @NotNull LocalDateTime timestamp,
                                               int consumption)
   {
-    LocalDate date = timestamp.toLocalDate();
-    DailyConsumption[] currentDailyConsumptions = state.getDailyConsumptions();
-    // find the existing daily consumption for the date
-    int index = Arrays.binarySearch(currentDailyConsumptions,
-                                    new DailyConsumption(date.toString()),
-                                    Comparator.comparing(DailyConsumption::getDate));
-    // extract the current PTU value array
-    int[] currentPTUValues = index >= 0 ?
-                             currentDailyConsumptions[index].getPtuValues() :
-                             DailyConsumption.EMPTY_PTU_VALUES;
-    // clone as state must be immutable
-    int[] newPTUValues = Arrays.copyOf(currentPTUValues, currentPTUValues.length);
-
-    int ptuIndex = getPTUValueIndex(timestamp);
-    // update the new PTU value
-    newPTUValues[ptuIndex] = currentPTUValues[ptuIndex] + consumption;
-    DailyConsumption newDailyConsumption = new DailyConsumption(date.toString(), newPTUValues);
-
-    // clone consumptions as state must be immutable
-    DailyConsumption[] newDailyConsumptions =
-      Arrays.copyOf(currentDailyConsumptions, currentDailyConsumptions.length);
-    if (index < 0) {
-      // date not recorded yet
-      int insertionIndex = -index - 1;
-      newDailyConsumptions = ArrayUtils.insert(insertionIndex,
-                                               newDailyConsumptions,
-                                               newDailyConsumption);
-    } else {
-      newDailyConsumptions[index] = newDailyConsumption;
-    }
-    return new ConsumerState(newDailyConsumptions);
+    // only the affected day is copied, all other days are shared with the current state
+    return state.withConsumption((int)timestamp.toLocalDate().toEpochDay(),
+                                 getPTUValueIndex(timestamp),
+                                 consumption);
   }
 
   public static int getPTUValueIndex(LocalDateTime timestamp)
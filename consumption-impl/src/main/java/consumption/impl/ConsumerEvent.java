@@ -1,8 +1,6 @@
 package consumption.impl;
 
 import com.lightbend.lagom.javadsl.persistence.AggregateEvent;
-import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
-import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
 import com.lightbend.lagom.javadsl.persistence.AggregateEventTagger;
 import lombok.Value;
 
@@ -10,6 +8,12 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
 import com.lightbend.lagom.serialization.Jsonable;
+import consumption.api.Timestamps;
+import org.pcollections.PSequence;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.OptionalLong;
 
 /**
  * This interface defines all the events that the Consumer entity supports.
@@ -20,37 +24,195 @@ import com.lightbend.lagom.serialization.Jsonable;
 public interface ConsumerEvent extends Jsonable, AggregateEvent<ConsumerEvent> {
 
   /**
-   * Tags are used for getting and publishing streams of events. Each event
-   * will have this tag, and in this case, we are partitioning the tags into
-   * 4 shards, which means we can have 4 concurrent processors/publishers of
-   * events.
+   * An event adding consumption to one PTU of the consumer's state.
    */
-  AggregateEventShards<ConsumerEvent> TAG = AggregateEventTag.sharded(ConsumerEvent.class, 4);
+  interface ConsumptionAdded extends ConsumerEvent
+  {
+    String getConsumerId();
+
+    int getConsumption();
+
+    /**
+     * @return the epoch day of the PTU
+     */
+    int epochDay();
+
+    /**
+     * @return the index of the PTU within its day
+     */
+    int ptuIndex();
+
+    /**
+     * @return the timestamp of the consumption, the start of its PTU for aggregated consumption
+     */
+    LocalDateTime timestamp();
+
+    /**
+     * @return the keys of the readings of the consumption that were sent with a reading id (see
+     * {@link RecentReadings})
+     */
+    long[] readingKeys();
+  }
 
   /**
    * An event that represents a change in the consumer's consumption.
+   * <p>
+   * The timestamp of the reading is held as seconds since the epoch, taking the reading's local date-time as UTC.
+   * A reading sent with a reading id holds the id's key, so that retries of it are recognised.
+   * The event is written to the journal by the {@link ConsumptionRecordedSerializer}, see
+   * {@link ConsumptionRecordedMigration} for how events written as JSON with an ISO-8601 timestamp are read.
    */
   @SuppressWarnings("serial")
   @Value
   @JsonDeserialize
-  final class ConsumptionRecorded implements ConsumerEvent
+  final class ConsumptionRecorded implements ConsumptionAdded
   {
     public final String consumerId;
-    public final String timestamp;
+    public final long epochSecond;
     public final int consumption;
+    public final OptionalLong readingKey;
+
+    public ConsumptionRecorded(String consumerId, long epochSecond, int consumption) {
+      this(consumerId, epochSecond, consumption, OptionalLong.empty());
+    }
 
     @JsonCreator
-    public ConsumptionRecorded(String consumerId, String timestamp, int consumption) {
+    public ConsumptionRecorded(String consumerId, long epochSecond, int consumption, OptionalLong readingKey) {
       this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
-      this.timestamp = Preconditions.checkNotNull(timestamp, "timestamp");
+      this.epochSecond = epochSecond;
       this.consumption = consumption;
+      // events written before reading ids were kept have no key
+      this.readingKey = readingKey == null ? OptionalLong.empty() : readingKey;
+    }
+
+    /**
+     * @return the epoch day of the reading
+     */
+    public int epochDay() {
+      return Timestamps.epochDay(epochSecond);
+    }
+
+    /**
+     * @return the index of the reading's PTU within its day
+     */
+    public int ptuIndex() {
+      return Timestamps.ptuIndex(epochSecond);
+    }
+
+    /**
+     * @return the timestamp of the reading
+     */
+    public LocalDateTime timestamp() {
+      return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    public long[] readingKeys() {
+      return readingKey.isPresent() ? new long[]{readingKey.getAsLong()} : new long[0];
     }
   }
 
+  /**
+   * An event that represents the consumption of the readings of one PTU, aggregated in memory by an entity in
+   * write-behind mode (see {@link ConsumptionSettings.Durability#WRITE_BEHIND}) and persisted together.
+   * <p>
+   * The PTU is held as the epoch second of its start, and the number of readings aggregated into the consumption is
+   * kept so that the journal shows how many readings each event stands for. The keys of those readings that were sent
+   * with a reading id are kept so that retries of them are recognised.
+   */
+  @SuppressWarnings("serial")
+  @Value
+  @JsonDeserialize
+  final class PtuAggregated implements ConsumptionAdded
+  {
+    public final String consumerId;
+    public final long epochSecond;
+    public final int consumption;
+    public final int readings;
+    public final long[] readingKeys;
 
+    public PtuAggregated(String consumerId, long epochSecond, int consumption, int readings) {
+      this(consumerId, epochSecond, consumption, readings, new long[0]);
+    }
+
+    @JsonCreator
+    public PtuAggregated(String consumerId, long epochSecond, int consumption, int readings, long[] readingKeys) {
+      this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+      Preconditions.checkArgument(Math.floorMod(epochSecond, Timestamps.SECONDS_PER_PTU) == 0,
+                                  "epochSecond must be the start of a PTU");
+      Preconditions.checkArgument(readings > 0, "readings must be positive");
+      this.epochSecond = epochSecond;
+      this.consumption = consumption;
+      this.readings = readings;
+      this.readingKeys = readingKeys == null ? new long[0] : readingKeys;
+      Preconditions.checkArgument(this.readingKeys.length <= readings, "readingKeys must not outnumber readings");
+    }
+
+    /**
+     * @return the epoch day of the PTU
+     */
+    public int epochDay() {
+      return Timestamps.epochDay(epochSecond);
+    }
+
+    /**
+     * @return the index of the PTU within its day
+     */
+    public int ptuIndex() {
+      return Timestamps.ptuIndex(epochSecond);
+    }
+
+    /**
+     * @return the start of the PTU
+     */
+    public LocalDateTime timestamp() {
+      return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+    }
+
+    public long[] readingKeys() {
+      return readingKeys;
+    }
+  }
+
+  /**
+   * An event that represents days leaving the consumer's retention window. The days are removed from the entity's
+   * state and their consumption is written to the archive by the {@link ConsumptionArchiveProcessor}.
+   * <p>
+   * A reading for a day that has already been archived is recorded and then archived straight away, so the days of
+   * an archive event are added to any earlier archived consumption for the same day, and each archive event has a
+   * sequence number so that it is written to the archive only once.
+   */
+  @SuppressWarnings("serial")
+  @Value
+  @JsonDeserialize
+  final class DaysArchived implements ConsumerEvent
+  {
+    public final String consumerId;
+    public final int sequence;
+    public final int archivedBefore;
+    public final PSequence<DailyConsumption> dailyConsumptions;
+
+    @JsonCreator
+    public DaysArchived(String consumerId, int sequence, int archivedBefore,
+                        PSequence<DailyConsumption> dailyConsumptions) {
+      this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+      this.sequence = sequence;
+      this.archivedBefore = archivedBefore;
+      this.dailyConsumptions = Preconditions.checkNotNull(dailyConsumptions, "dailyConsumptions");
+    }
+  }
+
+  /**
+   * Tags are used for getting and publishing streams of events. Each event
+   * will have one of these tags, and we are partitioning the tags into the
+   * configured number of shards, which means we can have that many concurrent
+   * processors/publishers of events. The event streams read all of
+   * {@link ConsumerEventTags#allTags()}, which include the tags of the previous
+   * number of shards. New events are tagged by the tags that the
+   * {@link ConsumptionModule} read from the application's configuration.
+   */
   @Override
   default AggregateEventTagger<ConsumerEvent> aggregateTag() {
-    return TAG;
+    return ConsumerEventTags.installedTagger();
   }
 
 }
@@ -0,0 +1,107 @@
+package consumption.impl;
+
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventShards;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The tags of the {@link ConsumerEvent}s, read from the consumption.events configuration of the application.
+ * <p>
+ * Events are tagged with one of the configured number of shards, chosen by their consumer id, and each shard's tag
+ * can be published and processed concurrently. A shard's tag is named by its number alone, e.g. ConsumerEvent5,
+ * whatever the number of shards, so the offsets that Lagom stores for each tag stay valid when the number of shards
+ * changes. Changing it only moves consumers' new events to other tags.
+ * <p>
+ * So that the events already written with the previous number of shards are still published and processed, the
+ * event streams read the tags of both the current and the previous numbers of shards. When the number of shards
+ * grows, the previous tags are a subset of the current ones. When it shrinks, the tags beyond the current number are
+ * retiring: they only hold events written before the change, and they are read until the previous number of shards
+ * is set to the current one. See the README for the procedure.
+ * <p>
+ * Events can't be injected, so the {@link ConsumptionModule} installs the application's tags for new events to be
+ * tagged by, and binds them for the components that read the event streams.
+ */
+public final class ConsumerEventTags
+{
+  private static volatile ConsumerEventTags installed;
+
+  private final int shards;
+  private final int previousShards;
+  private final AggregateEventShards<ConsumerEvent> tagger;
+  private final PSequence<AggregateEventTag<ConsumerEvent>> allTags;
+
+  public ConsumerEventTags(Config config)
+  {
+    this(config.getInt("consumption.events.shards"), config.getInt("consumption.events.previous-shards"));
+  }
+
+  public ConsumerEventTags(int shards, int previousShards)
+  {
+    Preconditions.checkArgument(shards > 0, "shards must be positive");
+    Preconditions.checkArgument(previousShards > 0, "previousShards must be positive");
+    this.shards = shards;
+    this.previousShards = previousShards;
+    this.tagger = AggregateEventTag.sharded(ConsumerEvent.class, shards);
+    Set<AggregateEventTag<ConsumerEvent>> tags = new LinkedHashSet<>(tagger.allTags());
+    tags.addAll(AggregateEventTag.sharded(ConsumerEvent.class, previousShards).allTags());
+    this.allTags = TreePVector.from(tags);
+  }
+
+  /**
+   * Sets the tags that new events are tagged with.
+   */
+  static void install(ConsumerEventTags tags)
+  {
+    installed = Preconditions.checkNotNull(tags, "tags");
+  }
+
+  /**
+   * @return the tagger of new events, by the current number of shards of the installed tags
+   */
+  static AggregateEventShards<ConsumerEvent> installedTagger()
+  {
+    ConsumerEventTags tags = installed;
+    Preconditions.checkState(tags != null, "No event tags are installed, as the ConsumptionModule hasn't started");
+    return tags.tagger;
+  }
+
+  /**
+   * @return the tagger of new events, by the current number of shards
+   */
+  public AggregateEventShards<ConsumerEvent> tagger()
+  {
+    return tagger;
+  }
+
+  /**
+   * @return the tags of the current number of shards, followed by any retiring tags of the previous number
+   */
+  public PSequence<AggregateEventTag<ConsumerEvent>> allTags()
+  {
+    return allTags;
+  }
+
+  /**
+   * @return whether the tag only holds events written with the previous number of shards
+   */
+  public boolean isRetiring(AggregateEventTag<ConsumerEvent> tag)
+  {
+    return !tagger.allTags().contains(tag);
+  }
+
+  public int getShards()
+  {
+    return shards;
+  }
+
+  public int getPreviousShards()
+  {
+    return previousShards;
+  }
+}
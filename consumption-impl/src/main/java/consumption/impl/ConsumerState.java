@@ -1,24 +1,325 @@
 package consumption.impl;
 
-import lombok.Value;
-
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
-import com.lightbend.lagom.serialization.CompressedJsonable;
+import org.pcollections.IntTreePMap;
+
+import java.util.*;
 
 /**
  * The state for the {@link ConsumerEntity}.
+ * <p>
+ * The daily consumptions are keyed by epoch day and held in chunks of {@link #CHUNK_SIZE} consecutive days, and
+ * the chunks are held in a persistent map keyed by chunk number. Recording a consumption copies only the affected
+ * day, its chunk and the map's path to that chunk - all other days are shared with the previous state - so the cost
+ * of an update doesn't grow with the household's history while the state stays immutable.
+ * <p>
+ * Only the days within the entity's retention window are held, older days are removed once they have been archived
+ * (see {@link ConsumerEvent.DaysArchived}). The state records the epoch day before which all days have been archived,
+ * and the sequence number of the last archive event.
+ * <p>
+ * The state also holds the keys of the most recent readings that were sent with a reading id (see
+ * {@link RecentReadings}), so that the entity acknowledges a retried reading without recording it again.
+ * <p>
+ * Snapshots are written by the {@link ConsumerStateSerializer}. Snapshots taken before it was bound were written as
+ * JSON, a flat array of daily consumptions sorted by date, so the state keeps its JSON mapping to read them; see
+ * {@link ConsumerStateMigration} for how JSON snapshots taken before the days were keyed by epoch day are read.
  */
-@SuppressWarnings("serial")
-@Value
 @JsonDeserialize
-public final class ConsumerState implements CompressedJsonable {
+public final class ConsumerState {
 
-  public final DailyConsumption[] dailyConsumptions;
+  public static final ConsumerState EMPTY =
+    new ConsumerState(IntTreePMap.empty(), 0, Integer.MIN_VALUE, Integer.MIN_VALUE, 0, RecentReadings.EMPTY);
+
+  private static final int CHUNK_BITS = 5;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // Rough heap sizes on a 64 bit JVM with compressed references, for estimating the size of a state: the state, a
+  // day's DailyConsumption and its PTU values, and a chunk's array and its node in the chunk map
+  private static final int STATE_BYTES = 48;
+  private static final int DAY_BYTES = 232;
+  private static final int CHUNK_BYTES = 184;
+
+  private final IntTreePMap<DailyConsumption[]> chunks;
+  private final int dayCount;
+  private final int newestEpochDay;
+  private final int archivedBefore;
+  private final int archiveSequence;
+  private final RecentReadings recentReadings;
+
+  private ConsumerState(IntTreePMap<DailyConsumption[]> chunks,
+                        int dayCount,
+                        int newestEpochDay,
+                        int archivedBefore,
+                        int archiveSequence,
+                        RecentReadings recentReadings) {
+    this.chunks = chunks;
+    this.dayCount = dayCount;
+    this.newestEpochDay = newestEpochDay;
+    this.archivedBefore = archivedBefore;
+    this.archiveSequence = archiveSequence;
+    this.recentReadings = recentReadings;
+  }
 
-  @JsonCreator
   public ConsumerState(DailyConsumption[] dailyConsumptions) {
-    this.dailyConsumptions = Preconditions.checkNotNull(dailyConsumptions, "ptuConsumptionValues");
+    this(dailyConsumptions, null, null);
+  }
+
+  public ConsumerState(DailyConsumption[] dailyConsumptions, Integer archivedBefore, Integer archiveSequence) {
+    this(dailyConsumptions, archivedBefore, archiveSequence, null);
+  }
+
+  @JsonCreator
+  public ConsumerState(@JsonProperty("dailyConsumptions") DailyConsumption[] dailyConsumptions,
+                       @JsonProperty("archivedBefore") Integer archivedBefore,
+                       @JsonProperty("archiveSequence") Integer archiveSequence,
+                       @JsonProperty("recentReadingKeys") long[] recentReadingKeys) {
+    Preconditions.checkNotNull(dailyConsumptions, "dailyConsumptions");
+    Map<Integer, DailyConsumption[]> newChunks = new HashMap<>();
+    int newest = Integer.MIN_VALUE;
+    for (DailyConsumption dailyConsumption : dailyConsumptions) {
+      int epochDay = dailyConsumption.getEpochDay();
+      newChunks.computeIfAbsent(epochDay >> CHUNK_BITS, chunk -> new DailyConsumption[CHUNK_SIZE])
+        [epochDay & CHUNK_MASK] = dailyConsumption;
+      newest = Math.max(newest, epochDay);
+    }
+    this.chunks = IntTreePMap.from(newChunks);
+    this.dayCount = (int) newChunks.values().stream().flatMap(Arrays::stream).filter(Objects::nonNull).count();
+    this.newestEpochDay = newest;
+    // snapshots taken before days were archived have neither property
+    this.archivedBefore = archivedBefore == null ? Integer.MIN_VALUE : archivedBefore;
+    this.archiveSequence = archiveSequence == null ? 0 : archiveSequence;
+    // nor do snapshots taken before reading ids were kept
+    this.recentReadings = recentReadingKeys == null ? RecentReadings.EMPTY : RecentReadings.of(recentReadingKeys);
+  }
+
+  /**
+   * @return the consumption recorded for the epoch day, or null if nothing has been recorded for it
+   */
+  public DailyConsumption dailyConsumption(int epochDay) {
+    DailyConsumption[] chunk = chunks.get(epochDay >> CHUNK_BITS);
+    return chunk == null ? null : chunk[epochDay & CHUNK_MASK];
+  }
+
+  /**
+   * @return the aggregated consumption for the PTU of the epoch day, 0 if nothing has been recorded for it
+   */
+  public int ptuValue(int epochDay, int ptuIndex) {
+    DailyConsumption dailyConsumption = dailyConsumption(epochDay);
+    return dailyConsumption == null ? 0 : dailyConsumption.getPtuValues()[ptuIndex];
+  }
+
+  /**
+   * @return a new state with the consumption added to the PTU of the epoch day, sharing all other days with this one
+   */
+  public ConsumerState withConsumption(int epochDay, int ptuIndex, int consumption) {
+    int chunkNumber = epochDay >> CHUNK_BITS;
+    int dayIndex = epochDay & CHUNK_MASK;
+    DailyConsumption[] currentChunk = chunks.get(chunkNumber);
+    DailyConsumption current = currentChunk == null ? null : currentChunk[dayIndex];
+    // clone the chunk as state must be immutable
+    DailyConsumption[] newChunk = currentChunk == null ?
+                                  new DailyConsumption[CHUNK_SIZE] :
+                                  Arrays.copyOf(currentChunk, CHUNK_SIZE);
+    newChunk[dayIndex] = (current == null ? new DailyConsumption(epochDay) : current)
+      .withConsumption(ptuIndex, consumption);
+    return new ConsumerState(chunks.plus(chunkNumber, newChunk),
+                             current == null ? dayCount + 1 : dayCount,
+                             Math.max(newestEpochDay, epochDay),
+                             archivedBefore,
+                             archiveSequence,
+                             recentReadings);
+  }
+
+  /**
+   * @return a new state with the reading keys added to the recent readings, keeping at least the window's number
+   * of the most recent keys
+   */
+  public ConsumerState withReadingKeys(long[] readingKeys, int window) {
+    if (readingKeys.length == 0) {
+      return this;
+    }
+    RecentReadings newRecentReadings = recentReadings;
+    for (long readingKey : readingKeys) {
+      newRecentReadings = newRecentReadings.plus(readingKey, window);
+    }
+    return new ConsumerState(chunks, dayCount, newestEpochDay, archivedBefore, archiveSequence, newRecentReadings);
+  }
+
+  /**
+   * @return whether a reading with the key is one of the recent readings
+   */
+  public boolean isRecentReading(long readingKey) {
+    return recentReadings.contains(readingKey);
+  }
+
+  /**
+   * @return the recorded daily consumptions before the epoch day, sorted by date
+   */
+  public List<DailyConsumption> daysBefore(int epochDay) {
+    List<DailyConsumption> result = new ArrayList<>();
+    for (Map.Entry<Integer, DailyConsumption[]> chunk : chunks.entrySet()) {
+      int firstDayOfChunk = chunk.getKey() << CHUNK_BITS;
+      if (firstDayOfChunk >= epochDay) {
+        break;
+      }
+      for (int i = 0; i < CHUNK_SIZE && firstDayOfChunk + i < epochDay; i++) {
+        if (chunk.getValue()[i] != null) {
+          result.add(chunk.getValue()[i]);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return a new state without the days before the epoch day, recording that they have been archived by the
+   * archive event with the sequence number
+   */
+  public ConsumerState withDaysArchived(int epochDay, int sequence) {
+    IntTreePMap<DailyConsumption[]> newChunks = chunks;
+    int removed = 0;
+    for (Map.Entry<Integer, DailyConsumption[]> chunk : chunks.entrySet()) {
+      int firstDayOfChunk = chunk.getKey() << CHUNK_BITS;
+      if (firstDayOfChunk >= epochDay) {
+        break;
+      }
+      DailyConsumption[] keptChunk = null;
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        if (chunk.getValue()[i] != null) {
+          if (firstDayOfChunk + i < epochDay) {
+            removed++;
+          } else {
+            if (keptChunk == null) {
+              keptChunk = new DailyConsumption[CHUNK_SIZE];
+            }
+            keptChunk[i] = chunk.getValue()[i];
+          }
+        }
+      }
+      newChunks = keptChunk == null ? newChunks.minus(chunk.getKey()) : newChunks.plus(chunk.getKey(), keptChunk);
+    }
+    return new ConsumerState(newChunks,
+                             dayCount - removed,
+                             newestEpochDay,
+                             Math.max(archivedBefore, epochDay),
+                             sequence,
+                             recentReadings);
+  }
+
+  /**
+   * @return the newest epoch day with recorded consumption, {@link Integer#MIN_VALUE} if there is none
+   */
+  public int newestEpochDay() {
+    return newestEpochDay;
+  }
+
+  /**
+   * @return the oldest epoch day with recorded consumption, {@link Integer#MAX_VALUE} if there is none
+   */
+  public int oldestEpochDay() {
+    for (Map.Entry<Integer, DailyConsumption[]> chunk : chunks.entrySet()) {
+      for (int i = 0; i < CHUNK_SIZE; i++) {
+        if (chunk.getValue()[i] != null) {
+          return (chunk.getKey() << CHUNK_BITS) + i;
+        }
+      }
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return the epoch day before which all days have been archived, {@link Integer#MIN_VALUE} if none have been
+   */
+  @JsonProperty("archivedBefore")
+  public int getArchivedBefore() {
+    return archivedBefore;
+  }
+
+  /**
+   * @return whether the consumption for the epoch day has to be read from the archive
+   */
+  public boolean isArchived(int epochDay) {
+    return epochDay < archivedBefore;
+  }
+
+  /**
+   * @return the sequence number of the last archive event, 0 if none have been persisted
+   */
+  @JsonProperty("archiveSequence")
+  public int getArchiveSequence() {
+    return archiveSequence;
+  }
+
+  /**
+   * @return the keys of the recent readings, oldest first
+   */
+  @JsonProperty("recentReadingKeys")
+  public long[] getRecentReadingKeys() {
+    return recentReadings.keys();
+  }
+
+  /**
+   * @return an estimate of the heap held by the state, in bytes, counting the days it shares with earlier states
+   */
+  public long estimatedSize() {
+    return STATE_BYTES + (long)dayCount * DAY_BYTES + (long)chunks.size() * CHUNK_BYTES +
+           recentReadings.estimatedSize();
+  }
+
+  /**
+   * @return the number of days with recorded consumption
+   */
+  public int size() {
+    return dayCount;
+  }
+
+  /**
+   * @return all the recorded daily consumptions, sorted by date
+   */
+  @JsonProperty("dailyConsumptions")
+  public DailyConsumption[] getDailyConsumptions() {
+    DailyConsumption[] result = new DailyConsumption[dayCount];
+    int i = 0;
+    // the chunk map iterates in ascending chunk number order
+    for (DailyConsumption[] chunk : chunks.values()) {
+      for (DailyConsumption dailyConsumption : chunk) {
+        if (dailyConsumption != null) {
+          result[i++] = dailyConsumption;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof ConsumerState)) {
+      return false;
+    }
+    ConsumerState other = (ConsumerState) o;
+    return archivedBefore == other.archivedBefore &&
+           archiveSequence == other.archiveSequence &&
+           Arrays.equals(getDailyConsumptions(), other.getDailyConsumptions()) &&
+           recentReadings.equals(other.recentReadings);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(Arrays.hashCode(getDailyConsumptions()), archivedBefore, archiveSequence, recentReadings);
+  }
+
+  @Override
+  public String toString() {
+    return "ConsumerState(dailyConsumptions=" + Arrays.toString(getDailyConsumptions()) +
+           ", archivedBefore=" + archivedBefore +
+           ", archiveSequence=" + archiveSequence +
+           ", recentReadings=" + recentReadings.size() + ")";
   }
 }
@@ -0,0 +1,36 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.lightbend.lagom.serialization.JacksonJsonMigration;
+
+import java.time.LocalDate;
+
+/**
+ * Migrates {@link ConsumerState} snapshots written before the daily consumptions were keyed by epoch day.
+ * <p>
+ * Version 1 snapshots hold each day's date as an ISO-8601 string, which is replaced with its epoch day.
+ */
+public class ConsumerStateMigration extends JacksonJsonMigration
+{
+  @Override
+  public int currentVersion()
+  {
+    return 2;
+  }
+
+  @Override
+  public JsonNode transform(int fromVersion, JsonNode json)
+  {
+    if (fromVersion <= 1) {
+      for (JsonNode dailyConsumption : json.path("dailyConsumptions")) {
+        ObjectNode node = (ObjectNode)dailyConsumption;
+        JsonNode date = node.remove("date");
+        if (date != null) {
+          node.put("epochDay", LocalDate.parse(date.asText()).toEpochDay());
+        }
+      }
+    }
+    return json;
+  }
+}
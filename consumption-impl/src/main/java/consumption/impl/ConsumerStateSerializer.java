@@ -0,0 +1,119 @@
+package consumption.impl;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes {@link ConsumerState} snapshots in a compact binary layout, bound to the state class in
+ * application.conf.
+ * <p>
+ * The layout starts with a format version, followed by the archived before epoch day, the archive sequence and the
+ * number of days. Each day is then written as the difference between its epoch day and the previous one, a bit mask
+ * of its non-zero PTUs and the values of those PTUs, all as varints (see {@link Varints}). The days are written
+ * sorted by date, so the differences are usually a single byte. Since format version 2 they're followed by the number
+ * of recent reading keys and the keys, oldest first, 8 bytes each as they're hashes; version 1 snapshots have none.
+ * <p>
+ * Snapshots taken before this serializer was bound were written as JSON by Lagom's serializer, they are still read
+ * by it as they record its serializer id.
+ */
+public class ConsumerStateSerializer extends SerializerWithStringManifest
+{
+  static final int IDENTIFIER = 1100001;
+  static final String MANIFEST = "ConsumerState";
+  static final byte FORMAT_VERSION = 2;
+
+  @Override
+  public int identifier()
+  {
+    return IDENTIFIER;
+  }
+
+  @Override
+  public String manifest(Object o)
+  {
+    return MANIFEST;
+  }
+
+  @Override
+  public byte[] toBinary(Object o)
+  {
+    if (!(o instanceof ConsumerState)) {
+      throw new IllegalArgumentException("Can't serialize object of type " + o.getClass().getName());
+    }
+    ConsumerState state = (ConsumerState)o;
+    DailyConsumption[] dailyConsumptions = state.getDailyConsumptions();
+    long[] recentReadingKeys = state.getRecentReadingKeys();
+    // a day with every PTU recorded takes around 150 bytes
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 + dailyConsumptions.length * 64 +
+                                                          recentReadingKeys.length * Long.BYTES);
+    out.write(FORMAT_VERSION);
+    Varints.writeSigned(out, state.getArchivedBefore());
+    Varints.writeUnsigned(out, state.getArchiveSequence());
+    Varints.writeUnsigned(out, dailyConsumptions.length);
+    int previousEpochDay = 0;
+    for (DailyConsumption dailyConsumption : dailyConsumptions) {
+      Varints.writeSigned(out, (long)dailyConsumption.getEpochDay() - previousEpochDay);
+      previousEpochDay = dailyConsumption.getEpochDay();
+      int[] ptuValues = dailyConsumption.getPtuValues();
+      long mask = 0;
+      for (int i = 0; i < DailyConsumption.PTUS_PER_DAY; i++) {
+        if (ptuValues[i] != 0) {
+          mask |= 1L << i;
+        }
+      }
+      Varints.writeUnsigned(out, mask);
+      for (int i = 0; i < DailyConsumption.PTUS_PER_DAY; i++) {
+        if (ptuValues[i] != 0) {
+          Varints.writeSigned(out, ptuValues[i]);
+        }
+      }
+    }
+    Varints.writeUnsigned(out, recentReadingKeys.length);
+    ByteBuffer keys = ByteBuffer.allocate(recentReadingKeys.length * Long.BYTES);
+    keys.asLongBuffer().put(recentReadingKeys);
+    out.write(keys.array(), 0, keys.capacity());
+    return out.toByteArray();
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException
+  {
+    if (!MANIFEST.equals(manifest)) {
+      throw new NotSerializableException("Unknown manifest [" + manifest + "]");
+    }
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    try {
+      byte version = in.get();
+      if (version != 1 && version != FORMAT_VERSION) {
+        throw new NotSerializableException("Unknown ConsumerState format version [" + version + "]");
+      }
+      int archivedBefore = (int)Varints.readSigned(in);
+      int archiveSequence = (int)Varints.readUnsigned(in);
+      DailyConsumption[] dailyConsumptions = new DailyConsumption[(int)Varints.readUnsigned(in)];
+      int epochDay = 0;
+      for (int day = 0; day < dailyConsumptions.length; day++) {
+        epochDay += (int)Varints.readSigned(in);
+        long mask = Varints.readUnsigned(in);
+        int[] ptuValues = new int[DailyConsumption.PTUS_PER_DAY];
+        for (int i = 0; i < DailyConsumption.PTUS_PER_DAY; i++) {
+          if ((mask & (1L << i)) != 0) {
+            ptuValues[i] = (int)Varints.readSigned(in);
+          }
+        }
+        dailyConsumptions[day] = new DailyConsumption(epochDay, ptuValues);
+      }
+      long[] recentReadingKeys = null;
+      if (version > 1) {
+        recentReadingKeys = new long[(int)Varints.readUnsigned(in)];
+        in.asLongBuffer().get(recentReadingKeys);
+      }
+      return new ConsumerState(dailyConsumptions, archivedBefore, archiveSequence, recentReadingKeys);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new NotSerializableException("Malformed ConsumerState snapshot : " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package consumption.impl;
+
+import com.datastax.driver.core.Row;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The archive of the daily consumptions that have left the {@link ConsumerEntity} retention window, written by the
+ * {@link ConsumptionArchiveProcessor}.
+ * <p>
+ * Each archive event writes its own row for each of its days, the consumption for a day is the sum of its rows.
+ * The archive is eventually consistent, a day may briefly be missing from it after leaving the entity's state.
+ */
+@Singleton
+public class ConsumptionArchive
+{
+  static final String CREATE_TABLE =
+    "CREATE TABLE IF NOT EXISTS archived_consumption (" +
+    "consumerId text, epochDay int, archiveSequence int, ptuValues list<int>, " +
+    "PRIMARY KEY (consumerId, epochDay, archiveSequence))";
+
+  static final String INSERT =
+    "INSERT INTO archived_consumption (consumerId, epochDay, archiveSequence, ptuValues) VALUES (?, ?, ?, ?)";
+
+  private final CassandraSession session;
+
+  @Inject
+  public ConsumptionArchive(CassandraSession session)
+  {
+    this.session = session;
+  }
+
+  /**
+   * @return the archived aggregated consumption for the PTU of the epoch day, 0 if none has been archived
+   */
+  public CompletionStage<Integer> getPTUValue(String consumerId, int epochDay, int ptuIndex)
+  {
+    return getPTUValues(consumerId, epochDay).thenApply(ptuValues -> ptuValues[ptuIndex]);
+  }
+
+  /**
+   * @return the archived aggregated consumption for each PTU of the epoch day
+   */
+  public CompletionStage<int[]> getPTUValues(String consumerId, int epochDay)
+  {
+    return session.selectAll("SELECT ptuValues FROM archived_consumption WHERE consumerId = ? AND epochDay = ?",
+                             consumerId,
+                             epochDay)
+                  .thenApply(ConsumptionArchive::sumPTUValues);
+  }
+
+  private static int[] sumPTUValues(List<Row> rows)
+  {
+    int[] result = new int[DailyConsumption.PTUS_PER_DAY];
+    for (Row row : rows) {
+      List<Integer> ptuValues = row.getList("ptuValues", Integer.class);
+      for (int i = 0; i < result.length && i < ptuValues.size(); i++) {
+        result[i] += ptuValues.get(i);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,76 @@
+package consumption.impl;
+
+import akka.Done;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.ReadSideProcessor;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraReadSide;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import consumption.impl.ConsumerEvent.DaysArchived;
+import org.pcollections.PSequence;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * Writes the days of each {@link DaysArchived} event to the {@link ConsumptionArchive}.
+ * <p>
+ * Rows are keyed by the event's sequence number, so replaying an event after a failure overwrites its rows rather
+ * than adding its consumption again.
+ */
+public class ConsumptionArchiveProcessor extends ReadSideProcessor<ConsumerEvent>
+{
+  private final CassandraSession session;
+  private final CassandraReadSide readSide;
+  private final ConsumerEventTags eventTags;
+
+  private volatile PreparedStatement insertStatement;
+
+  @Inject
+  public ConsumptionArchiveProcessor(CassandraSession session, CassandraReadSide readSide, ConsumerEventTags eventTags)
+  {
+    this.session = session;
+    this.readSide = readSide;
+    this.eventTags = eventTags;
+  }
+
+  @Override
+  public ReadSideHandler<ConsumerEvent> buildHandler()
+  {
+    return readSide.<ConsumerEvent>builder("consumption-archive")
+      .setGlobalPrepare(() -> session.executeCreateTable(ConsumptionArchive.CREATE_TABLE))
+      .setPrepare(this::prepareInsert)
+      .setEventHandler(DaysArchived.class, this::archiveDays)
+      .build();
+  }
+
+  @Override
+  public PSequence<AggregateEventTag<ConsumerEvent>> aggregateTags()
+  {
+    return eventTags.allTags();
+  }
+
+  private CompletionStage<Done> prepareInsert(AggregateEventTag<ConsumerEvent> tag)
+  {
+    return session.prepare(ConsumptionArchive.INSERT).thenApply(statement -> {
+      insertStatement = statement;
+      return Done.getInstance();
+    });
+  }
+
+  private CompletionStage<List<BoundStatement>> archiveDays(DaysArchived event)
+  {
+    return CompletableFuture.completedFuture(
+      event.getDailyConsumptions().stream()
+           .map(day -> insertStatement.bind(event.getConsumerId(),
+                                            day.getEpochDay(),
+                                            event.getSequence(),
+                                            Arrays.stream(day.getPtuValues()).boxed().collect(Collectors.toList())))
+           .collect(Collectors.toList()));
+  }
+}
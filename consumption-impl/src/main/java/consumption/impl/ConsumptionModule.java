@@ -2,14 +2,30 @@ package consumption.impl;
 
 import com.google.inject.AbstractModule;
 import com.lightbend.lagom.javadsl.server.ServiceGuiceSupport;
+import com.typesafe.config.Config;
 import consumption.api.ConsumptionService;
+import play.Environment;
 
 /**
  * The module that binds the ConsumptionIngestionService so that it can be served.
  */
 public class ConsumptionModule extends AbstractModule implements ServiceGuiceSupport {
+  private final Config config;
+
+  public ConsumptionModule(Environment environment, Config config) {
+    this.config = config;
+  }
+
   @Override
   protected void configure() {
+    // The tags of the configured shards, which new events are tagged with before any component is injected
+    ConsumerEventTags tags = new ConsumerEventTags(config);
+    ConsumerEventTags.install(tags);
+    bind(ConsumerEventTags.class).toInstance(tags);
     bindService(ConsumptionService.class, ConsumptionServiceImpl.class);
+    // Persists the readings held by entities in write-behind mode
+    bind(WriteBehindFlusher.class).asEagerSingleton();
+    // Passivates the least recently used entities when they exceed their memory budget
+    bind(EntityPassivator.class).asEagerSingleton();
   }
 }
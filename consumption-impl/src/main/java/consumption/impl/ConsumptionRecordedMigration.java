@@ -0,0 +1,35 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.lightbend.lagom.serialization.JacksonJsonMigration;
+import consumption.api.Timestamps;
+
+/**
+ * Migrates {@link ConsumerEvent.ConsumptionRecorded} events written to the journal as JSON, before they were written
+ * by the {@link ConsumptionRecordedSerializer}.
+ * <p>
+ * Version 1 events hold the reading's timestamp as an ISO-8601 local date-time string, which is replaced with its
+ * epoch second.
+ */
+public class ConsumptionRecordedMigration extends JacksonJsonMigration
+{
+  @Override
+  public int currentVersion()
+  {
+    return 2;
+  }
+
+  @Override
+  public JsonNode transform(int fromVersion, JsonNode json)
+  {
+    if (fromVersion <= 1) {
+      ObjectNode node = (ObjectNode)json;
+      JsonNode timestamp = node.remove("timestamp");
+      if (timestamp != null) {
+        node.put("epochSecond", Timestamps.parseEpochSecond(timestamp.asText()));
+      }
+    }
+    return json;
+  }
+}
@@ -0,0 +1,88 @@
+package consumption.impl;
+
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.OptionalLong;
+
+/**
+ * Serializes {@link ConsumerEvent.ConsumptionRecorded} events in a compact binary layout, bound to the event class
+ * in application.conf.
+ * <p>
+ * The layout starts with a format version, followed by the length and UTF-8 bytes of the consumer id, the epoch
+ * second and the consumption, as varints (see {@link Varints}). Since format version 2 they're followed by a byte
+ * which is 1 if the reading has a reading key, and then the key's 8 bytes; version 1 events have no key.
+ * <p>
+ * Events written before this serializer was bound were written as JSON by Lagom's serializer, they are still read by
+ * it as they record its serializer id, and are migrated by the {@link ConsumptionRecordedMigration}.
+ */
+public class ConsumptionRecordedSerializer extends SerializerWithStringManifest
+{
+  static final int IDENTIFIER = 1100002;
+  static final String MANIFEST = "ConsumptionRecorded";
+  static final byte FORMAT_VERSION = 2;
+
+  @Override
+  public int identifier()
+  {
+    return IDENTIFIER;
+  }
+
+  @Override
+  public String manifest(Object o)
+  {
+    return MANIFEST;
+  }
+
+  @Override
+  public byte[] toBinary(Object o)
+  {
+    if (!(o instanceof ConsumerEvent.ConsumptionRecorded)) {
+      throw new IllegalArgumentException("Can't serialize object of type " + o.getClass().getName());
+    }
+    ConsumerEvent.ConsumptionRecorded event = (ConsumerEvent.ConsumptionRecorded)o;
+    byte[] consumerId = event.getConsumerId().getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(consumerId.length + 24);
+    out.write(FORMAT_VERSION);
+    Varints.writeUnsigned(out, consumerId.length);
+    out.write(consumerId, 0, consumerId.length);
+    Varints.writeSigned(out, event.getEpochSecond());
+    Varints.writeSigned(out, event.getConsumption());
+    if (event.getReadingKey().isPresent()) {
+      out.write(1);
+      byte[] readingKey = ByteBuffer.allocate(Long.BYTES).putLong(event.getReadingKey().getAsLong()).array();
+      out.write(readingKey, 0, readingKey.length);
+    } else {
+      out.write(0);
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException
+  {
+    if (!MANIFEST.equals(manifest)) {
+      throw new NotSerializableException("Unknown manifest [" + manifest + "]");
+    }
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    try {
+      byte version = in.get();
+      if (version != 1 && version != FORMAT_VERSION) {
+        throw new NotSerializableException("Unknown ConsumptionRecorded format version [" + version + "]");
+      }
+      int consumerIdLength = (int)Varints.readUnsigned(in);
+      String consumerId = new String(bytes, in.position(), consumerIdLength, StandardCharsets.UTF_8);
+      in.position(in.position() + consumerIdLength);
+      long epochSecond = Varints.readSigned(in);
+      int consumption = (int)Varints.readSigned(in);
+      OptionalLong readingKey = version > 1 && in.get() == 1 ? OptionalLong.of(in.getLong()) : OptionalLong.empty();
+      return new ConsumerEvent.ConsumptionRecorded(consumerId, epochSecond, consumption, readingKey);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new NotSerializableException("Malformed ConsumptionRecorded event : " + e.getMessage());
+    }
+  }
+}
@@ -1,31 +1,99 @@
 package consumption.impl;
 
 import akka.Done;
+import akka.NotUsed;
 import akka.japi.Pair;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Source;
 import consumption.api.*;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
 import com.lightbend.lagom.javadsl.api.broker.Topic;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
 import com.lightbend.lagom.javadsl.broker.TopicProducer;
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRef;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.lightbend.lagom.javadsl.persistence.ReadSide;
+import com.google.common.collect.Lists;
+import com.typesafe.config.Config;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of the {@link ConsumptionService}.
  */
 public class ConsumptionServiceImpl implements ConsumptionService
 {
+  private static final Logger log = LoggerFactory.getLogger(ConsumptionServiceImpl.class);
+
+  // The most days whose profile can be read in one call
+  static final int MAX_PROFILE_DAYS = 366;
+  // The bytes of a published event's JSON other than its values:
+  // {"type":"consumption-recorded","consumerId":"","timestamp":"","consumption":}
+  static final int PUBLISHED_JSON_OVERHEAD = 77;
 
   private final PersistentEntityRegistry persistentEntityRegistry;
+  private final ConsumerEventTags eventTags;
+  private final ConsumptionArchive archive;
+  private final Metrics metrics;
+  // The number of readings of a stream that may be awaiting persistence at any one time
+  private final int streamParallelism;
+  // The most readings of a batch call, and of each command recording a consumer's readings of it
+  private final int maxBatchReadings;
+  private final int maxCommandReadings;
+  private final LatencyHistogram ingestLatency;
+  private final LatencyHistogram ingestBatchLatency;
+  private final LatencyHistogram ingestStreamLatency;
+  // The time each tag last published an event, in epoch milliseconds, 0 if it hasn't since the service started
+  private final Map<AggregateEventTag<ConsumerEvent>, AtomicLong> lastPublished = new HashMap<>();
 
   @Inject
-  public ConsumptionServiceImpl(PersistentEntityRegistry persistentEntityRegistry)
+  public ConsumptionServiceImpl(PersistentEntityRegistry persistentEntityRegistry,
+                                ReadSide readSide,
+                                ConsumptionArchive archive,
+                                Metrics metrics,
+                                ConsumerEventTags eventTags,
+                                Config config)
   {
     this.persistentEntityRegistry = persistentEntityRegistry;
+    this.eventTags = eventTags;
+    this.archive = archive;
+    this.metrics = metrics;
+    this.streamParallelism = config.getInt("consumption.ingest.stream-parallelism");
+    this.maxBatchReadings = config.getInt("consumption.ingest.max-batch-readings");
+    this.maxCommandReadings = config.getInt("consumption.ingest.max-command-readings");
+    this.ingestLatency = metrics.histogram("consumption_ingest_seconds", "call", "ingest");
+    // the latency of a whole batch, and of each reading of a stream
+    this.ingestBatchLatency = metrics.histogram("consumption_ingest_seconds", "call", "ingest-batch");
+    this.ingestStreamLatency = metrics.histogram("consumption_ingest_seconds", "call", "ingest-stream");
+    // So that re-sharding can tell when the retiring tags have published their events
+    for (AggregateEventTag<ConsumerEvent> tag : eventTags.allTags()) {
+      AtomicLong tagLastPublished = new AtomicLong();
+      lastPublished.put(tag, tagLastPublished);
+      metrics.gauge("consumption_events_last_published_timestamp_seconds", () -> tagLastPublished.get() / 1000D,
+                    "tag", tag.tag());
+      metrics.gauge("consumption_event_tag_retiring", () -> eventTags.isRetiring(tag) ? 1 : 0,
+                    "tag", tag.tag());
+    }
     persistentEntityRegistry.register(ConsumerEntity.class);
+    readSide.register(ConsumptionArchiveProcessor.class);
   }
 
   @Override
@@ -35,8 +103,50 @@ public class ConsumptionServiceImpl implements ConsumptionService
       // Look up the consumer entity for the given ID.
       PersistentEntityRef<ConsumerCommand> ref = persistentEntityRegistry.refFor(ConsumerEntity.class,
                                                                                  request.getConsumerId());
-      // Ask the entity the GetConsumption command.
-      return ref.ask(new ConsumerCommand.GetConsumption(request.getTimestamp()));
+      // Ask the entity the GetConsumption command, falling back to the archive for days it no longer holds.
+      return ref.ask(new ConsumerCommand.GetConsumption(request.getTimestamp())).thenCompose(reply -> {
+        if (!reply.isArchived()) {
+          return CompletableFuture.completedFuture(reply.getConsumption());
+        }
+        long epochSecond = Timestamps.parseEpochSecond(request.getTimestamp());
+        return archive.getPTUValue(request.getConsumerId(),
+                                   Timestamps.epochDay(epochSecond),
+                                   Timestamps.ptuIndex(epochSecond));
+      });
+    };
+  }
+
+  @Override
+  public ServiceCall<ProfileQuery, ConsumptionProfile> queryProfile()
+  {
+    return request -> {
+      LocalDate fromDate = Timestamps.parseDate(request.getFromDate());
+      LocalDate toDate = request.getToDate().map(Timestamps::parseDate).orElse(fromDate);
+      long days = ChronoUnit.DAYS.between(fromDate, toDate) + 1;
+      if (days < 1 || days > MAX_PROFILE_DAYS) {
+        throw new BadRequest("The profile of 1 to " + MAX_PROFILE_DAYS + " days can be queried");
+      }
+      int fromEpochDay = (int)fromDate.toEpochDay();
+      PersistentEntityRef<ConsumerCommand> ref = persistentEntityRegistry.refFor(ConsumerEntity.class,
+                                                                                 request.getConsumerId());
+      // Ask the entity for all the days at once, then fill in any days it no longer holds from the archive
+      return ref.ask(new ConsumerCommand.GetDailyProfiles(fromEpochDay, (int)days)).thenCompose(reply -> {
+        int[] ptuValues = reply.getPtuValues();
+        int archivedDays = (int)Math.min(days, Math.max(0L, (long)reply.getArchivedBefore() - fromEpochDay));
+        CompletableFuture<?>[] archiveReads = new CompletableFuture[archivedDays];
+        for (int day = 0; day < archivedDays; day++) {
+          int offset = day * Timestamps.PTUS_PER_DAY;
+          archiveReads[day] = archive.getPTUValues(request.getConsumerId(), fromEpochDay + day)
+                                     .thenAccept(archived -> System.arraycopy(archived, 0, ptuValues, offset,
+                                                                              Timestamps.PTUS_PER_DAY))
+                                     .toCompletableFuture();
+        }
+        return CompletableFuture.allOf(archiveReads)
+                                .thenApply(done -> new ConsumptionProfile(request.getConsumerId(),
+                                                                          fromDate.toString(),
+                                                                          (int)days,
+                                                                          ptuValues));
+      });
     };
   }
 
@@ -44,27 +154,133 @@ public class ConsumptionServiceImpl implements ConsumptionService
   public ServiceCall<Consumption, Done> ingest()
   {
     return request -> {
-      System.out.println("Ingesting " + request);
+      log.debug("Ingesting {}", request);
       // Look up the Consumer entity for the given ID.
       PersistentEntityRef<ConsumerCommand> ref =
         persistentEntityRegistry.refFor(ConsumerEntity.class, request.consumerId);
       // Tell the entity to update its consumption
-      return ref.ask(new ConsumerCommand.RecordConsumption(request.timestamp, request.consumption));
+      return ingestLatency.time(() -> ref.ask(new ConsumerCommand.RecordConsumption(request.timestamp,
+                                                                                    request.consumption,
+                                                                                    request.readingId)));
     };
 
   }
 
+  @Override
+  public ServiceCall<PSequence<Consumption>, PSequence<IngestResult>> ingestBatch()
+  {
+    return readings -> {
+      long start = System.nanoTime();
+      log.debug("Ingesting batch of {} readings", readings.size());
+      if (readings.size() > maxBatchReadings) {
+        throw new BadRequest("At most " + maxBatchReadings + " readings can be ingested in one batch");
+      }
+      // Group the reading indexes by consumer, so that each Consumer entity is only asked once per command
+      Map<String, List<Integer>> indexesByConsumer = new LinkedHashMap<>();
+      for (int i = 0; i < readings.size(); i++) {
+        indexesByConsumer.computeIfAbsent(readings.get(i).consumerId, consumerId -> new ArrayList<>()).add(i);
+      }
+      IngestResult[] results = new IngestResult[readings.size()];
+      CompletableFuture<?>[] asks = indexesByConsumer.entrySet().stream().map(entry -> {
+        PersistentEntityRef<ConsumerCommand> ref =
+          persistentEntityRegistry.refFor(ConsumerEntity.class, entry.getKey());
+        // A consumer's readings are recorded by bounded commands, each asked once the previous one has replied
+        CompletionStage<Done> asked = CompletableFuture.completedFuture(Done.getInstance());
+        for (List<Integer> indexes : Lists.partition(entry.getValue(), maxCommandReadings)) {
+          asked = asked.thenCompose(done -> recordBatch(ref, readings, indexes, results));
+        }
+        return asked.toCompletableFuture();
+      }).toArray(CompletableFuture[]::new);
+      return CompletableFuture.allOf(asks).thenApply(done -> {
+        ingestBatchLatency.recordSince(start);
+        return TreePVector.from(Arrays.asList(results));
+      });
+    };
+  }
+
+  /**
+   * Tells the entity to record the readings of the indexes with one command, then maps its reply back onto their
+   * results.
+   */
+  private static CompletionStage<Done> recordBatch(PersistentEntityRef<ConsumerCommand> ref,
+                                                   PSequence<Consumption> readings,
+                                                   List<Integer> indexes,
+                                                   IngestResult[] results)
+  {
+    PSequence<ConsumerCommand.RecordConsumption> commands = TreePVector.from(
+      indexes.stream()
+             .map(readings::get)
+             .map(reading -> new ConsumerCommand.RecordConsumption(reading.timestamp,
+                                                                   reading.consumption,
+                                                                   reading.readingId))
+             .collect(Collectors.toList()));
+    return ref.ask(new ConsumerCommand.RecordConsumptionBatch(commands)).handle((batchResult, failure) -> {
+      for (int i = 0; i < indexes.size(); i++) {
+        Consumption reading = readings.get(indexes.get(i));
+        if (failure != null) {
+          // the entity didn't record the batch, or didn't reply in time, so its readings may be sent again
+          results[indexes.get(i)] = IngestResult.failed(reading, rejectionReason(failure));
+        } else {
+          results[indexes.get(i)] = batchResult.getRejections()
+                                               .get(i)
+                                               .map(reason -> IngestResult.rejected(reading, reason))
+                                               .orElseGet(() -> IngestResult.accepted(reading));
+        }
+      }
+      return Done.getInstance();
+    });
+  }
+
+  @Override
+  public ServiceCall<Source<Consumption, NotUsed>, Source<IngestResult, NotUsed>> ingestStream()
+  {
+    return readings -> CompletableFuture.completedFuture(
+      // mapAsync only pulls another reading once one of the outstanding ones has been persisted,
+      // so persistence latency backpressures the sender, and results are emitted in reading order
+      readings.mapAsync(streamParallelism, reading ->
+        ingestStreamLatency.time(() -> persistentEntityRegistry.refFor(ConsumerEntity.class, reading.consumerId)
+                                                               .ask(new ConsumerCommand.RecordConsumption(
+                                                                 reading.timestamp,
+                                                                 reading.consumption,
+                                                                 reading.readingId)))
+                                .handle((done, failure) -> failure == null ?
+                                                           IngestResult.accepted(reading) :
+                                                           failedResult(reading, failure))
+      )
+    );
+  }
+
+  private static String rejectionReason(Throwable failure)
+  {
+    return String.valueOf(cause(failure).getMessage());
+  }
+
+  /**
+   * @return the reading rejected if the entity found it invalid, or failed, so it may be sent again, otherwise
+   */
+  private static IngestResult failedResult(Consumption reading, Throwable failure)
+  {
+    return cause(failure) instanceof PersistentEntity.InvalidCommandException ?
+           IngestResult.rejected(reading, rejectionReason(failure)) :
+           IngestResult.failed(reading, rejectionReason(failure));
+  }
+
+  private static Throwable cause(Throwable failure)
+  {
+    return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+  }
+
   @Override
   public Topic<consumption.api.ConsumerEvent> consumerEvents()
   {
-    // We want to publish all the shards of the ingestion event
+    // We want to publish all the shards of the ingestion event, including any retiring shards
     return TopicProducer.taggedStreamWithOffset(
-      ConsumerEvent.TAG.allTags(),
+      eventTags.allTags(),
       (tag, offset) ->
 
         // Load the event stream for the passed in shard tag
         persistentEntityRegistry.eventStream(tag, offset)
-                                .map(eventAndOffset -> {
+                                .mapConcat(eventAndOffset -> {
 
                                   // Now we want to convert from the persisted event to the published event.
                                   // Although these two events are currently identical, in future they may
@@ -72,15 +288,19 @@ public class ConsumptionServiceImpl implements ConsumptionService
                                   // a lot of potential trouble in future.
                                   consumption.api.ConsumerEvent eventToPublish;
 
-                                  if (eventAndOffset.first() instanceof ConsumerEvent.ConsumptionRecorded) {
-                                    ConsumerEvent.ConsumptionRecorded consumptionRecorded =
-                                      (ConsumerEvent.ConsumptionRecorded)eventAndOffset.first();
+                                  // A PTU's aggregated readings are published as one reading at its start
+                                  if (eventAndOffset.first() instanceof ConsumerEvent.ConsumptionAdded) {
+                                    ConsumerEvent.ConsumptionAdded consumptionAdded =
+                                      (ConsumerEvent.ConsumptionAdded)eventAndOffset.first();
                                     eventToPublish =
                                       new consumption.api.ConsumerEvent.ConsumptionRecorded(
-                                        consumptionRecorded.getConsumerId(),
-                                        consumptionRecorded.getTimestamp(),
-                                        consumptionRecorded.getConsumption()
+                                        consumptionAdded.getConsumerId(),
+                                        consumptionAdded.timestamp().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                                        consumptionAdded.getConsumption()
                                       );
+                                  } else if (eventAndOffset.first() instanceof ConsumerEvent.DaysArchived) {
+                                    // Archiving is internal to this service, so isn't published
+                                    return Collections.emptyList();
                                   } else {
                                     throw new IllegalArgumentException(
                                       "Unknown event: " +
@@ -89,9 +309,47 @@ public class ConsumptionServiceImpl implements ConsumptionService
 
                                   // We return a pair of the translated event, and its offset, so that
                                   // Lagom can track which offsets have been published.
-                                  return Pair.create(eventToPublish,
-                                                     eventAndOffset.second());
+                                  return Collections.singletonList(Pair.create(eventToPublish,
+                                                                               eventAndOffset.second()));
                                 })
+                                .via(publishedEventMetrics(tag))
     );
   }
+
+  /**
+   * @return a flow counting the events published for the shard tag, and their size, and recording when it last
+   * published one
+   */
+  private <T> Flow<Pair<consumption.api.ConsumerEvent, T>, Pair<consumption.api.ConsumerEvent, T>, NotUsed>
+  publishedEventMetrics(AggregateEventTag<ConsumerEvent> tag)
+  {
+    LongAdder published = metrics.counter("consumption_events_published_total", "tag", tag.tag());
+    LongAdder publishedBytes =
+      metrics.counter("consumption_events_published_estimated_bytes_total", "tag", tag.tag());
+    AtomicLong tagLastPublished = lastPublished.get(tag);
+    return Flow.<Pair<consumption.api.ConsumerEvent, T>>create().map(eventAndOffset -> {
+      published.increment();
+      tagLastPublished.set(System.currentTimeMillis());
+      consumption.api.ConsumerEvent event = eventAndOffset.first();
+      publishedBytes.add(estimatedPublishedSize((consumption.api.ConsumerEvent.ConsumptionRecorded)event));
+      return eventAndOffset;
+    });
+  }
+
+  /**
+   * @return an estimate of the size of the event in bytes as it's published, as JSON with its type, from the length
+   * of its values rather than serializing it a second time. ConsumptionServiceTest checks it against the serialized
+   * event, so that it fails when the published event's fields change.
+   */
+  static int estimatedPublishedSize(consumption.api.ConsumerEvent.ConsumptionRecorded event)
+  {
+    return PUBLISHED_JSON_OVERHEAD + event.getConsumerId().length() + event.getTimestamp().length() +
+           String.valueOf(event.getConsumption()).length();
+  }
+
+  @Override
+  public ServiceCall<NotUsed, String> metrics()
+  {
+    return request -> CompletableFuture.completedFuture(metrics.render());
+  }
 }
@@ -0,0 +1,126 @@
+package consumption.impl;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import lombok.Value;
+
+import javax.inject.Inject;
+import java.time.Duration;
+
+/**
+ * The settings of the {@link ConsumerEntity}, read from the consumption.entity configuration.
+ */
+@Value
+public final class ConsumptionSettings
+{
+  /**
+   * How the entity persists the readings it acknowledges.
+   */
+  public enum Durability
+  {
+    /**
+     * Each reading is persisted as a {@link ConsumerEvent.ConsumptionRecorded} event before it's acknowledged, so an
+     * acknowledged reading is never lost.
+     */
+    PER_READING,
+    /**
+     * Readings are acknowledged once they're added to the entity's in-memory aggregate of their PTU, and each PTU's
+     * aggregate is persisted as a single {@link ConsumerEvent.PtuAggregated} event later (see
+     * {@link PendingReadings}). The acknowledged readings that haven't been persisted yet are lost if the entity's
+     * node fails, up to the write-behind bounds of them for each consumer.
+     */
+    WRITE_BEHIND
+  }
+
+  /**
+   * The number of days, up to and including the newest recorded day, that are held in the entity's state.
+   * Older days are archived, 0 disables archiving.
+   */
+  public final int retentionDays;
+  /**
+   * The number of the consumer's most recent readings sent with a reading id whose ids are held in the entity's
+   * state, so that retries of them are acknowledged without recording them again. 0 disables it.
+   */
+  public final int dedupWindow;
+  public final Durability durability;
+  /**
+   * The most acknowledged readings an entity holds without persisting them, in write-behind mode.
+   */
+  public final int writeBehindMaxReadings;
+  /**
+   * The longest an acknowledged reading is held without being persisted, in write-behind mode, to within the
+   * flush interval.
+   */
+  public final Duration writeBehindMaxDelay;
+  /**
+   * How often entities holding readings for longer than the max delay are told to persist them.
+   */
+  public final Duration writeBehindFlushInterval;
+
+  @Inject
+  public ConsumptionSettings(Config config)
+  {
+    this(config.getInt("consumption.entity.retention-days"),
+         config.getInt("consumption.entity.dedup-window"),
+         Durability.valueOf(config.getString("consumption.entity.durability").toUpperCase().replace('-', '_')),
+         config.getInt("consumption.entity.write-behind.max-readings"),
+         config.getDuration("consumption.entity.write-behind.max-delay"),
+         config.getDuration("consumption.entity.write-behind.flush-interval"));
+    // An entity passivated while holding readings would lose them, so they must be persisted before it's idle for
+    // long enough to be passivated
+    Duration passivateAfter = config.getDuration("lagom.persistence.passivate-after-idle-timeout");
+    Preconditions.checkArgument(durability != Durability.WRITE_BEHIND ||
+                                writeBehindMaxDelay.plus(writeBehindFlushInterval).compareTo(passivateAfter) < 0,
+                                "consumption.entity.write-behind max-delay plus flush-interval must be less than " +
+                                "lagom.persistence.passivate-after-idle-timeout");
+  }
+
+  /**
+   * Settings persisting each reading as it's recorded, without holding reading ids.
+   */
+  public ConsumptionSettings(int retentionDays)
+  {
+    this(retentionDays, 0);
+  }
+
+  /**
+   * Settings persisting each reading as it's recorded.
+   */
+  public ConsumptionSettings(int retentionDays, int dedupWindow)
+  {
+    this(retentionDays, dedupWindow, Durability.PER_READING, 1, Duration.ZERO, Duration.ofSeconds(1));
+  }
+
+  public ConsumptionSettings(int retentionDays,
+                             int dedupWindow,
+                             Durability durability,
+                             int writeBehindMaxReadings,
+                             Duration writeBehindMaxDelay,
+                             Duration writeBehindFlushInterval)
+  {
+    Preconditions.checkArgument(dedupWindow >= 0, "dedupWindow must not be negative");
+    Preconditions.checkArgument(writeBehindMaxReadings > 0, "writeBehindMaxReadings must be positive");
+    Preconditions.checkArgument(!writeBehindFlushInterval.isNegative() && !writeBehindFlushInterval.isZero(),
+                                "writeBehindFlushInterval must be positive");
+    this.retentionDays = retentionDays;
+    this.dedupWindow = dedupWindow;
+    this.durability = Preconditions.checkNotNull(durability, "durability");
+    this.writeBehindMaxReadings = writeBehindMaxReadings;
+    this.writeBehindMaxDelay = Preconditions.checkNotNull(writeBehindMaxDelay, "writeBehindMaxDelay");
+    this.writeBehindFlushInterval = writeBehindFlushInterval;
+  }
+
+  /**
+   * @return the settings of the application configuration on the classpath
+   */
+  public static ConsumptionSettings load()
+  {
+    return new ConsumptionSettings(ConfigFactory.load());
+  }
+
+  public boolean isWriteBehind()
+  {
+    return durability == Durability.WRITE_BEHIND;
+  }
+}
@@ -5,8 +5,14 @@ import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.google.common.base.Preconditions;
 import lombok.Value;
 
+import java.util.Arrays;
+
 /**
- * Value object for storing the consumption values for a specific date.
+ * Value object for storing the consumption values for a specific date, identified by its epoch day
+ * (see {@link java.time.LocalDate#toEpochDay()}).
+ * <p>
+ * The PTU values array is never modified once the object is constructed, {@link #withConsumption(int, int)}
+ * returns a new instance instead.
  *
  * @author Nathan
  * Created : 17/02/2018
@@ -15,19 +21,32 @@ import lombok.Value;
 @JsonDeserialize
 public final class DailyConsumption
 {
-  public static final int[] EMPTY_PTU_VALUES = new int[48];
-  public final String date;
+  public static final int PTUS_PER_DAY = 48;
+  public static final int[] EMPTY_PTU_VALUES = new int[PTUS_PER_DAY];
+  public final int epochDay;
   public final int[] ptuValues;
 
-  public DailyConsumption(String date)
+  public DailyConsumption(int epochDay)
   {
-    this(date, EMPTY_PTU_VALUES);
+    this(epochDay, EMPTY_PTU_VALUES);
   }
 
   @JsonCreator
-  public DailyConsumption(String date, int[] ptuValues)
+  public DailyConsumption(int epochDay, int[] ptuValues)
   {
-    this.date = Preconditions.checkNotNull(date, "date");
+    this.epochDay = epochDay;
     this.ptuValues = Preconditions.checkNotNull(ptuValues, "ptuValues");
+    Preconditions.checkArgument(ptuValues.length == PTUS_PER_DAY, "ptuValues must have %s values", PTUS_PER_DAY);
+  }
+
+  /**
+   * @return a copy of this daily consumption with the consumption added to the value of the PTU at the index
+   */
+  public DailyConsumption withConsumption(int ptuIndex, int consumption)
+  {
+    // clone as state must be immutable
+    int[] newPTUValues = Arrays.copyOf(ptuValues, PTUS_PER_DAY);
+    newPTUValues[ptuIndex] += consumption;
+    return new DailyConsumption(epochDay, newPTUValues);
   }
 }
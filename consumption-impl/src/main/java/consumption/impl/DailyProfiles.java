@@ -0,0 +1,30 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import com.lightbend.lagom.serialization.CompressedJsonable;
+import lombok.Value;
+
+/**
+ * The reply to a {@link ConsumerCommand.GetDailyProfiles} command, holding the aggregated consumption in watts of
+ * every PTU of the requested days, {@link DailyConsumption#PTUS_PER_DAY} values per day in a single flat array.
+ * <p>
+ * The values of days before the archived before epoch day are 0, as those days must be read from the
+ * {@link ConsumptionArchive} instead.
+ */
+@SuppressWarnings("serial")
+@Value
+@JsonDeserialize
+public final class DailyProfiles implements CompressedJsonable
+{
+  public final int[] ptuValues;
+  public final int archivedBefore;
+
+  @JsonCreator
+  public DailyProfiles(int[] ptuValues, int archivedBefore)
+  {
+    this.ptuValues = Preconditions.checkNotNull(ptuValues, "ptuValues");
+    this.archivedBefore = archivedBefore;
+  }
+}
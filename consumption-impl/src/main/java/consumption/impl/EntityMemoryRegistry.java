@@ -0,0 +1,126 @@
+package consumption.impl;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link ConsumerEntity} instances active on this node, with an estimate of the heap each holds and the
+ * {@link System#nanoTime()} each last handled a command.
+ * <p>
+ * Entities record themselves as they handle commands. Lagom doesn't tell an entity when it's passivated, so the
+ * {@link EntityPassivator} expires the entities that have been idle for long enough to have been passivated by Lagom,
+ * and removes the ones it passivates itself.
+ */
+@Singleton
+public class EntityMemoryRegistry
+{
+  private final ConcurrentMap<String, Usage> active = new ConcurrentHashMap<>();
+
+  /**
+   * Records that the consumer's entity has handled a command, and the heap it now holds.
+   */
+  public void used(String consumerId, long estimatedBytes)
+  {
+    active.put(consumerId, new Usage(estimatedBytes, System.nanoTime()));
+  }
+
+  /**
+   * Records that the consumer's entity has been, or is being, passivated.
+   */
+  public void passivated(String consumerId)
+  {
+    active.remove(consumerId);
+  }
+
+  /**
+   * Removes the entities that haven't handled a command since before the nano time.
+   *
+   * @return the number of entities removed
+   */
+  public int expireIdleBefore(long nanos)
+  {
+    int expired = 0;
+    for (Map.Entry<String, Usage> entity : active.entrySet()) {
+      if (entity.getValue().lastUsedNanos - nanos < 0 && active.remove(entity.getKey(), entity.getValue())) {
+        expired++;
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @return the least recently used entities whose estimated heap adds up to at least the bytes, least recently
+   * used first
+   */
+  public List<String> leastRecentlyUsed(long bytes)
+  {
+    List<Map.Entry<String, Usage>> entities = new ArrayList<>(active.entrySet());
+    // nano times are compared by their difference, as they may overflow
+    long now = System.nanoTime();
+    entities.sort(Comparator.comparingLong(entity -> entity.getValue().lastUsedNanos - now));
+    List<String> consumerIds = new ArrayList<>();
+    long total = 0;
+    for (Map.Entry<String, Usage> entity : entities) {
+      if (total >= bytes) {
+        break;
+      }
+      consumerIds.add(entity.getKey());
+      total += entity.getValue().estimatedBytes;
+    }
+    return consumerIds;
+  }
+
+  /**
+   * @return whether the consumer's entity has handled a command since it was last passivated or expired
+   */
+  public boolean isActive(String consumerId)
+  {
+    return active.containsKey(consumerId);
+  }
+
+  public int size()
+  {
+    return active.size();
+  }
+
+  /**
+   * @return the estimated heap held by the active entities, in bytes
+   */
+  public long estimatedBytes()
+  {
+    long total = 0;
+    for (Usage usage : active.values()) {
+      total += usage.estimatedBytes;
+    }
+    return total;
+  }
+
+  /**
+   * @return the estimated heap held by the largest active entity, in bytes, 0 if none are active
+   */
+  public long largestEstimatedBytes()
+  {
+    long largest = 0;
+    for (Usage usage : active.values()) {
+      largest = Math.max(largest, usage.estimatedBytes);
+    }
+    return largest;
+  }
+
+  private static final class Usage
+  {
+    private final long estimatedBytes;
+    private final long lastUsedNanos;
+
+    private Usage(long estimatedBytes, long lastUsedNanos)
+    {
+      this.estimatedBytes = estimatedBytes;
+      this.lastUsedNanos = lastUsedNanos;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package consumption.impl;
+
+import akka.Done;
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.ReceiveTimeout;
+import akka.cluster.sharding.ClusterSharding;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import com.typesafe.config.Config;
+import metrics.Metrics;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the estimated heap held by the Consumer entities on this node within the configured memory budget, by
+ * passivating the least recently used entities once it's exceeded, and reports the entities' estimated heap.
+ * <p>
+ * Lagom only passivates an entity once it has been idle for lagom.persistence.passivate-after-idle-timeout, and has
+ * no API to passivate one sooner. Its entity actors passivate themselves when they receive a {@link ReceiveTimeout},
+ * which is how that timeout reaches them, so the passivator sends one to each entity it passivates. An entity in
+ * write-behind mode is told to persist its pending readings first, and persists the readings it handles after that
+ * straight away, so none are lost when it stops. An entity that has handled a client's command since then is in use
+ * again, so it isn't passivated.
+ * <p>
+ * The entity actors are found by the path cluster sharding gives them (see {@link #entity}), which isn't part of
+ * Lagom's API, so EntityPassivatorTest checks it against the running entities. The budget is off unless it's
+ * configured, and the entities Lagom is about to passivate for being idle are left to it, so that passivating them
+ * doesn't recover them only to stop them again.
+ */
+@Singleton
+public class EntityPassivator
+{
+  // Lagom's sharding type name for the entities, the entity's class name unless it overrides entityTypeName()
+  private static final String ENTITY_TYPE_NAME = ConsumerEntity.class.getSimpleName();
+  // Once over the budget, entities are passivated until their estimated heap is this fraction of it, so that the
+  // budget isn't exceeded again straight away
+  private static final double LOW_WATERMARK = 0.9;
+
+  private final ActorSystem system;
+  private final PersistentEntityRegistry persistentEntityRegistry;
+  private final EntityMemoryRegistry registry;
+  private final ConsumptionSettings settings;
+  private final long budgetBytes;
+  private final long passivateAfterIdleNanos;
+  private final long checkIntervalNanos;
+  private final LongAdder passivations;
+
+  @Inject
+  public EntityPassivator(ActorSystem system,
+                          PersistentEntityRegistry persistentEntityRegistry,
+                          EntityMemoryRegistry registry,
+                          ConsumptionSettings settings,
+                          Metrics metrics,
+                          Config config)
+  {
+    this.system = system;
+    this.persistentEntityRegistry = persistentEntityRegistry;
+    this.registry = registry;
+    this.settings = settings;
+    this.budgetBytes = (long)(config.getDouble("consumption.entity.memory-budget.heap-fraction") *
+                              Runtime.getRuntime().maxMemory());
+    this.passivateAfterIdleNanos = config.getDuration("lagom.persistence.passivate-after-idle-timeout").toNanos();
+    this.passivations = metrics.counter("consumption_entity_budget_passivations_total");
+    metrics.gauge("consumption_entity_active", registry::size);
+    metrics.gauge("consumption_entity_estimated_bytes", registry::estimatedBytes);
+    metrics.gauge("consumption_entity_largest_estimated_bytes", registry::largestEstimatedBytes);
+    metrics.gauge("consumption_entity_memory_budget_bytes", () -> budgetBytes);
+    this.checkIntervalNanos = config.getDuration("consumption.entity.memory-budget.check-interval").toNanos();
+    FiniteDuration interval = FiniteDuration.create(checkIntervalNanos, TimeUnit.NANOSECONDS);
+    system.scheduler().schedule(interval, interval, this::check, system.dispatcher());
+  }
+
+  /**
+   * Forgets the entities Lagom has passivated for being idle, or will have by the next check, then passivates the
+   * least recently used entities if the rest exceed the budget.
+   */
+  private void check()
+  {
+    registry.expireIdleBefore(System.nanoTime() - passivateAfterIdleNanos + checkIntervalNanos);
+    long estimatedBytes = registry.estimatedBytes();
+    if (budgetBytes <= 0 || estimatedBytes <= budgetBytes) {
+      return;
+    }
+    List<String> consumerIds = registry.leastRecentlyUsed(estimatedBytes - (long)(budgetBytes * LOW_WATERMARK));
+    System.out.println("Passivating " + consumerIds.size() + " entities holding an estimated " + estimatedBytes +
+                       " bytes, over the budget of " + budgetBytes);
+    for (String consumerId : consumerIds) {
+      if (!registry.isActive(consumerId)) {
+        // it has been passivated since, asking it would only recover it
+        continue;
+      }
+      // forget it first, so that a command it handles before it's passivated records it again
+      registry.passivated(consumerId);
+      persistPending(consumerId).whenComplete((done, failure) -> {
+        if (failure != null) {
+          // it stays active, and is recorded again when it next handles a command
+          System.out.println("Not passivating " + consumerId + ", its write-behind readings weren't persisted : " +
+                             failure);
+          return;
+        }
+        if (registry.isActive(consumerId)) {
+          // it has handled a client's command since it was flushed, so it's in use again
+          System.out.println("Not passivating " + consumerId + ", it has been used again");
+          return;
+        }
+        passivations.increment();
+        entity(system, consumerId).tell(ReceiveTimeout.getInstance(), ActorRef.noSender());
+      });
+    }
+  }
+
+  private CompletionStage<Done> persistPending(String consumerId)
+  {
+    if (!settings.isWriteBehind()) {
+      return CompletableFuture.completedFuture(Done.getInstance());
+    }
+    return persistentEntityRegistry.refFor(ConsumerEntity.class, consumerId)
+                                   .ask(ConsumerCommand.FlushPending.BEFORE_PASSIVATION);
+  }
+
+  /**
+   * @return the consumer's entity actor on this node: cluster sharding names it by its encoded entity id, as a child
+   * of its shard's actor, which is a child of the entities' shard region
+   */
+  static ActorSelection entity(ActorSystem system, String consumerId)
+  {
+    ActorRef region = ClusterSharding.get(system).shardRegion(ENTITY_TYPE_NAME);
+    return system.actorSelection(region.path().toStringWithoutAddress() + "/*/" + encode(consumerId));
+  }
+
+  /**
+   * @return the entity id as it's encoded in the name of its actor by cluster sharding
+   */
+  private static String encode(String consumerId)
+  {
+    try {
+      return URLEncoder.encode(consumerId, "utf-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
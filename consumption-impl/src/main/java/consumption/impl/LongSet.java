@@ -0,0 +1,149 @@
+package consumption.impl;
+
+import java.util.Arrays;
+
+/**
+ * A set of longs in an open addressed table with linear probing, so that the reading keys of a consumer can be looked
+ * up without boxing them or scanning them all. The table is kept at most three quarters full, doubling as it grows,
+ * and a removed key's slot is refilled by shifting back the keys probed after it rather than leaving a tombstone.
+ * <p>
+ * 0 marks a free slot, so whether the set holds the key 0 is held separately. It isn't thread safe.
+ */
+final class LongSet
+{
+  private static final int MIN_CAPACITY = 16;
+  // Rough heap size of the set and its table's array header
+  private static final int SET_BYTES = 48;
+
+  private long[] table = new long[MIN_CAPACITY];
+  // the number of keys in the table, so not counting 0
+  private int count;
+  private boolean hasZero;
+
+  /**
+   * @return whether the key was added, false if the set already held it
+   */
+  public boolean add(long key)
+  {
+    if (key == 0) {
+      boolean added = !hasZero;
+      hasZero = true;
+      return added;
+    }
+    int slot = slot(key);
+    while (table[slot] != 0) {
+      if (table[slot] == key) {
+        return false;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    table[slot] = key;
+    if (++count * 4 > table.length * 3) {
+      resize(table.length * 2);
+    }
+    return true;
+  }
+
+  public boolean contains(long key)
+  {
+    if (key == 0) {
+      return hasZero;
+    }
+    int slot = slot(key);
+    while (table[slot] != 0) {
+      if (table[slot] == key) {
+        return true;
+      }
+      slot = (slot + 1) & (table.length - 1);
+    }
+    return false;
+  }
+
+  public void remove(long key)
+  {
+    if (key == 0) {
+      hasZero = false;
+      return;
+    }
+    int mask = table.length - 1;
+    int slot = slot(key);
+    while (table[slot] != key) {
+      if (table[slot] == 0) {
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    // shift back each following key of the run that would otherwise no longer be found from its own slot
+    int free = slot;
+    for (int next = (free + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+      int home = slot(table[next]);
+      if (((next - home) & mask) >= ((next - free) & mask)) {
+        table[free] = table[next];
+        free = next;
+      }
+    }
+    table[free] = 0;
+    count--;
+  }
+
+  /**
+   * Removes every key, releasing the table if it has grown.
+   */
+  public void clear()
+  {
+    if (table.length > MIN_CAPACITY) {
+      table = new long[MIN_CAPACITY];
+    } else {
+      Arrays.fill(table, 0);
+    }
+    count = 0;
+    hasZero = false;
+  }
+
+  public int size()
+  {
+    return hasZero ? count + 1 : count;
+  }
+
+  /**
+   * @return an estimate of the heap held by the set, in bytes
+   */
+  public long estimatedSize()
+  {
+    return SET_BYTES + (long)table.length * Long.BYTES;
+  }
+
+  /**
+   * @return an estimate of the heap held by a set of the number of keys, in bytes
+   */
+  static long estimatedSize(int keys)
+  {
+    int capacity = MIN_CAPACITY;
+    while (keys * 4 > capacity * 3) {
+      capacity *= 2;
+    }
+    return SET_BYTES + (long)capacity * Long.BYTES;
+  }
+
+  private int slot(long key)
+  {
+    // reading keys are hashes already, but keys such as small numbers are spread before taking the table's share
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int)(hash >>> 32) & (table.length - 1);
+  }
+
+  private void resize(int capacity)
+  {
+    long[] oldTable = table;
+    table = new long[capacity];
+    for (long key : oldTable) {
+      if (key != 0) {
+        int slot = slot(key);
+        while (table[slot] != 0) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        table[slot] = key;
+      }
+    }
+  }
+}
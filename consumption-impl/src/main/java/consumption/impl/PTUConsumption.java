@@ -0,0 +1,34 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.lightbend.lagom.serialization.Jsonable;
+import lombok.Value;
+
+/**
+ * The reply to a {@link ConsumerCommand.GetConsumption} command, holding the aggregated consumption in watts of the
+ * PTU, or flagging that the PTU's day has left the entity's retention window and must be read from the
+ * {@link ConsumptionArchive} instead.
+ */
+@SuppressWarnings("serial")
+@Value
+@JsonDeserialize
+public final class PTUConsumption implements Jsonable
+{
+  public static final PTUConsumption ARCHIVED = new PTUConsumption(0, true);
+
+  public final int consumption;
+  public final boolean archived;
+
+  @JsonCreator
+  public PTUConsumption(int consumption, boolean archived)
+  {
+    this.consumption = consumption;
+    this.archived = archived;
+  }
+
+  public static PTUConsumption of(int consumption)
+  {
+    return new PTUConsumption(consumption, false);
+  }
+}
@@ -0,0 +1,158 @@
+package consumption.impl;
+
+import consumption.api.Timestamps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The readings that a {@link ConsumerEntity} in write-behind mode has acknowledged but not yet persisted, summed by
+ * PTU (see {@link ConsumptionSettings.Durability#WRITE_BEHIND}).
+ * <p>
+ * They're held by the entity instance rather than in its {@link ConsumerState}, which only changes as events are
+ * applied, so they're lost if the entity stops before they're drained into {@link ConsumerEvent.PtuAggregated}
+ * events. It's only used from the entity's command handlers, one command at a time, so it isn't thread safe.
+ * <p>
+ * The keys of the readings sent with a reading id are held with them, so that retries of them are recognised before
+ * they're persisted, and are persisted in the PTU's event (see {@link RecentReadings}). They're also indexed in a
+ * {@link LongSet}, so that recognising a retry doesn't scan every pending PTU's keys.
+ */
+final class PendingReadings
+{
+  // Rough heap sizes of the pending readings, and of a PTU's readings and its entry in the PTU map
+  private static final int READINGS_BYTES = 48;
+  private static final int PTU_BYTES = 104;
+
+  // PTU number (the epoch day times the PTUs per day, plus the PTU index) -> its pending readings
+  private final TreeMap<Long, Ptu> ptus = new TreeMap<>();
+  private int readings;
+  // the keys of every PTU's pending readings
+  private final LongSet keys = new LongSet();
+  // The System.nanoTime() the oldest pending reading was added
+  private long oldestNanos;
+
+  public boolean isEmpty()
+  {
+    return readings == 0;
+  }
+
+  /**
+   * @return the number of pending readings
+   */
+  public int readings()
+  {
+    return readings;
+  }
+
+  /**
+   * @return an estimate of the heap held by the pending readings, in bytes
+   */
+  public long estimatedSize()
+  {
+    long size = READINGS_BYTES + keys.estimatedSize();
+    for (Ptu ptu : ptus.values()) {
+      size += PTU_BYTES + (long)ptu.readingKeys.length * Long.BYTES;
+    }
+    return size;
+  }
+
+  /**
+   * @return the {@link System#nanoTime()} the oldest pending reading was added
+   */
+  public long oldestNanos()
+  {
+    return oldestNanos;
+  }
+
+  /**
+   * @return whether the PTU is later than every PTU with pending readings, i.e. the meter has moved on from them
+   */
+  public boolean isAfterPending(int epochDay, int ptuIndex)
+  {
+    return !ptus.isEmpty() && ptuNumber(epochDay, ptuIndex) > ptus.lastKey();
+  }
+
+  public void add(int epochDay, int ptuIndex, int consumption, long[] readingKeys, long nanos)
+  {
+    if (readings == 0) {
+      oldestNanos = nanos;
+    }
+    Ptu ptu = ptus.computeIfAbsent(ptuNumber(epochDay, ptuIndex), number -> new Ptu());
+    ptu.consumption += consumption;
+    ptu.readings++;
+    for (long readingKey : readingKeys) {
+      if (ptu.keyCount == ptu.readingKeys.length) {
+        ptu.readingKeys = Arrays.copyOf(ptu.readingKeys, Math.max(4, ptu.keyCount * 2));
+      }
+      ptu.readingKeys[ptu.keyCount++] = readingKey;
+      keys.add(readingKey);
+    }
+    readings++;
+  }
+
+  /**
+   * @return whether a pending reading has the reading key
+   */
+  public boolean containsReading(long readingKey)
+  {
+    return keys.contains(readingKey);
+  }
+
+  /**
+   * @return the pending consumption of the PTU, 0 if it has none
+   */
+  public int consumption(int epochDay, int ptuIndex)
+  {
+    Ptu ptu = ptus.get(ptuNumber(epochDay, ptuIndex));
+    return ptu == null ? 0 : ptu.consumption;
+  }
+
+  /**
+   * Adds the pending consumption of the days to their PTU values, which hold {@link Timestamps#PTUS_PER_DAY} values
+   * for each day from the epoch day.
+   */
+  public void addTo(int fromEpochDay, int[] ptuValues)
+  {
+    long from = ptuNumber(fromEpochDay, 0);
+    for (Map.Entry<Long, Ptu> ptu : ptus.subMap(from, from + ptuValues.length).entrySet()) {
+      ptuValues[(int)(ptu.getKey() - from)] += ptu.getValue().consumption;
+    }
+  }
+
+  /**
+   * Removes the pending readings.
+   *
+   * @return an event for each PTU with pending readings, in PTU order
+   */
+  public List<ConsumerEvent.PtuAggregated> drain(String consumerId)
+  {
+    List<ConsumerEvent.PtuAggregated> events = new ArrayList<>(ptus.size());
+    for (Map.Entry<Long, Ptu> ptu : ptus.entrySet()) {
+      events.add(new ConsumerEvent.PtuAggregated(consumerId,
+                                                 ptu.getKey() * Timestamps.SECONDS_PER_PTU,
+                                                 ptu.getValue().consumption,
+                                                 ptu.getValue().readings,
+                                                 Arrays.copyOf(ptu.getValue().readingKeys, ptu.getValue().keyCount)));
+    }
+    ptus.clear();
+    keys.clear();
+    readings = 0;
+    return events;
+  }
+
+  private static long ptuNumber(int epochDay, int ptuIndex)
+  {
+    return (long)epochDay * Timestamps.PTUS_PER_DAY + ptuIndex;
+  }
+
+  private static final class Ptu
+  {
+    private int consumption;
+    private int readings;
+    private long[] readingKeys = new long[0];
+    private int keyCount;
+  }
+}
@@ -0,0 +1,179 @@
+package consumption.impl;
+
+import com.google.common.hash.Hashing;
+import org.pcollections.IntTreePMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The keys of the consumer's most recently recorded readings that were sent with a reading id, held in
+ * {@link ConsumerState} so that a retried reading can be recognised and acknowledged without recording it again.
+ * <p>
+ * A key is a 64 bit hash of the reading id, so ids of any length take 8 bytes, and two different ids of a consumer
+ * are only mistaken for each other with a negligible probability. The keys are held in the order they were recorded,
+ * in chunks of {@link #CHUNK_SIZE} keys in a persistent map keyed by chunk number, like the days of the state: adding
+ * a key copies only the newest chunk, and the oldest chunk is dropped once the keys after it fill the window. So at
+ * least the window's number of keys are held, and fewer than a chunk more. A key that's already held isn't added
+ * again, as the entity only adds the keys of the readings it records, so the keys held are distinct.
+ * <p>
+ * The keys held are also indexed in a {@link LongSet}, so that checking each reading for a retry doesn't scan the
+ * window. The index is updated in place as keys are added, so it's handed on to the readings each {@link #plus} returns
+ * and only used by the newest readings derived from it, which are the entity's. Older readings, e.g. those a test
+ * holds on to, scan their chunks instead, and adding a key to them indexes their keys again. The index is built
+ * as the recent readings are read from a snapshot's keys by {@link #of}.
+ */
+final class RecentReadings
+{
+  static final RecentReadings EMPTY = new RecentReadings(IntTreePMap.empty(), 0, 0, null);
+
+  private static final int CHUNK_BITS = 5;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  // Rough heap sizes of the readings, and of a chunk's array header and its node in the chunk map
+  private static final int READINGS_BYTES = 32;
+  private static final int CHUNK_BYTES = 56;
+
+  // chunk number -> the keys of the chunk, the newest chunk only as long as the keys added to it
+  private final IntTreePMap<long[]> chunks;
+  // the number of keys held, and the number ever added, which numbers the next key
+  private final int size;
+  private final int added;
+  // the index of the keys, null for the empty readings, which are shared by every entity
+  private final Index index;
+
+  private RecentReadings(IntTreePMap<long[]> chunks, int size, int added, Index index)
+  {
+    this.chunks = chunks;
+    this.size = size;
+    this.added = added;
+    this.index = index;
+    if (index != null) {
+      index.owner = this;
+    }
+  }
+
+  /**
+   * @return the key of the reading id
+   */
+  static long key(String readingId)
+  {
+    return Hashing.murmur3_128().hashString(readingId, StandardCharsets.UTF_8).asLong();
+  }
+
+  /**
+   * @return the keys, oldest first, without dropping any of them
+   */
+  static RecentReadings of(long[] keys)
+  {
+    RecentReadings readings = EMPTY;
+    for (long key : keys) {
+      readings = readings.plus(key, Integer.MAX_VALUE);
+    }
+    return readings;
+  }
+
+  public boolean contains(long key)
+  {
+    if (index != null && index.owner == this) {
+      return index.keys.contains(key);
+    }
+    for (long[] chunk : chunks.values()) {
+      for (long chunkKey : chunk) {
+        if (chunkKey == key) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return new recent readings with the key added, dropping the oldest chunk of keys once the keys after it number
+   * the window, the keys are shared with these readings other than the newest chunk's. These readings if the key is
+   * already held.
+   */
+  public RecentReadings plus(long key, int window)
+  {
+    if (window <= 0) {
+      return EMPTY;
+    }
+    if (contains(key)) {
+      return this;
+    }
+    Index newIndex = index != null && index.owner == this ? index : new Index(keys());
+    newIndex.keys.add(key);
+    int chunkNumber = added >> CHUNK_BITS;
+    long[] chunk = chunks.get(chunkNumber);
+    long[] newChunk = chunk == null ? new long[1] : Arrays.copyOf(chunk, chunk.length + 1);
+    newChunk[added & CHUNK_MASK] = key;
+    IntTreePMap<long[]> newChunks = chunks.plus(chunkNumber, newChunk);
+    int newSize = size + 1;
+    // the map iterates in ascending chunk number order, so the first chunk is the oldest
+    int oldestChunkNumber = newChunks.keySet().iterator().next();
+    while (oldestChunkNumber < chunkNumber && newSize - CHUNK_SIZE >= window) {
+      for (long droppedKey : newChunks.get(oldestChunkNumber)) {
+        newIndex.keys.remove(droppedKey);
+      }
+      newChunks = newChunks.minus(oldestChunkNumber++);
+      newSize -= CHUNK_SIZE;
+    }
+    return new RecentReadings(newChunks, newSize, added + 1, newIndex);
+  }
+
+  /**
+   * @return the keys held, oldest first
+   */
+  public long[] keys()
+  {
+    long[] keys = new long[size];
+    int i = 0;
+    for (long[] chunk : chunks.values()) {
+      System.arraycopy(chunk, 0, keys, i, chunk.length);
+      i += chunk.length;
+    }
+    return keys;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return an estimate of the heap held by the readings, in bytes
+   */
+  public long estimatedSize()
+  {
+    return READINGS_BYTES + (long)size * Long.BYTES + (long)chunks.size() * CHUNK_BYTES +
+           (size == 0 ? 0 : LongSet.estimatedSize(size));
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    return o == this || o instanceof RecentReadings && Arrays.equals(keys(), ((RecentReadings)o).keys());
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return Arrays.hashCode(keys());
+  }
+
+  /**
+   * The keys held by the readings that own it, the newest it has been handed on to.
+   */
+  private static final class Index
+  {
+    final LongSet keys = new LongSet();
+    RecentReadings owner;
+
+    Index(long[] keys)
+    {
+      for (long key : keys) {
+        this.keys.add(key);
+      }
+    }
+  }
+}
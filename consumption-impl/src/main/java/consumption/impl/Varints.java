@@ -0,0 +1,53 @@
+package consumption.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length integer encoding for the binary serializers: 7 bits per byte, least significant group first,
+ * with the high bit set on every byte but the last. Signed values are zigzag encoded first so that small negative
+ * values are as short as small positive ones.
+ */
+final class Varints
+{
+  private Varints()
+  {
+  }
+
+  static void writeUnsigned(ByteArrayOutputStream out, long value)
+  {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int)value);
+  }
+
+  static void writeSigned(ByteArrayOutputStream out, long value)
+  {
+    writeUnsigned(out, (value << 1) ^ (value >> 63));
+  }
+
+  /**
+   * @throws BufferUnderflowException if the buffer ends before the value does
+   */
+  static long readUnsigned(ByteBuffer in)
+  {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      result |= (long)(b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  static long readSigned(ByteBuffer in)
+  {
+    long value = readUnsigned(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,87 @@
+package consumption.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.lightbend.lagom.javadsl.persistence.PersistentEntityRegistry;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.concurrent.duration.FiniteDuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the Consumer entities on this node to persist the readings they've acknowledged in write-behind mode, once
+ * they've held them for the configured max delay, and when the service shuts down.
+ * <p>
+ * Lagom doesn't tell an entity when it's about to be passivated, so the max delay, plus the interval it's checked at,
+ * must be shorter than the passivation timeout; {@link ConsumptionSettings} checks that it is. Readings are still
+ * lost if the node fails, or its shards are handed over to another node, before they're persisted.
+ */
+@Singleton
+public class WriteBehindFlusher
+{
+  private static final Logger log = LoggerFactory.getLogger(WriteBehindFlusher.class);
+
+  // The most entities told to persist their readings at once
+  private static final int FLUSH_PARALLELISM = 64;
+
+  private final PersistentEntityRegistry persistentEntityRegistry;
+  private final WriteBehindRegistry registry;
+  private final Materializer materializer;
+
+  @Inject
+  public WriteBehindFlusher(ActorSystem system,
+                            PersistentEntityRegistry persistentEntityRegistry,
+                            WriteBehindRegistry registry,
+                            ConsumptionSettings settings,
+                            Materializer materializer,
+                            Metrics metrics)
+  {
+    this.persistentEntityRegistry = persistentEntityRegistry;
+    this.registry = registry;
+    this.materializer = materializer;
+    metrics.gauge("consumption_entity_write_behind_pending_consumers", registry::size);
+    if (!settings.isWriteBehind()) {
+      return;
+    }
+    FiniteDuration interval = FiniteDuration.create(settings.getWriteBehindFlushInterval().toNanos(),
+                                                    TimeUnit.NANOSECONDS);
+    long maxDelayNanos = settings.getWriteBehindMaxDelay().toNanos();
+    system.scheduler().schedule(interval, interval,
+                                () -> flush(registry.pendingBefore(System.nanoTime() - maxDelayNanos)),
+                                system.dispatcher());
+    // The service has stopped taking requests by this phase, and the entities are still running
+    CoordinatedShutdown.get(system).addTask(CoordinatedShutdown.PhaseServiceStop(),
+                                            "flush-write-behind-readings",
+                                            () -> flush(registry.pending()));
+  }
+
+  /**
+   * @return a stage completed once each of the consumers' entities has persisted its readings, or failed to
+   */
+  private CompletionStage<Done> flush(List<String> consumerIds)
+  {
+    if (!consumerIds.isEmpty()) {
+      log.debug("Persisting the write-behind readings of {} consumers", consumerIds.size());
+    }
+    return Source.from(consumerIds)
+                 .mapAsyncUnordered(FLUSH_PARALLELISM, consumerId ->
+                   persistentEntityRegistry.refFor(ConsumerEntity.class, consumerId)
+                                           .ask(ConsumerCommand.FlushPending.INSTANCE)
+                                           .exceptionally(failure -> {
+                                             System.out.println("Failed to persist the write-behind readings of " +
+                                                                consumerId + " : " + failure);
+                                             return Done.getInstance();
+                                           }))
+                 .runWith(Sink.ignore(), materializer);
+  }
+}
@@ -0,0 +1,64 @@
+package consumption.impl;
+
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The consumers whose {@link ConsumerEntity} on this node holds readings it has acknowledged but not yet persisted,
+ * in write-behind mode, with the {@link System#nanoTime()} the oldest of them was acknowledged.
+ * <p>
+ * Entities register and deregister themselves as they add and persist readings, and the {@link WriteBehindFlusher}
+ * tells the entities that have held readings for too long to persist them.
+ */
+@Singleton
+public class WriteBehindRegistry
+{
+  private final ConcurrentMap<String, Long> pendingSince = new ConcurrentHashMap<>();
+
+  /**
+   * Records that the consumer's entity holds readings, the oldest acknowledged at the nano time.
+   */
+  public void pending(String consumerId, long oldestNanos)
+  {
+    pendingSince.put(consumerId, oldestNanos);
+  }
+
+  /**
+   * Records that the consumer's entity holds no readings.
+   */
+  public void flushed(String consumerId)
+  {
+    pendingSince.remove(consumerId);
+  }
+
+  /**
+   * @return the consumers whose entities have held readings since before the nano time
+   */
+  public List<String> pendingBefore(long nanos)
+  {
+    List<String> consumerIds = new ArrayList<>();
+    for (Map.Entry<String, Long> pending : pendingSince.entrySet()) {
+      if (pending.getValue() - nanos < 0) {
+        consumerIds.add(pending.getKey());
+      }
+    }
+    return consumerIds;
+  }
+
+  /**
+   * @return the consumers whose entities hold readings
+   */
+  public List<String> pending()
+  {
+    return new ArrayList<>(pendingSince.keySet());
+  }
+
+  public int size()
+  {
+    return pendingSince.size();
+  }
+}
@@ -6,11 +6,16 @@ import akka.testkit.JavaTestKit;
 import com.lightbend.lagom.javadsl.persistence.PersistentEntity;
 import com.lightbend.lagom.javadsl.testkit.PersistentEntityTestDriver;
 import com.lightbend.lagom.javadsl.testkit.PersistentEntityTestDriver.Outcome;
+import metrics.Metrics;
 import org.jetbrains.annotations.NotNull;
 import org.junit.*;
+import org.pcollections.TreePVector;
 
 import java.time.*;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.*;
@@ -18,7 +23,7 @@ import static org.junit.Assert.*;
 public class ConsumerEntityTest
 {
   protected static final LocalDate TEST_DATE = LocalDate.of(2018, Month.APRIL, 1);
-  private static final String TEST_DATE_STRING = TEST_DATE.toString();
+  private static final int TEST_EPOCH_DAY = (int)TEST_DATE.toEpochDay();
   static ActorSystem system;
 
   @BeforeClass
@@ -44,7 +49,7 @@ public class ConsumerEntityTest
 
     Outcome<ConsumerEvent, ConsumerState> outcome1 =
       driver.run(new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
-    assertEquals(0, outcome1.getReplies().get(0));
+    assertEquals(PTUConsumption.of(0), outcome1.getReplies().get(0));
     assertEquals(Collections.emptyList(), outcome1.issues());
   }
 
@@ -75,13 +80,32 @@ public class ConsumerEntityTest
       driver.run(new ConsumerCommand.RecordConsumption(timestampStr, 123),
                  new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
     assertEquals(1, outcome1.events().size());
-    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", timestampStr, 123),
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(timestampStr), 123),
                  outcome1.events().get(0));
-    assertArrayEquals(new Object[]{new DailyConsumption(TEST_DATE_STRING, createPTUValues(0, 123))},
+    assertArrayEquals(new Object[]{new DailyConsumption(TEST_EPOCH_DAY, createPTUValues(0, 123))},
                       outcome1.state().getDailyConsumptions());
     assertEquals(2, outcome1.getReplies().size());
     assertEquals(Done.getInstance(), outcome1.getReplies().get(0));
-    assertEquals(123, outcome1.getReplies().get(1));
+    assertEquals(PTUConsumption.of(123), outcome1.getReplies().get(1));
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testOffsetTimestampIsNormalizedToUTC()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(),
+                                       "consumer-1");
+
+    // 02:10 at UTC+2 is in the first PTU of the day in UTC
+    String timestampStr = createDateTimeString(2, 10) + "+02:00";
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(timestampStr, 123),
+                 new ConsumerCommand.GetConsumption(createDateTimeString(0, 0) + "Z"));
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(createDateTimeString(0, 10)), 123),
+                 outcome1.events().get(0));
+    assertEquals(PTUConsumption.of(123), outcome1.getReplies().get(1));
     assertEquals(Collections.emptyList(), outcome1.issues());
   }
 
@@ -100,19 +124,369 @@ public class ConsumerEntityTest
                  new ConsumerCommand.RecordConsumption(timestamp2Str, 100),
                  new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
     assertEquals(2, outcome1.events().size());
-    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", timestamp1Str, 123),
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(timestamp1Str), 123),
                  outcome1.events().get(0));
-    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", timestamp2Str, 100),
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(timestamp2Str), 100),
                  outcome1.events().get(1));
-    assertArrayEquals(new Object[]{new DailyConsumption(TEST_DATE_STRING, createPTUValues(0, 223))},
+    assertArrayEquals(new Object[]{new DailyConsumption(TEST_EPOCH_DAY, createPTUValues(0, 223))},
                       outcome1.state().getDailyConsumptions());
     assertEquals(3, outcome1.getReplies().size());
     assertEquals(Done.getInstance(), outcome1.getReplies().get(0));
     assertEquals(Done.getInstance(), outcome1.getReplies().get(1));
-    assertEquals(223, outcome1.getReplies().get(2));
+    assertEquals(PTUConsumption.of(223), outcome1.getReplies().get(2));
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testBatchConsumptionIngestionAndQuery()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(),
+                                       "consumer-1");
+
+    String timestamp1Str = createDateTimeString(0, 10);
+    String timestamp2Str = createDateTimeString(0, 20);
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumptionBatch(TreePVector.from(Arrays.asList(
+                   new ConsumerCommand.RecordConsumption(timestamp1Str, 123),
+                   new ConsumerCommand.RecordConsumption("3:55pm 24th June 2018", 50),
+                   new ConsumerCommand.RecordConsumption(timestamp2Str, 100)))),
+                 new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
+    assertEquals(2, outcome1.events().size());
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(timestamp1Str), 123),
+                 outcome1.events().get(0));
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(timestamp2Str), 100),
+                 outcome1.events().get(1));
+    assertEquals(2, outcome1.getReplies().size());
+    assertEquals(new BatchResult(TreePVector.from(Arrays.asList(
+                   Optional.empty(),
+                   Optional.of("Invalid timestamp format : 3:55pm 24th June 2018"),
+                   Optional.empty()))),
+                 outcome1.getReplies().get(0));
+    assertEquals(PTUConsumption.of(223), outcome1.getReplies().get(1));
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testBatchConsumptionIngestionWithNoValidReadings()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(),
+                                       "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumptionBatch(TreePVector.from(Collections.singletonList(
+        new ConsumerCommand.RecordConsumption("3:55pm 24th June 2018", 50)))));
+    assertEquals(0, outcome1.events().size());
+    assertEquals(
+      new BatchResult(TreePVector.singleton(Optional.of("Invalid timestamp format : 3:55pm 24th June 2018"))),
+      outcome1.getReplies().get(0));
+  }
+
+  @Test
+  public void testDaysOutsideRetentionWindowAreArchived()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(new ConsumptionSettings(3)),
+                                       "consumer-1");
+
+    String day1Str = TEST_DATE.atTime(0, 10).toString();
+    String day2Str = TEST_DATE.plusDays(1).atTime(0, 10).toString();
+    String day4Str = TEST_DATE.plusDays(3).atTime(0, 10).toString();
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(day1Str, 1),
+                 new ConsumerCommand.RecordConsumption(day2Str, 2),
+                 new ConsumerCommand.RecordConsumption(day4Str, 4),
+                 new ConsumerCommand.GetConsumption(day1Str),
+                 new ConsumerCommand.GetConsumption(day2Str));
+    // recording day 4 leaves day 1 outside the 3 day window
+    assertEquals(4, outcome1.events().size());
+    assertEquals(new ConsumerEvent.DaysArchived("consumer-1",
+                                                1,
+                                                TEST_EPOCH_DAY + 1,
+                                                TreePVector.singleton(
+                                                  new DailyConsumption(TEST_EPOCH_DAY, createPTUValues(0, 1)))),
+                 outcome1.events().get(3));
+    assertEquals(2, outcome1.state().size());
+    assertEquals(PTUConsumption.ARCHIVED, outcome1.getReplies().get(3));
+    assertEquals(PTUConsumption.of(2), outcome1.getReplies().get(4));
+
+    // a late reading for an archived day is archived straight away
+    Outcome<ConsumerEvent, ConsumerState> outcome2 =
+      driver.run(new ConsumerCommand.RecordConsumption(day1Str, 10));
+    assertEquals(2, outcome2.events().size());
+    assertEquals(new ConsumerEvent.DaysArchived("consumer-1",
+                                                2,
+                                                TEST_EPOCH_DAY + 1,
+                                                TreePVector.singleton(
+                                                  new DailyConsumption(TEST_EPOCH_DAY, createPTUValues(0, 10)))),
+                 outcome2.events().get(1));
+    assertEquals(2, outcome2.state().size());
+    assertEquals(2, outcome2.state().getArchiveSequence());
+    assertEquals(Collections.emptyList(), outcome2.issues());
+  }
+
+  @Test
+  public void testGetDailyProfiles()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(new ConsumptionSettings(3)),
+                                       "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(TEST_DATE.atTime(0, 10).toString(), 1),
+                 new ConsumerCommand.RecordConsumption(TEST_DATE.plusDays(3).atTime(23, 50).toString(), 4),
+                 new ConsumerCommand.RecordConsumption(TEST_DATE.plusDays(3).atTime(0, 40).toString(), 5),
+                 new ConsumerCommand.GetDailyProfiles(TEST_EPOCH_DAY, 5));
+    DailyProfiles profiles = (DailyProfiles)outcome1.getReplies().get(3);
+    // day 1 has been archived, so is left for the archive to fill in
+    assertEquals(TEST_EPOCH_DAY + 1, profiles.getArchivedBefore());
+    int[] expected = new int[5 * DailyConsumption.PTUS_PER_DAY];
+    expected[3 * DailyConsumption.PTUS_PER_DAY + 1] = 5;
+    expected[3 * DailyConsumption.PTUS_PER_DAY + 47] = 4;
+    assertArrayEquals(expected, profiles.getPtuValues());
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  private static ConsumerCommand.RecordConsumption reading(int hour, int minute, int consumption, String readingId)
+  {
+    return new ConsumerCommand.RecordConsumption(createDateTimeString(hour, minute), consumption,
+                                                 Optional.of(readingId));
+  }
+
+  @Test
+  public void testRetriedReadingIsOnlyRecordedOnce()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(new ConsumptionSettings(0, 16)),
+                                       "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(reading(0, 10, 5, "reading-1"),
+                 reading(0, 10, 5, "reading-1"),
+                 // readings without an id are always recorded
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 7),
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 7));
+    assertEquals(3, outcome1.events().size());
+    assertEquals(Arrays.asList(Done.getInstance(), Done.getInstance(), Done.getInstance(), Done.getInstance()),
+                 outcome1.getReplies());
+    assertEquals(19, outcome1.state().ptuValue(TEST_EPOCH_DAY, 0));
+    assertArrayEquals(new long[]{RecentReadings.key("reading-1")}, outcome1.state().getRecentReadingKeys());
+
+    // the same id is a retry even with a different timestamp, and within a batch
+    Outcome<ConsumerEvent, ConsumerState> outcome2 =
+      driver.run(new ConsumerCommand.RecordConsumptionBatch(TreePVector.from(Arrays.asList(
+        reading(0, 20, 5, "reading-1"),
+        reading(0, 20, 6, "reading-2"),
+        reading(0, 20, 6, "reading-2")))));
+    assertEquals(Collections.singletonList(new ConsumerEvent.ConsumptionRecorded(
+                   "consumer-1",
+                   epochSecond(createDateTimeString(0, 20)),
+                   6,
+                   OptionalLong.of(RecentReadings.key("reading-2")))),
+                 outcome2.events());
+    BatchResult result = (BatchResult)outcome2.getReplies().get(0);
+    assertEquals(Arrays.asList(Optional.empty(), Optional.empty(), Optional.empty()), result.getRejections());
+    assertEquals(25, outcome2.state().ptuValue(TEST_EPOCH_DAY, 0));
+    assertEquals(Collections.emptyList(), outcome2.issues());
+  }
+
+  @Test
+  public void testReadingIdsAreIgnoredWithoutADedupWindow()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, new ConsumerEntity(new ConsumptionSettings(0)), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(reading(0, 10, 5, "reading-1"), reading(0, 10, 5, "reading-1"));
+    assertEquals(2, outcome1.events().size());
+    assertEquals(10, outcome1.state().ptuValue(TEST_EPOCH_DAY, 0));
+    assertEquals(0, outcome1.state().getRecentReadingKeys().length);
+  }
+
+  @Test
+  public void testWriteBehindRecognisesRetriesOfPendingReadings()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(10), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(reading(0, 10, 5, "reading-1"),
+                 reading(0, 10, 5, "reading-1"),
+                 ConsumerCommand.FlushPending.INSTANCE,
+                 reading(0, 10, 5, "reading-1"),
+                 new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
+    assertEquals(Collections.singletonList(new ConsumerEvent.PtuAggregated("consumer-1",
+                                                                           epochSecond(createDateTimeString(0, 0)),
+                                                                           5,
+                                                                           1,
+                                                                           new long[]{
+                                                                             RecentReadings.key("reading-1")})),
+                 outcome1.events());
+    assertEquals(PTUConsumption.of(5), outcome1.getReplies().get(4));
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testEntityRecordsItsEstimatedSize()
+  {
+    EntityMemoryRegistry memoryRegistry = new EntityMemoryRegistry();
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system,
+                                       new ConsumerEntity(new ConsumptionSettings(0),
+                                                          new Metrics(),
+                                                          new WriteBehindRegistry(),
+                                                          memoryRegistry),
+                                       "consumer-1");
+
+    // flushing isn't a use of the entity
+    driver.run(ConsumerCommand.FlushPending.INSTANCE);
+    assertEquals(0, memoryRegistry.size());
+
+    driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1));
+    assertEquals(1, memoryRegistry.size());
+    // recorded as the command was handled, before the day was added
+    long pendingBytes = new PendingReadings().estimatedSize();
+    assertEquals(ConsumerEntity.ENTITY_BYTES + ConsumerState.EMPTY.estimatedSize() + pendingBytes,
+                 memoryRegistry.estimatedBytes());
+
+    Outcome<ConsumerEvent, ConsumerState> outcome =
+      driver.run(new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)));
+    assertEquals(ConsumerEntity.ENTITY_BYTES + outcome.state().estimatedSize() + pendingBytes,
+                 memoryRegistry.estimatedBytes());
+    assertEquals(Collections.singletonList("consumer-1"), memoryRegistry.leastRecentlyUsed(1));
+  }
+
+  private static ConsumerEntity writeBehindEntity(int maxReadings)
+  {
+    return new ConsumerEntity(new ConsumptionSettings(0,
+                                                      16,
+                                                      ConsumptionSettings.Durability.WRITE_BEHIND,
+                                                      maxReadings,
+                                                      Duration.ofSeconds(60),
+                                                      Duration.ofSeconds(5)));
+  }
+
+  @Test
+  public void testWriteBehindAcknowledgesWithoutPersisting()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(10), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1),
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(0, 20), 2),
+                 new ConsumerCommand.GetConsumption(createDateTimeString(0, 0)),
+                 new ConsumerCommand.GetDailyProfiles(TEST_EPOCH_DAY, 1));
+    assertEquals(Collections.emptyList(), outcome1.events());
+    assertEquals(Done.getInstance(), outcome1.getReplies().get(0));
+    assertEquals(Done.getInstance(), outcome1.getReplies().get(1));
+    // the queries include the pending readings
+    assertEquals(PTUConsumption.of(3), outcome1.getReplies().get(2));
+    assertArrayEquals(createPTUValues(0, 3), ((DailyProfiles)outcome1.getReplies().get(3)).getPtuValues());
     assertEquals(Collections.emptyList(), outcome1.issues());
   }
 
+  @Test
+  public void testWriteBehindPersistsEachPtuOnceTheMeterMovesOn()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(10), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1),
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(0, 20), 2),
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(0, 40), 4),
+                 new ConsumerCommand.GetConsumption(createDateTimeString(0, 30)));
+    assertEquals(Collections.singletonList(new ConsumerEvent.PtuAggregated("consumer-1",
+                                                                           epochSecond(createDateTimeString(0, 0)),
+                                                                           3,
+                                                                           2)),
+                 outcome1.events());
+    assertArrayEquals(createPTUValues(0, 3), outcome1.state().getDailyConsumptions()[0].getPtuValues());
+    assertEquals(PTUConsumption.of(4), outcome1.getReplies().get(3));
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testWriteBehindPersistsOnceTheMostReadingsArePending()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(3), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumptionBatch(TreePVector.from(Arrays.asList(
+        new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1),
+        new ConsumerCommand.RecordConsumption(createDateTimeString(0, 15), 1),
+        new ConsumerCommand.RecordConsumption(createDateTimeString(0, 20), 1),
+        new ConsumerCommand.RecordConsumption(createDateTimeString(0, 25), 1)))));
+    assertEquals(Collections.singletonList(new ConsumerEvent.PtuAggregated("consumer-1",
+                                                                           epochSecond(createDateTimeString(0, 0)),
+                                                                           3,
+                                                                           3)),
+                 outcome1.events());
+    assertEquals(Collections.emptyList(), outcome1.issues());
+  }
+
+  @Test
+  public void testFlushPending()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(10), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1),
+                 new ConsumerCommand.RecordConsumption(createDateTimeString(1, 10), 2),
+                 ConsumerCommand.FlushPending.INSTANCE);
+    assertEquals(Arrays.asList(new ConsumerEvent.PtuAggregated("consumer-1",
+                                                               epochSecond(createDateTimeString(0, 0)),
+                                                               1,
+                                                               1),
+                               new ConsumerEvent.PtuAggregated("consumer-1",
+                                                               epochSecond(createDateTimeString(1, 0)),
+                                                               2,
+                                                               1)),
+                 outcome1.events());
+    assertEquals(Done.getInstance(), outcome1.getReplies().get(2));
+    assertEquals(2, outcome1.state().getDailyConsumptions()[0].getPtuValues()[2]);
+
+    // nothing is left to persist
+    Outcome<ConsumerEvent, ConsumerState> outcome2 = driver.run(ConsumerCommand.FlushPending.INSTANCE);
+    assertEquals(Collections.emptyList(), outcome2.events());
+    assertEquals(Done.getInstance(), outcome2.getReplies().get(0));
+    assertEquals(Collections.emptyList(), outcome2.issues());
+  }
+
+  @Test
+  public void testReadingsArentLeftPendingBeforePassivation()
+  {
+    PersistentEntityTestDriver<ConsumerCommand, ConsumerEvent, ConsumerState> driver =
+      new PersistentEntityTestDriver<>(system, writeBehindEntity(10), "consumer-1");
+
+    Outcome<ConsumerEvent, ConsumerState> outcome1 =
+      driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 10), 1),
+                 ConsumerCommand.FlushPending.BEFORE_PASSIVATION);
+    assertEquals(Collections.singletonList(new ConsumerEvent.PtuAggregated("consumer-1",
+                                                                           epochSecond(createDateTimeString(0, 0)),
+                                                                           1,
+                                                                           1)),
+                 outcome1.events());
+
+    // a reading handled before the passivation reaches the entity is persisted before it's acknowledged
+    Outcome<ConsumerEvent, ConsumerState> outcome2 =
+      driver.run(new ConsumerCommand.RecordConsumption(createDateTimeString(0, 20), 2));
+    assertEquals(Collections.singletonList(
+                   new ConsumerEvent.ConsumptionRecorded("consumer-1", epochSecond(createDateTimeString(0, 20)), 2)),
+                 outcome2.events());
+    assertEquals(Done.getInstance(), outcome2.getReplies().get(0));
+    assertEquals(3, outcome2.state().getDailyConsumptions()[0].getPtuValues()[0]);
+  }
+
   @Test
   public void testSingleConsumptionIngestionForIllegalTimestamp() throws Exception
   {
@@ -150,6 +524,11 @@ public class ConsumerEntityTest
     Assert.assertEquals(47, ConsumerEntity.getPTUValueIndex(createTestDateTime(23, 59)));
   }
 
+  private static long epochSecond(String timestamp)
+  {
+    return LocalDateTime.parse(timestamp).toEpochSecond(ZoneOffset.UTC);
+  }
+
   @NotNull
   private static LocalDateTime createTestDateTime(int hour, int minute)
   {
@@ -160,33 +539,34 @@ public class ConsumerEntityTest
   public void testGetPTUValue() throws Exception
   {
     int[] testPTUValues = IntStream.rangeClosed(0, 47).toArray();
-    DailyConsumption[] dailyConsumptions = {
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 1).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 2).toString(), testPTUValues),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 3).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 4).toString()),
-      };
-    assertEquals(24, ConsumerEntity.getPTUValue(dailyConsumptions,
+    ConsumerState testState = new ConsumerState(createTestDailyConsumptions(testPTUValues));
+    assertEquals(24, ConsumerEntity.getPTUValue(testState,
                                                 LocalDateTime.of(2018, Month.APRIL, 2, 12, 1)));
-    assertEquals(0, ConsumerEntity.getPTUValue(dailyConsumptions,
+    assertEquals(0, ConsumerEntity.getPTUValue(testState,
                                                LocalDateTime.of(2018, Month.APRIL, 1, 12, 1)));
+    assertEquals(0, ConsumerEntity.getPTUValue(testState,
+                                               LocalDateTime.of(2018, Month.MAY, 1, 12, 1)));
   }
 
   @Test
   public void testGetUpdatedStateWithExistingDailyConsumption() throws Exception
   {
     int[] testPTUValues = IntStream.rangeClosed(0, 47).toArray();
-    DailyConsumption[] dailyConsumptions = {
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 1).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 2).toString(), testPTUValues),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 3).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 4).toString())
-    };
-    ConsumerState testState = new ConsumerState(dailyConsumptions);
+    ConsumerState testState = new ConsumerState(createTestDailyConsumptions(testPTUValues));
     testState = testUpdateState(testState, 123, 123);
     testUpdateState(testState, 100, 223);
   }
 
+  private static DailyConsumption[] createTestDailyConsumptions(int[] april2PTUValues)
+  {
+    return new DailyConsumption[]{
+      new DailyConsumption((int)LocalDate.of(2018, Month.APRIL, 1).toEpochDay()),
+      new DailyConsumption((int)LocalDate.of(2018, Month.APRIL, 2).toEpochDay(), april2PTUValues),
+      new DailyConsumption((int)LocalDate.of(2018, Month.APRIL, 3).toEpochDay()),
+      new DailyConsumption((int)LocalDate.of(2018, Month.APRIL, 4).toEpochDay())
+    };
+  }
+
   private ConsumerState testUpdateState(ConsumerState testState, int consumption, int expectedAggregateConsumption)
   {
     LocalDateTime testDateTime = LocalDateTime.of(2018, Month.APRIL, 1, 12, 1);
@@ -219,13 +599,7 @@ public class ConsumerEntityTest
   public void testGetUpdatedStateWithNoDailyConsumption() throws Exception
   {
     int[] testPTUValues = IntStream.rangeClosed(0, 47).toArray();
-    DailyConsumption[] dailyConsumptions = {
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 1).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 2).toString(), testPTUValues),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 3).toString()),
-      new DailyConsumption(LocalDate.of(2018, Month.APRIL, 4).toString())
-    };
-    ConsumerState testState = new ConsumerState(dailyConsumptions);
+    ConsumerState testState = new ConsumerState(createTestDailyConsumptions(testPTUValues));
     LocalDateTime testDateTime = LocalDateTime.of(2018, Month.MARCH, 31, 12, 1);
     ConsumerState updatedState = ConsumerEntity.getUpdatedState(testState, testDateTime, 123);
     assertNotSame(updatedState, testState);
@@ -0,0 +1,60 @@
+package consumption.impl;
+
+import com.lightbend.lagom.javadsl.persistence.AggregateEventTag;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ConsumerEventTagsTest
+{
+  private static String tagNames(ConsumerEventTags tags)
+  {
+    return tags.allTags().stream()
+               .map(tag -> tag.tag().substring(ConsumerEvent.class.getName().length()))
+               .collect(Collectors.joining(","));
+  }
+
+  @Test
+  public void testConfiguredTags()
+  {
+    ConsumerEventTags tags = new ConsumerEventTags(ConfigFactory.load());
+    assertEquals(4, tags.getShards());
+    assertEquals(4, tags.getPreviousShards());
+    assertEquals("0,1,2,3", tagNames(tags));
+  }
+
+  @Test
+  public void testNewEventsAreTaggedByTheInstalledTags()
+  {
+    ConsumerEventTags tags = new ConsumerEventTags(ConfigFactory.parseString(
+      "consumption.events.shards = 8, consumption.events.previous-shards = 4"));
+    ConsumerEventTags.install(tags);
+    assertSame(tags.tagger(), new ConsumerEvent.ConsumptionRecorded("consumer-1", 0, 123).aggregateTag());
+  }
+
+  @Test
+  public void testGrowingKeepsTheTagsOfThePreviousShards()
+  {
+    ConsumerEventTags tags = new ConsumerEventTags(8, 4);
+    assertEquals("0,1,2,3,4,5,6,7", tagNames(tags));
+    for (AggregateEventTag<ConsumerEvent> tag : tags.allTags()) {
+      assertFalse(tags.isRetiring(tag));
+    }
+  }
+
+  @Test
+  public void testShrinkingReadsTheRetiringTags()
+  {
+    ConsumerEventTags tags = new ConsumerEventTags(2, 4);
+    assertEquals("0,1,2,3", tagNames(tags));
+    assertFalse(tags.isRetiring(AggregateEventTag.of(ConsumerEvent.class, ConsumerEvent.class.getName() + "1")));
+    assertTrue(tags.isRetiring(AggregateEventTag.of(ConsumerEvent.class, ConsumerEvent.class.getName() + "3")));
+    // new events are only tagged with the current shards
+    for (int i = 0; i < 100; i++) {
+      assertFalse(tags.isRetiring(tags.tagger().forEntityId("consumer-" + i)));
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import org.junit.Test;
+
+import java.io.NotSerializableException;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+import static org.junit.Assert.*;
+
+public class ConsumerEventTest
+{
+  private static final LocalDateTime TEST_TIMESTAMP = LocalDateTime.of(2018, Month.APRIL, 1, 13, 45, 10);
+
+  @Test
+  public void testConsumptionRecordedTimestamp()
+  {
+    ConsumerEvent.ConsumptionRecorded event =
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), 10);
+    assertEquals(TEST_TIMESTAMP.toLocalDate().toEpochDay(), event.epochDay());
+    assertEquals(ConsumerEntity.getPTUValueIndex(TEST_TIMESTAMP), event.ptuIndex());
+    assertEquals(TEST_TIMESTAMP, event.timestamp());
+
+    // before the epoch the day and PTU still follow the calendar
+    LocalDateTime beforeEpoch = LocalDateTime.of(1969, Month.DECEMBER, 31, 23, 59, 59);
+    ConsumerEvent.ConsumptionRecorded beforeEpochEvent =
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", beforeEpoch.toEpochSecond(ZoneOffset.UTC), 10);
+    assertEquals(-1, beforeEpochEvent.epochDay());
+    assertEquals(47, beforeEpochEvent.ptuIndex());
+  }
+
+  @Test
+  public void testConsumptionRecordedBinaryRoundTrip() throws Exception
+  {
+    ConsumptionRecordedSerializer serializer = new ConsumptionRecordedSerializer();
+    ConsumerEvent.ConsumptionRecorded event =
+      new ConsumerEvent.ConsumptionRecorded("consumer-\u00e91", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), -250);
+    byte[] bytes = serializer.toBinary(event);
+    assertEquals(event, serializer.fromBinary(bytes, serializer.manifest(event)));
+
+    // as Lagom's JSON serializer would write it
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule())
+                                            .registerModule(new Jdk8Module());
+    assertTrue(bytes.length * 3 < mapper.writeValueAsBytes(event).length);
+  }
+
+  @Test
+  public void testConsumptionRecordedWithReadingKeyBinaryRoundTrip() throws Exception
+  {
+    ConsumptionRecordedSerializer serializer = new ConsumptionRecordedSerializer();
+    ConsumerEvent.ConsumptionRecorded event =
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), 10,
+                                            OptionalLong.of(RecentReadings.key("reading-1")));
+    assertEquals(event, serializer.fromBinary(serializer.toBinary(event), serializer.manifest(event)));
+    assertArrayEquals(new long[]{RecentReadings.key("reading-1")}, event.readingKeys());
+
+    // version 1 events end after the consumption, and have no reading key
+    ConsumerEvent.ConsumptionRecorded keyless =
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), 10);
+    byte[] bytes = serializer.toBinary(keyless);
+    byte[] version1 = Arrays.copyOf(bytes, bytes.length - 1);
+    version1[0] = 1;
+    assertEquals(keyless, serializer.fromBinary(version1, ConsumptionRecordedSerializer.MANIFEST));
+  }
+
+  @Test(expected = NotSerializableException.class)
+  public void testTruncatedConsumptionRecordedIsRejected() throws Exception
+  {
+    ConsumptionRecordedSerializer serializer = new ConsumptionRecordedSerializer();
+    byte[] bytes = serializer.toBinary(new ConsumerEvent.ConsumptionRecorded("consumer-1", 0, 1));
+    serializer.fromBinary(Arrays.copyOf(bytes, 4), ConsumptionRecordedSerializer.MANIFEST);
+  }
+
+  @Test
+  public void testPtuAggregated() throws Exception
+  {
+    LocalDateTime ptuStart = TEST_TIMESTAMP.withMinute(30).withSecond(0);
+    ConsumerEvent.PtuAggregated event =
+      new ConsumerEvent.PtuAggregated("consumer-1", ptuStart.toEpochSecond(ZoneOffset.UTC), 123, 180);
+    assertEquals(ptuStart.toLocalDate().toEpochDay(), event.epochDay());
+    assertEquals(ConsumerEntity.getPTUValueIndex(TEST_TIMESTAMP), event.ptuIndex());
+    assertEquals(ptuStart, event.timestamp());
+
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    assertEquals(event, mapper.readValue(mapper.writeValueAsBytes(event), ConsumerEvent.PtuAggregated.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPtuAggregatedMustStartAtAPtu()
+  {
+    new ConsumerEvent.PtuAggregated("consumer-1", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), 123, 180);
+  }
+
+  @Test
+  public void testMigrateTimestampedConsumptionRecorded() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    String version1Json = "{\"consumerId\":\"consumer-1\",\"timestamp\":\"2018-04-01T13:45:10\",\"consumption\":123}";
+    ConsumerEvent.ConsumptionRecorded event =
+      mapper.treeToValue(new ConsumptionRecordedMigration().transform(1, mapper.readTree(version1Json)),
+                         ConsumerEvent.ConsumptionRecorded.class);
+    assertEquals(new ConsumerEvent.ConsumptionRecorded("consumer-1", TEST_TIMESTAMP.toEpochSecond(ZoneOffset.UTC), 123),
+                 event);
+  }
+}
@@ -0,0 +1,245 @@
+package consumption.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import org.junit.Test;
+
+import java.io.NotSerializableException;
+import java.time.LocalDate;
+import java.time.Month;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class ConsumerStateTest
+{
+  private static final int TEST_EPOCH_DAY = (int)LocalDate.of(2018, Month.APRIL, 1).toEpochDay();
+
+  @Test
+  public void testEmptyState()
+  {
+    assertEquals(0, ConsumerState.EMPTY.size());
+    assertEquals(0, ConsumerState.EMPTY.getDailyConsumptions().length);
+    assertNull(ConsumerState.EMPTY.dailyConsumption(TEST_EPOCH_DAY));
+    assertEquals(0, ConsumerState.EMPTY.ptuValue(TEST_EPOCH_DAY, 10));
+  }
+
+  @Test
+  public void testDaysAcrossChunksAreSortedByDate()
+  {
+    // record in reverse order, across several chunks and either side of the epoch
+    int[] epochDays = {TEST_EPOCH_DAY + 3 * ConsumerState.CHUNK_SIZE, TEST_EPOCH_DAY + 1, TEST_EPOCH_DAY, -1, -40};
+    ConsumerState state = ConsumerState.EMPTY;
+    for (int epochDay : epochDays) {
+      state = state.withConsumption(epochDay, 5, epochDay);
+    }
+    assertEquals(epochDays.length, state.size());
+    DailyConsumption[] dailyConsumptions = state.getDailyConsumptions();
+    assertArrayEquals(new int[]{-40, -1, TEST_EPOCH_DAY, TEST_EPOCH_DAY + 1,
+                                TEST_EPOCH_DAY + 3 * ConsumerState.CHUNK_SIZE},
+                      IntStream.range(0, dailyConsumptions.length)
+                               .map(i -> dailyConsumptions[i].getEpochDay())
+                               .toArray());
+    for (int epochDay : epochDays) {
+      assertEquals(epochDay, state.ptuValue(epochDay, 5));
+      assertEquals(0, state.ptuValue(epochDay, 6));
+    }
+    assertNull(state.dailyConsumption(TEST_EPOCH_DAY + 2));
+  }
+
+  @Test
+  public void testUpdateSharesUnaffectedDays()
+  {
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1)
+                                             .withConsumption(TEST_EPOCH_DAY + 1, 0, 2)
+                                             .withConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE, 0, 3);
+    ConsumerState updatedState = state.withConsumption(TEST_EPOCH_DAY, 0, 10);
+    assertNotSame(state, updatedState);
+    // the original state is unchanged
+    assertEquals(1, state.ptuValue(TEST_EPOCH_DAY, 0));
+    assertEquals(11, updatedState.ptuValue(TEST_EPOCH_DAY, 0));
+    assertNotSame(state.dailyConsumption(TEST_EPOCH_DAY), updatedState.dailyConsumption(TEST_EPOCH_DAY));
+    // and the other days are shared
+    assertSame(state.dailyConsumption(TEST_EPOCH_DAY + 1), updatedState.dailyConsumption(TEST_EPOCH_DAY + 1));
+    assertSame(state.dailyConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE),
+               updatedState.dailyConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE));
+    assertEquals(3, updatedState.size());
+  }
+
+  @Test
+  public void testJsonRoundTrip() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1)
+                                             .withConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE, 47, 3);
+    ConsumerState readState = mapper.readValue(mapper.writeValueAsBytes(state), ConsumerState.class);
+    assertEquals(state, readState);
+    assertEquals(2, readState.size());
+  }
+
+  @Test
+  public void testMigrateDateKeyedSnapshot() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    int[] ptuValues = IntStream.rangeClosed(0, 47).toArray();
+    String version1Json = "{\"dailyConsumptions\":[" +
+                          "{\"date\":\"2018-04-01\",\"ptuValues\":" + mapper.writeValueAsString(ptuValues) + "}," +
+                          "{\"date\":\"2018-04-03\",\"ptuValues\":" + mapper.writeValueAsString(new int[48]) + "}]}";
+    ConsumerState state = mapper.treeToValue(new ConsumerStateMigration().transform(1, mapper.readTree(version1Json)),
+                                             ConsumerState.class);
+    assertEquals(2, state.size());
+    assertArrayEquals(ptuValues, state.dailyConsumption(TEST_EPOCH_DAY).getPtuValues());
+    assertNotNull(state.dailyConsumption(TEST_EPOCH_DAY + 2));
+  }
+
+  @Test
+  public void testArchiveDaysAcrossChunks()
+  {
+    int firstDayOfChunk = (TEST_EPOCH_DAY >> 5) << 5;
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(firstDayOfChunk - 1, 0, 1)
+                                             .withConsumption(firstDayOfChunk, 0, 2)
+                                             .withConsumption(firstDayOfChunk + 1, 0, 3)
+                                             .withConsumption(firstDayOfChunk + 2, 0, 4);
+    assertEquals(firstDayOfChunk - 1, state.oldestEpochDay());
+    assertEquals(firstDayOfChunk + 2, state.newestEpochDay());
+    assertEquals(3, state.daysBefore(firstDayOfChunk + 2).size());
+
+    ConsumerState archivedState = state.withDaysArchived(firstDayOfChunk + 2, 1);
+    assertEquals(1, archivedState.size());
+    assertEquals(firstDayOfChunk + 2, archivedState.oldestEpochDay());
+    assertEquals(firstDayOfChunk + 2, archivedState.newestEpochDay());
+    assertTrue(archivedState.isArchived(firstDayOfChunk + 1));
+    assertFalse(archivedState.isArchived(firstDayOfChunk + 2));
+    assertNull(archivedState.dailyConsumption(firstDayOfChunk));
+    assertEquals(1, archivedState.getArchiveSequence());
+    // the original state is unchanged
+    assertEquals(4, state.size());
+    assertFalse(state.isArchived(firstDayOfChunk - 1));
+  }
+
+  @Test
+  public void testJsonRoundTripOfArchivedState() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1)
+                                             .withConsumption(TEST_EPOCH_DAY + 5, 0, 2)
+                                             .withDaysArchived(TEST_EPOCH_DAY + 1, 3);
+    ConsumerState readState = mapper.readValue(mapper.writeValueAsBytes(state), ConsumerState.class);
+    assertEquals(state, readState);
+    assertTrue(readState.isArchived(TEST_EPOCH_DAY));
+    assertEquals(3, readState.getArchiveSequence());
+  }
+
+  @Test
+  public void testBinaryRoundTrip() throws Exception
+  {
+    ConsumerStateSerializer serializer = new ConsumerStateSerializer();
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(-40, 0, -7)
+                                             .withConsumption(TEST_EPOCH_DAY, 0, 1)
+                                             .withConsumption(TEST_EPOCH_DAY, 47, Integer.MAX_VALUE)
+                                             .withConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE, 20, 3)
+                                             .withDaysArchived(-39, 2);
+    ConsumerState readState = (ConsumerState)serializer.fromBinary(serializer.toBinary(state),
+                                                                    serializer.manifest(state));
+    assertEquals(state, readState);
+    assertEquals(2, readState.size());
+    assertEquals(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE, readState.newestEpochDay());
+    assertEquals(Integer.MAX_VALUE, readState.ptuValue(TEST_EPOCH_DAY, 47));
+
+    ConsumerState emptyState = (ConsumerState)serializer.fromBinary(serializer.toBinary(ConsumerState.EMPTY),
+                                                                    ConsumerStateSerializer.MANIFEST);
+    assertEquals(ConsumerState.EMPTY, emptyState);
+    assertFalse(emptyState.isArchived(Integer.MIN_VALUE + 1));
+  }
+
+  @Test
+  public void testRecentReadingsKeepTheWindow()
+  {
+    ConsumerState state = ConsumerState.EMPTY;
+    for (long key = 1; key <= 100; key++) {
+      state = state.withReadingKeys(new long[]{key}, 40);
+    }
+    // whole chunks are dropped, so between the window and a chunk more of the newest keys are held
+    long[] keys = state.getRecentReadingKeys();
+    assertEquals(100 - RecentReadings.CHUNK_SIZE, keys.length);
+    assertEquals(RecentReadings.CHUNK_SIZE + 1, keys[0]);
+    assertEquals(100, keys[keys.length - 1]);
+    assertTrue(state.isRecentReading(100));
+    assertTrue(state.isRecentReading(RecentReadings.CHUNK_SIZE + 1));
+    assertFalse(state.isRecentReading(RecentReadings.CHUNK_SIZE));
+    assertFalse(state.isRecentReading(101));
+    // the keys are shared with the state's updates
+    assertTrue(state.withConsumption(TEST_EPOCH_DAY, 0, 1).isRecentReading(100));
+    // an older state still holds its own keys once a newer one has taken over the index
+    ConsumerState newer = state.withReadingKeys(new long[]{101}, 40);
+    assertTrue(newer.isRecentReading(101));
+    assertFalse(state.isRecentReading(101));
+    assertTrue(state.isRecentReading(100));
+    assertTrue(state.withReadingKeys(new long[]{102}, 40).isRecentReading(100));
+    // a key that's already held isn't added again
+    assertArrayEquals(newer.getRecentReadingKeys(), newer.withReadingKeys(new long[]{100}, 40).getRecentReadingKeys());
+  }
+
+  @Test
+  public void testEstimatedSize()
+  {
+    ConsumerState oneDay = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1);
+    ConsumerState twoDays = oneDay.withConsumption(TEST_EPOCH_DAY + ConsumerState.CHUNK_SIZE, 0, 1);
+    assertTrue(ConsumerState.EMPTY.estimatedSize() > 0);
+    // a day holds its PTU values, so takes over 48 ints
+    assertTrue(oneDay.estimatedSize() - ConsumerState.EMPTY.estimatedSize() > 48 * Integer.BYTES);
+    assertTrue(twoDays.estimatedSize() > oneDay.estimatedSize());
+    // recording another PTU of a day doesn't add to it
+    assertEquals(oneDay.estimatedSize(), oneDay.withConsumption(TEST_EPOCH_DAY, 1, 1).estimatedSize());
+    // reading keys take at least 8 bytes each
+    assertTrue(oneDay.withReadingKeys(new long[]{1, 2, 3, 4}, 16).estimatedSize() >=
+               oneDay.estimatedSize() + 4 * Long.BYTES);
+  }
+
+  @Test
+  public void testBinaryRoundTripOfRecentReadings() throws Exception
+  {
+    ConsumerStateSerializer serializer = new ConsumerStateSerializer();
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1)
+                                             .withReadingKeys(new long[]{Long.MIN_VALUE, -1, 0, Long.MAX_VALUE}, 16);
+    ConsumerState readState = (ConsumerState)serializer.fromBinary(serializer.toBinary(state),
+                                                                    serializer.manifest(state));
+    assertEquals(state, readState);
+    assertArrayEquals(new long[]{Long.MIN_VALUE, -1, 0, Long.MAX_VALUE}, readState.getRecentReadingKeys());
+    assertNotEquals(ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 0, 1), readState);
+  }
+
+  @Test
+  public void testReadVersion1BinarySnapshot() throws Exception
+  {
+    ConsumerState state = ConsumerState.EMPTY.withConsumption(TEST_EPOCH_DAY, 3, 7);
+    byte[] binary = new ConsumerStateSerializer().toBinary(state);
+    // a version 1 snapshot is the same without the trailing count of recent reading keys
+    byte[] version1 = Arrays.copyOf(binary, binary.length - 1);
+    version1[0] = 1;
+    assertEquals(state, new ConsumerStateSerializer().fromBinary(version1, ConsumerStateSerializer.MANIFEST));
+  }
+
+  @Test
+  public void testBinaryIsSmallerThanJson() throws Exception
+  {
+    ObjectMapper mapper = new ObjectMapper().registerModule(new ParameterNamesModule());
+    ConsumerState state = ConsumerState.EMPTY;
+    for (int day = 0; day < 62; day++) {
+      for (int ptu = 0; ptu < DailyConsumption.PTUS_PER_DAY; ptu++) {
+        state = state.withConsumption(TEST_EPOCH_DAY + day, ptu, 1000 + ptu);
+      }
+    }
+    byte[] binary = new ConsumerStateSerializer().toBinary(state);
+    assertTrue(binary.length < 62 * 150);
+    assertTrue(binary.length * 2 < mapper.writeValueAsBytes(state).length);
+  }
+
+  @Test(expected = NotSerializableException.class)
+  public void testUnknownBinaryFormatVersionIsRejected() throws Exception
+  {
+    new ConsumerStateSerializer().fromBinary(new byte[]{(byte)(ConsumerStateSerializer.FORMAT_VERSION + 1)},
+                                             ConsumerStateSerializer.MANIFEST);
+  }
+}
@@ -4,9 +4,27 @@ import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
 import static com.lightbend.lagom.javadsl.testkit.ServiceTest.withServer;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import com.lightbend.lagom.javadsl.api.deser.StrictMessageSerializer;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.lightbend.lagom.javadsl.jackson.JacksonSerializerFactory;
 import consumption.api.*;
 import org.junit.Test;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class ConsumptionServiceTest
 {
@@ -51,4 +69,126 @@ public class ConsumptionServiceTest
     });
   }
 
+  @Test
+  public void shouldStoreConsumptionBatch() throws Exception {
+    withServer(defaultSetup().withCassandra(), server -> {
+      ConsumptionService service = server.client(ConsumptionService.class);
+      PSequence<IngestResult> results =
+        service.ingestBatch()
+               .invoke(TreePVector.from(Arrays.asList(
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 10), 123),
+                 new Consumption("consumer-2", ConsumerEntityTest.createDateTimeString(0, 10), 7),
+                 new Consumption("consumer-1", "not a timestamp", 5),
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 20), 100))))
+               .toCompletableFuture()
+               .get(5, SECONDS);
+      assertEquals(4, results.size());
+      assertTrue(results.get(0).isAccepted());
+      assertTrue(results.get(1).isAccepted());
+      assertFalse(results.get(2).isAccepted());
+      assertEquals("not a timestamp", results.get(2).getTimestamp());
+      assertTrue(results.get(3).isAccepted());
+
+      int value1 = service.query()
+                          .invoke(new ConsumptionQuery("consumer-1",
+                                                       ConsumerEntityTest.createDateTimeString(0, 0)))
+                          .toCompletableFuture()
+                          .get(5, SECONDS);
+      assertEquals(223, value1);
+      int value2 = service.query()
+                          .invoke(new ConsumptionQuery("consumer-2",
+                                                       ConsumerEntityTest.createDateTimeString(0, 0)))
+                          .toCompletableFuture()
+                          .get(5, SECONDS);
+      assertEquals(7, value2);
+    });
+  }
+
+  @Test
+  public void shouldStoreConsumptionStream() throws Exception {
+    withServer(defaultSetup().withCassandra(), server -> {
+      ConsumptionService service = server.client(ConsumptionService.class);
+      List<IngestResult> results =
+        service.ingestStream()
+               .invoke(Source.from(Arrays.asList(
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 10), 123),
+                 new Consumption("consumer-1", "not a timestamp", 5),
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 20), 100))))
+               .thenCompose(acks -> acks.runWith(Sink.seq(), server.materializer()))
+               .toCompletableFuture()
+               .get(5, SECONDS);
+      assertEquals(3, results.size());
+      assertTrue(results.get(0).isAccepted());
+      assertFalse(results.get(1).isAccepted());
+      assertEquals("not a timestamp", results.get(1).getTimestamp());
+      assertTrue(results.get(2).isAccepted());
+
+      int value1 = service.query()
+                          .invoke(new ConsumptionQuery("consumer-1",
+                                                       ConsumerEntityTest.createDateTimeString(0, 0)))
+                          .toCompletableFuture()
+                          .get(5, SECONDS);
+      assertEquals(223, value1);
+    });
+  }
+
+  @Test
+  public void testEstimatedPublishedSizeIsTheSerializedSize()
+  {
+    StrictMessageSerializer<consumption.api.ConsumerEvent> serializer =
+      new JacksonSerializerFactory(new ObjectMapper().registerModule(new ParameterNamesModule())
+                                                     .registerModule(new Jdk8Module()))
+        .messageSerializerFor(consumption.api.ConsumerEvent.class);
+    for (consumption.api.ConsumerEvent.ConsumptionRecorded event : Arrays.asList(
+      new consumption.api.ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:30:00", 123),
+      new consumption.api.ConsumerEvent.ConsumptionRecorded("region-7-House-21", "2018-04-01T10:30", -5))) {
+      assertEquals(serializer.serializerForRequest().serialize(event).size(),
+                   ConsumptionServiceImpl.estimatedPublishedSize(event));
+    }
+  }
+
+  @Test
+  public void shouldRecordAConsumersBatchWithBoundedCommands() throws Exception {
+    withServer(defaultSetup().withCassandra()
+                             .configureBuilder(builder -> builder.configure("consumption.ingest.max-batch-readings", 4)
+                                                                 .configure("consumption.ingest.max-command-readings",
+                                                                            2)),
+               server -> {
+      ConsumptionService service = server.client(ConsumptionService.class);
+      // the consumer's readings are recorded by two commands
+      PSequence<IngestResult> results =
+        service.ingestBatch()
+               .invoke(TreePVector.from(Arrays.asList(
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 10), 1),
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 11), 2),
+                 new Consumption("consumer-1", "not a timestamp", 4),
+                 new Consumption("consumer-1", ConsumerEntityTest.createDateTimeString(0, 12), 8))))
+               .toCompletableFuture()
+               .get(5, SECONDS);
+      assertEquals(4, results.size());
+      assertTrue(results.get(0).isAccepted());
+      assertTrue(results.get(1).isAccepted());
+      assertFalse(results.get(2).isAccepted());
+      assertFalse(results.get(2).isRetryable());
+      assertTrue(results.get(3).isAccepted());
+      int value = service.query()
+                         .invoke(new ConsumptionQuery("consumer-1",
+                                                      ConsumerEntityTest.createDateTimeString(0, 0)))
+                         .toCompletableFuture()
+                         .get(5, SECONDS);
+      assertEquals(11, value);
+
+      // a batch of more readings than the maximum is rejected as a whole
+      try {
+        service.ingestBatch()
+               .invoke(TreePVector.from(Collections.nCopies(
+                 5, new Consumption("consumer-2", ConsumerEntityTest.createDateTimeString(0, 10), 1))))
+               .toCompletableFuture()
+               .get(5, SECONDS);
+        fail("A batch over the maximum was ingested");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof BadRequest);
+      }
+    });
+  }
 }
@@ -0,0 +1,51 @@
+package consumption.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class EntityMemoryRegistryTest
+{
+  @Test
+  public void testLeastRecentlyUsed() throws Exception
+  {
+    EntityMemoryRegistry registry = new EntityMemoryRegistry();
+    registry.used("consumer-1", 100);
+    Thread.sleep(1);
+    registry.used("consumer-2", 200);
+    Thread.sleep(1);
+    registry.used("consumer-3", 300);
+    Thread.sleep(1);
+    // using an entity again makes it the most recently used
+    registry.used("consumer-1", 400);
+    assertEquals(3, registry.size());
+    assertEquals(900, registry.estimatedBytes());
+    assertEquals(400, registry.largestEstimatedBytes());
+
+    assertEquals(Collections.singletonList("consumer-2"), registry.leastRecentlyUsed(1));
+    assertEquals(Collections.singletonList("consumer-2"), registry.leastRecentlyUsed(200));
+    assertEquals(Arrays.asList("consumer-2", "consumer-3"), registry.leastRecentlyUsed(201));
+    assertEquals(Arrays.asList("consumer-2", "consumer-3", "consumer-1"), registry.leastRecentlyUsed(10000));
+    assertEquals(Collections.emptyList(), registry.leastRecentlyUsed(0));
+
+    registry.passivated("consumer-3");
+    assertEquals(2, registry.size());
+    assertEquals(600, registry.estimatedBytes());
+  }
+
+  @Test
+  public void testExpireIdle() throws Exception
+  {
+    EntityMemoryRegistry registry = new EntityMemoryRegistry();
+    registry.used("consumer-1", 100);
+    Thread.sleep(1);
+    long idleBefore = System.nanoTime();
+    registry.used("consumer-2", 200);
+    assertEquals(1, registry.expireIdleBefore(idleBefore));
+    assertEquals(Collections.singletonList("consumer-2"), registry.leastRecentlyUsed(1));
+    assertEquals(0, registry.expireIdleBefore(idleBefore));
+  }
+}
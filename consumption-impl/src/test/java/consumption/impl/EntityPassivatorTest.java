@@ -0,0 +1,44 @@
+package consumption.impl;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ReceiveTimeout;
+import akka.testkit.JavaTestKit;
+import consumption.api.Consumption;
+import consumption.api.ConsumptionService;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.defaultSetup;
+import static com.lightbend.lagom.javadsl.testkit.ServiceTest.withServer;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+public class EntityPassivatorTest
+{
+  /**
+   * The passivator relies on the path cluster sharding gives Lagom's entity actors, and on them passivating when
+   * they receive a ReceiveTimeout, neither of which is Lagom's API, so this fails if an upgrade changes them.
+   */
+  @Test
+  public void testEntityActorIsFoundAndPassivatedByItsPath() throws Exception
+  {
+    withServer(defaultSetup().withCassandra(), server -> {
+      ConsumptionService service = server.client(ConsumptionService.class);
+      service.ingest()
+             .invoke(new Consumption("consumer/1", ConsumerEntityTest.createDateTimeString(0, 10), 123))
+             .toCompletableFuture()
+             .get(5, SECONDS);
+      ActorSystem system = server.injector().instanceOf(ActorSystem.class);
+      ActorRef entity = EntityPassivator.entity(system, "consumer/1")
+                                        .resolveOneCS(FiniteDuration.create(5, SECONDS))
+                                        .toCompletableFuture()
+                                        .get(10, SECONDS);
+      new JavaTestKit(system)
+      {{
+        watch(entity);
+        entity.tell(ReceiveTimeout.getInstance(), ActorRef.noSender());
+        expectTerminated(duration("10 seconds"), entity);
+      }};
+    });
+  }
+}
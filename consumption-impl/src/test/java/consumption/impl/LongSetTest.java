@@ -0,0 +1,56 @@
+package consumption.impl;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LongSetTest
+{
+  @Test
+  public void testAddContainsAndRemove()
+  {
+    LongSet set = new LongSet();
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertTrue(set.add(-1));
+    assertTrue(set.add(Long.MIN_VALUE));
+    assertEquals(3, set.size());
+    assertTrue(set.contains(0));
+    assertTrue(set.contains(Long.MIN_VALUE));
+    assertFalse(set.contains(1));
+    set.remove(0);
+    set.remove(1);
+    assertFalse(set.contains(0));
+    assertEquals(2, set.size());
+    set.clear();
+    assertFalse(set.contains(-1));
+    assertEquals(0, set.size());
+  }
+
+  @Test
+  public void testMatchesAHashSet()
+  {
+    // a narrow range of keys, so that the probe runs collide and removals shift the keys after them back
+    Random random = new Random(7);
+    LongSet set = new LongSet();
+    Set<Long> expected = new HashSet<>();
+    for (int i = 0; i < 100_000; i++) {
+      long key = random.nextInt(2000) - 1000;
+      if (random.nextInt(3) == 0) {
+        set.remove(key);
+        expected.remove(key);
+      } else {
+        assertEquals(expected.add(key), set.add(key));
+      }
+    }
+    assertEquals(expected.size(), set.size());
+    for (long key = -1000; key < 1000; key++) {
+      assertEquals(expected.contains(key), set.contains(key));
+    }
+    assertTrue(set.estimatedSize() >= LongSet.estimatedSize(set.size()));
+  }
+}
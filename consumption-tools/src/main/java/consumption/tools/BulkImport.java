@@ -0,0 +1,430 @@
+package consumption.tools;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.japi.Pair;
+import akka.pattern.PatternsCS;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.util.ByteString;
+import com.lightbend.lagom.javadsl.client.integration.LagomClientFactory;
+import consumption.api.Consumption;
+import consumption.api.ConsumptionService;
+import consumption.api.IngestResult;
+import consumption.api.Timestamps;
+import lombok.Value;
+import metrics.LatencyHistogram;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Imports the readings of a CSV or NDJSON file (see {@link ImportFormat}) into the consumption service, for loading
+ * historical readings, e.g. the backfill of a new region.
+ * <p>
+ * The file is read as a stream, a window of lines at a time. The readings of each window are grouped by PTU and
+ * household, so that the readings of a household's PTU are sent together, to be recorded by a single command to its
+ * Consumer entity, and the batches sent at once are spread over many households. The batches are sent with up to the
+ * configured number of notify-batch calls awaiting a reply at once, and a call that fails is retried with exponential
+ * backoff, as are the readings of a call that failed to be recorded, e.g. their Consumer entity didn't reply in time.
+ * If they still fail once the retries are exhausted, the import fails before the checkpoint moves past them. Readings
+ * the service rejects as invalid are counted and the first of them reported, but not retried.
+ * <p>
+ * How much of the file has been imported is recorded in a checkpoint (see {@link ImportCheckpoint}), at most every
+ * {@link #CHECKPOINT_INTERVAL_MILLIS}, so an import that fails is resumed by running it again. Each reading is sent
+ * with a reading id of the import id and its line, unless the file gives it one, so the readings sent after the
+ * checkpoint before the failure are acknowledged without being recorded again when they're sent again. That holds as
+ * long as each household has fewer of them than the consumption service's consumption.entity.dedup-window. Progress
+ * and rates are reported as it runs. Run it with {@code --help} for its options.
+ */
+public class BulkImport
+{
+  // How often the checkpoint is written, at most
+  private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+  // The backoff before the first retry of a call, doubled for each further retry
+  private static final long RETRY_BACKOFF_MILLIS = 500;
+  // The rejected and invalid readings reported individually, the rest are only counted
+  private static final int MAX_REPORTED_REJECTIONS = 20;
+  private static final int MAX_LINE_LENGTH = 4096;
+  // The order readings are sent in, by PTU then household, and in the order of the file within a household's PTU
+  private static final Comparator<Reading> SEND_ORDER = Comparator.comparingLong(Reading::getPtu)
+                                                                  .thenComparing(Reading::getConsumerId)
+                                                                  .thenComparingLong(Reading::getLine);
+
+  private final ImportSettings settings;
+  private final ConsumptionService consumptionService;
+  private final ActorSystem system;
+  private final Materializer materializer;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder lines = new LongAdder();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder invalid = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final AtomicInteger reportedRejections = new AtomicInteger();
+  // The checkpoint of the batches imported so far, and the last written
+  private volatile ImportCheckpoint imported;
+  private volatile ImportCheckpoint written;
+  private volatile long writtenNanos;
+
+  public BulkImport(ImportSettings settings, ConsumptionService consumptionService, ActorSystem system)
+  {
+    this.settings = settings;
+    this.consumptionService = consumptionService;
+    this.system = system;
+    this.materializer = ActorMaterializer.create(system);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    ImportSettings settings;
+    try {
+      settings = ImportSettings.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(ImportSettings.USAGE);
+      System.exit(2);
+      return;
+    }
+    LagomClientFactory clientFactory = LagomClientFactory.create("bulk-import", BulkImport.class.getClassLoader());
+    ActorSystem system = ActorSystem.create("bulk-import");
+    boolean completed;
+    try {
+      BulkImport bulkImport =
+        new BulkImport(settings,
+                       clientFactory.createDevClient(ConsumptionService.class, settings.getServiceLocator()),
+                       system);
+      completed = bulkImport.run();
+    } finally {
+      clientFactory.close();
+      system.terminate();
+    }
+    System.exit(completed ? 0 : 1);
+  }
+
+  /**
+   * @return whether the whole file was imported
+   */
+  public boolean run() throws Exception
+  {
+    ImportCheckpoint checkpoint = ImportCheckpoint.read(settings);
+    imported = checkpoint;
+    written = checkpoint;
+    writtenNanos = System.nanoTime();
+    if (checkpoint.equals(ImportCheckpoint.START)) {
+      System.out.println("Importing " + settings.getFile());
+    } else {
+      System.out.println("Resuming the import of " + settings.getFile() + " after line " + checkpoint.getLines() +
+                         " and " + checkpoint.getBatches() + " batches of the next lines");
+    }
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    long start = System.nanoTime();
+    long reportMillis = settings.getReportInterval().toMillis();
+    reporter.scheduleAtFixedRate(() -> reportProgress(start), reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+    boolean completed;
+    try {
+      importFrom(checkpoint).toCompletableFuture().get();
+      completed = true;
+    } catch (ExecutionException e) {
+      System.out.println("Import failed : " + e.getCause());
+      completed = false;
+    } finally {
+      reporter.shutdownNow();
+    }
+    writeCheckpoint();
+    reportImport(System.nanoTime() - start);
+    if (!completed) {
+      System.out.println("Run it again with the same options to resume it after line " + imported.getLines() +
+                         " and " + imported.getBatches() + " batches of the next lines");
+    }
+    return completed;
+  }
+
+  private CompletionStage<Done> importFrom(ImportCheckpoint checkpoint)
+  {
+    return FileIO.fromPath(settings.getFile())
+                 .via(Framing.delimiter(ByteString.fromString("\n"), MAX_LINE_LENGTH, FramingTruncation.ALLOW))
+                 .map(ByteString::utf8String)
+                 .zipWithIndex()
+                 .drop(checkpoint.getLines())
+                 .grouped(settings.getWindow())
+                 .mapConcat(this::batches)
+                 // the first window's batches imported before the checkpoint
+                 .drop(checkpoint.getBatches())
+                 // mapAsync emits the batches in order, so each one's checkpoint covers the batches before it
+                 .mapAsync(settings.getParallelism(), this::send)
+                 .runForeach(batch -> {
+                   imported = batch.getCheckpoint();
+                   if (System.nanoTime() - writtenNanos >= TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_INTERVAL_MILLIS)) {
+                     writeCheckpoint();
+                   }
+                 }, materializer);
+  }
+
+  /**
+   * @param window the lines of the window, with their index in the file
+   * @return the batches of the window's readings
+   */
+  private List<Batch> batches(List<Pair<String, Object>> window)
+  {
+    long startLines = (Long)window.get(0).second();
+    List<Reading> readings = new ArrayList<>(window.size());
+    for (Pair<String, Object> line : window) {
+      long number = (Long)line.second() + 1;
+      lines.increment();
+      if (number == 1 && settings.getFormat().hasHeader() || line.first().trim().isEmpty()) {
+        continue;
+      }
+      try {
+        readings.add(Reading.of(settings.getFormat().parse(line.first(), settings.getConsumerPrefix()),
+                                number,
+                                settings.getImportId()));
+      } catch (IllegalArgumentException e) {
+        invalid.increment();
+        reportRejection("Line " + number + " is invalid : " + e.getMessage());
+      }
+    }
+    return batches(readings, settings.getBatchSize(), startLines, startLines + window.size());
+  }
+
+  /**
+   * Groups the readings of the lines from startLines up to endLines into batches of at most the batch size, keeping
+   * the readings of a household's PTU in the same batch unless there are more of them than fit in one.
+   *
+   * @return the batches, in the order they're sent. There's always at least one, the last checkpointing the window.
+   */
+  static List<Batch> batches(List<Reading> readings, int batchSize, long startLines, long endLines)
+  {
+    List<Reading> sorted = new ArrayList<>(readings);
+    sorted.sort(SEND_ORDER);
+    List<List<Reading>> batches = new ArrayList<>();
+    List<Reading> batch = new ArrayList<>();
+    int i = 0;
+    while (i < sorted.size()) {
+      int groupEnd = i + 1;
+      while (groupEnd < sorted.size() && sorted.get(groupEnd).isSamePtu(sorted.get(i))) {
+        groupEnd++;
+      }
+      if (!batch.isEmpty() && batch.size() + groupEnd - i > batchSize) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+      }
+      for (; i < groupEnd; i++) {
+        batch.add(sorted.get(i));
+        if (batch.size() == batchSize) {
+          batches.add(batch);
+          batch = new ArrayList<>();
+        }
+      }
+    }
+    if (!batch.isEmpty() || batches.isEmpty()) {
+      batches.add(batch);
+    }
+    List<Batch> checkpointed = new ArrayList<>(batches.size());
+    for (int number = 1; number <= batches.size(); number++) {
+      checkpointed.add(new Batch(batches.get(number - 1),
+                                 number == batches.size() ? new ImportCheckpoint(endLines, 0) :
+                                 new ImportCheckpoint(startLines, number)));
+    }
+    return checkpointed;
+  }
+
+  private CompletionStage<Batch> send(Batch batch)
+  {
+    if (batch.getReadings().isEmpty()) {
+      return CompletableFuture.completedFuture(batch);
+    }
+    PSequence<Consumption> readings = TreePVector.from(batch.getReadings()
+                                                            .stream()
+                                                            .map(Reading::getConsumption)
+                                                            .collect(Collectors.toList()));
+    return call(readings, 0).thenApply(results -> {
+      // the results are in the order of the readings
+      for (int i = 0; i < results.size(); i++) {
+        IngestResult result = results.get(i);
+        if (result.isAccepted()) {
+          accepted.increment();
+        } else {
+          rejected.increment();
+          reportRejection("Line " + batch.getReadings().get(i).getLine() + " was rejected : " +
+                          result.getRejectionReason().orElse(""));
+        }
+      }
+      return batch;
+    });
+  }
+
+  /**
+   * @return the results of the readings, once a notify-batch call has succeeded and none of its readings failed,
+   * failed if a call or its readings still fail once the retries are exhausted
+   */
+  private CompletionStage<PSequence<IngestResult>> call(PSequence<Consumption> readings, int attempt)
+  {
+    return latency.time(() -> consumptionService.ingestBatch().invoke(readings))
+                  .<CompletionStage<PSequence<IngestResult>>>handle((results, failure) -> {
+                    if (failure != null) {
+                      return retry(failure, attempt, () -> call(readings, attempt + 1));
+                    }
+                    List<Integer> failed = new ArrayList<>();
+                    for (int i = 0; i < results.size(); i++) {
+                      if (results.get(i).isRetryable()) {
+                        failed.add(i);
+                      }
+                    }
+                    if (failed.isEmpty()) {
+                      return CompletableFuture.completedFuture(results);
+                    }
+                    // only the failed readings are sent again, their reading ids keep them from being recorded twice
+                    PSequence<Consumption> resent =
+                      TreePVector.from(failed.stream().map(readings::get).collect(Collectors.toList()));
+                    IllegalStateException readingsFailed = new IllegalStateException(
+                      failed.size() + " readings failed to be recorded : " +
+                      results.get(failed.get(0)).getRejectionReason().orElse(""));
+                    return retry(readingsFailed, attempt, () -> call(resent, attempt + 1).thenApply(resentResults -> {
+                      PSequence<IngestResult> merged = results;
+                      for (int i = 0; i < failed.size(); i++) {
+                        merged = merged.with(failed.get(i), resentResults.get(i));
+                      }
+                      return merged;
+                    }));
+                  })
+                  .thenCompose(Function.identity());
+  }
+
+  /**
+   * @return the retry after the backoff of the attempt, or the failure once the retries are exhausted
+   */
+  private <T> CompletionStage<T> retry(Throwable failure, int attempt, Callable<CompletionStage<T>> retry)
+  {
+    if (attempt >= settings.getRetries()) {
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(failure);
+      return failed;
+    }
+    retries.increment();
+    FiniteDuration backoff = FiniteDuration.create(RETRY_BACKOFF_MILLIS << attempt, TimeUnit.MILLISECONDS);
+    return PatternsCS.after(backoff, system.scheduler(), system.dispatcher(), retry);
+  }
+
+  private synchronized void writeCheckpoint()
+  {
+    ImportCheckpoint checkpoint = imported;
+    if (checkpoint.equals(written)) {
+      return;
+    }
+    try {
+      checkpoint.write(settings);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to write the checkpoint " + settings.getCheckpoint(), e);
+    }
+    written = checkpoint;
+    writtenNanos = System.nanoTime();
+  }
+
+  private void reportRejection(String rejection)
+  {
+    int reported = reportedRejections.incrementAndGet();
+    if (reported <= MAX_REPORTED_REJECTIONS) {
+      System.out.println(rejection);
+    } else if (reported == MAX_REPORTED_REJECTIONS + 1) {
+      System.out.println("Further rejected and invalid readings are only counted");
+    }
+  }
+
+  private void reportProgress(long start)
+  {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long sent = accepted.sum() + rejected.sum();
+    System.out.printf("%6.0fs %10d lines %10d readings %10.0f readings/s  p99 %.1f ms  %d rejected  %d invalid  " +
+                      "%d retries  checkpoint line %d%n",
+                      seconds, lines.sum(), sent, sent / seconds, latency.snapshot().percentile(99) / 1e6,
+                      rejected.sum(), invalid.sum(), retries.sum(), written.getLines());
+  }
+
+  private void reportImport(long importNanos)
+  {
+    LatencyHistogram.Snapshot snapshot = latency.snapshot();
+    double seconds = importNanos / 1e9;
+    System.out.println("Import");
+    System.out.printf("  lines     : %d read, %.0f lines/s%n", lines.sum(), lines.sum() / seconds);
+    System.out.printf("  readings  : %d accepted, %d rejected, %d invalid%n",
+                      accepted.sum(), rejected.sum(), invalid.sum());
+    System.out.printf("  throughput: %.0f readings/s over %.1f s%n", accepted.sum() / seconds, seconds);
+    System.out.printf("  latency   : p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms over %d calls, %d retries%n",
+                      snapshot.percentile(50) / 1e6, snapshot.percentile(99) / 1e6,
+                      snapshot.percentile(99.9) / 1e6, snapshot.getMax() / 1e6, snapshot.getCount(), retries.sum());
+  }
+
+  /**
+   * A reading of the file, with its line number and the number of its PTU since the epoch.
+   */
+  @Value
+  static final class Reading
+  {
+    public final Consumption consumption;
+    public final long line;
+    public final long ptu;
+
+    /**
+     * @return the reading of the line, given a reading id of the import id and its line if it hasn't one
+     * @throws IllegalArgumentException if the reading's timestamp isn't valid
+     */
+    static Reading of(Consumption reading, long line, String importId)
+    {
+      long epochSecond;
+      try {
+        epochSecond = Timestamps.parseEpochSecond(reading.getTimestamp());
+      } catch (DateTimeParseException e) {
+        throw new IllegalArgumentException("Invalid timestamp : " + reading.getTimestamp(), e);
+      }
+      Optional<String> readingId = Optional.of(reading.getReadingId().orElse(importId + ":" + line));
+      return new Reading(new Consumption(reading.getConsumerId(), reading.getTimestamp(), reading.getConsumption(),
+                                         readingId),
+                         line,
+                         Math.floorDiv(epochSecond, Timestamps.SECONDS_PER_PTU));
+    }
+
+    String getConsumerId()
+    {
+      return consumption.getConsumerId();
+    }
+
+    boolean isSamePtu(Reading reading)
+    {
+      return ptu == reading.ptu && getConsumerId().equals(reading.getConsumerId());
+    }
+  }
+
+  /**
+   * The readings sent with a notify-batch call, and the checkpoint of the import once they, and the batches before
+   * them, have been imported.
+   */
+  @Value
+  static final class Batch
+  {
+    public final List<Reading> readings;
+    public final ImportCheckpoint checkpoint;
+  }
+}
@@ -0,0 +1,61 @@
+package consumption.tools;
+
+import akka.NotUsed;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import consumption.api.Consumption;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Reads the readings of the challenge's CSV format: a header line, then a line per reading of its time
+ * ({@code dd/MM/yyyy HH:mm}), its consumption in watts and the number of its household, whose consumer id is
+ * {@code House-<number>}.
+ */
+public final class ChallengeCsv
+{
+  static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+  private static final int MAX_LINE_LENGTH = 1024;
+
+  private ChallengeCsv()
+  {
+  }
+
+  /**
+   * @return the readings of the file, read as they're pulled, with the prefix added to each consumer id
+   */
+  public static Source<Consumption, NotUsed> read(Path path, String consumerPrefix)
+  {
+    return FileIO.fromPath(path)
+                 .via(Framing.delimiter(ByteString.fromString("\n"), MAX_LINE_LENGTH, FramingTruncation.ALLOW))
+                 .map(ByteString::utf8String)
+                 .drop(1)
+                 .filter(line -> !line.trim().isEmpty())
+                 .map(line -> parse(line, consumerPrefix))
+                 .mapMaterializedValue(ioResult -> NotUsed.getInstance());
+  }
+
+  /**
+   * @throws IllegalArgumentException if the line isn't a valid reading
+   */
+  public static Consumption parse(String line, String consumerPrefix)
+  {
+    String[] fields = line.split(",");
+    if (fields.length != 3) {
+      throw new IllegalArgumentException("Expected 3 fields : " + line);
+    }
+    try {
+      LocalDateTime timestamp = LocalDateTime.parse(fields[0].trim(), TIMESTAMP_FORMAT);
+      int consumption = Integer.parseInt(fields[1].trim());
+      return new Consumption(consumerPrefix + "House-" + fields[2].trim(), timestamp.toString(), consumption);
+    } catch (DateTimeParseException | NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid reading : " + line, e);
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package consumption.tools;
+
+import consumption.api.Consumption;
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The daily usage that the readings accepted by the consumption service should add up to, by household and date.
+ */
+class ExpectedUsage
+{
+  private final ConcurrentMap<HouseholdDay, LongAdder> wattsByDay = new ConcurrentHashMap<>();
+
+  void accepted(Consumption reading)
+  {
+    // the date of an ISO-8601 local date-time
+    HouseholdDay day = new HouseholdDay(reading.getConsumerId(), reading.getTimestamp().substring(0, 10));
+    wattsByDay.computeIfAbsent(day, key -> new LongAdder()).add(reading.getConsumption());
+  }
+
+  /**
+   * @return the usage in kWh of the household day, as the usage service returns it
+   */
+  double usage(HouseholdDay day)
+  {
+    LongAdder watts = wattsByDay.get(day);
+    return (watts == null ? 0L : watts.sum()) / 1000D;
+  }
+
+  int dayCount()
+  {
+    return wattsByDay.size();
+  }
+
+  /**
+   * @return up to the number of household days at random
+   */
+  List<HouseholdDay> sample(int count, Random random)
+  {
+    List<HouseholdDay> days = new ArrayList<>(wattsByDay.keySet());
+    Collections.shuffle(days, random);
+    return new ArrayList<>(days.subList(0, Math.min(count, days.size())));
+  }
+
+  @Value
+  static class HouseholdDay
+  {
+    String consumerId;
+    String date;
+  }
+}
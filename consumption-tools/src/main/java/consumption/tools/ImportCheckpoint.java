@@ -0,0 +1,87 @@
+package consumption.tools;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * How much of a file a {@link BulkImport} has imported, every reading of it having been accepted or rejected by the
+ * consumption service, so that an import that fails can be resumed after it: the lines of the whole windows imported,
+ * and the batches of the next window imported.
+ * <p>
+ * The batches of a window depend on the window and batch size, so a checkpoint part way through a window can only be
+ * resumed with the same ones. The checkpoint is a properties file, also holding the imported file's absolute path, the
+ * window and the batch size. It's replaced atomically, by writing a temporary file and moving it over the checkpoint,
+ * so it always holds a whole checkpoint.
+ */
+@Value
+final class ImportCheckpoint
+{
+  public static final ImportCheckpoint START = new ImportCheckpoint(0, 0);
+
+  private static final String FILE = "file";
+  private static final String LINES = "lines";
+  private static final String BATCHES = "batches";
+  private static final String WINDOW = "window";
+  private static final String BATCH_SIZE = "batch-size";
+
+  public final long lines;
+  public final int batches;
+
+  /**
+   * @return the checkpoint of the import, {@link #START} if there's none
+   * @throws IllegalStateException if the checkpoint is of a different file, or it's part way through a window and the
+   *                               window or batch size are different
+   */
+  static ImportCheckpoint read(ImportSettings settings) throws IOException
+  {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(settings.getCheckpoint(), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    } catch (NoSuchFileException e) {
+      return START;
+    }
+    String file = properties.getProperty(FILE);
+    if (!settings.getFile().toAbsolutePath().toString().equals(file)) {
+      throw new IllegalStateException("The checkpoint " + settings.getCheckpoint() + " is of " + file + ", not " +
+                                      settings.getFile().toAbsolutePath());
+    }
+    ImportCheckpoint checkpoint = new ImportCheckpoint(Long.parseLong(properties.getProperty(LINES)),
+                                                       Integer.parseInt(properties.getProperty(BATCHES)));
+    String window = properties.getProperty(WINDOW);
+    String batchSize = properties.getProperty(BATCH_SIZE);
+    if (checkpoint.batches > 0 && (Integer.parseInt(window) != settings.getWindow() ||
+                                   Integer.parseInt(batchSize) != settings.getBatchSize())) {
+      throw new IllegalStateException("The checkpoint " + settings.getCheckpoint() + " can only be resumed with " +
+                                      "--window=" + window + " --batch-size=" + batchSize);
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Replaces the import's checkpoint with this one.
+   */
+  void write(ImportSettings settings) throws IOException
+  {
+    Properties properties = new Properties();
+    properties.setProperty(FILE, settings.getFile().toAbsolutePath().toString());
+    properties.setProperty(LINES, Long.toString(lines));
+    properties.setProperty(BATCHES, Integer.toString(batches));
+    properties.setProperty(WINDOW, Integer.toString(settings.getWindow()));
+    properties.setProperty(BATCH_SIZE, Integer.toString(settings.getBatchSize()));
+    Path checkpoint = settings.getCheckpoint();
+    Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+      properties.store(writer, "The progress of the bulk import of the file");
+    }
+    Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
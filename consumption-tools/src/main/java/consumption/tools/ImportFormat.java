@@ -0,0 +1,87 @@
+package consumption.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import consumption.api.Consumption;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The formats of the files a {@link BulkImport} reads, a reading per line.
+ */
+public enum ImportFormat
+{
+  /**
+   * The challenge's CSV format, see {@link ChallengeCsv}.
+   */
+  CSV(true)
+    {
+      @Override
+      public Consumption parse(String line, String consumerPrefix)
+      {
+        return ChallengeCsv.parse(line, consumerPrefix);
+      }
+    },
+  /**
+   * A JSON object per line, as the body of a notify call, e.g.
+   * {@code {"consumerId":"House-1","timestamp":"2018-04-01T10:05","consumption":120}}. The reading id is optional.
+   */
+  NDJSON(false)
+    {
+      @Override
+      public Consumption parse(String line, String consumerPrefix)
+      {
+        try {
+          JsonNode reading = MAPPER.readTree(line);
+          if (reading == null || !reading.hasNonNull("consumerId") || !reading.hasNonNull("timestamp") ||
+              !reading.path("consumption").isInt()) {
+            throw new IllegalArgumentException("Expected a consumerId, timestamp and consumption : " + line);
+          }
+          Consumption consumption = MAPPER.treeToValue(reading, Consumption.class);
+          return new Consumption(consumerPrefix + consumption.getConsumerId(),
+                                 consumption.getTimestamp(),
+                                 consumption.getConsumption(),
+                                 consumption.getReadingId());
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Invalid reading : " + line, e);
+        }
+      }
+    };
+
+  private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new ParameterNamesModule())
+                                                               .registerModule(new Jdk8Module());
+
+  private final boolean header;
+
+  ImportFormat(boolean header)
+  {
+    this.header = header;
+  }
+
+  /**
+   * @return whether the first line of a file is a header rather than a reading
+   */
+  public boolean hasHeader()
+  {
+    return header;
+  }
+
+  /**
+   * @return the reading of the line, with the prefix added to its consumer id
+   * @throws IllegalArgumentException if the line isn't a valid reading
+   */
+  public abstract Consumption parse(String line, String consumerPrefix);
+
+  /**
+   * @return the format of the file by its extension, {@link #NDJSON} for .ndjson and .jsonl files, otherwise
+   * {@link #CSV}
+   */
+  public static ImportFormat of(Path file)
+  {
+    String name = String.valueOf(file.getFileName()).toLowerCase();
+    return name.endsWith(".ndjson") || name.endsWith(".jsonl") ? NDJSON : CSV;
+  }
+}
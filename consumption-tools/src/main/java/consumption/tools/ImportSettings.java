@@ -0,0 +1,121 @@
+package consumption.tools;
+
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The settings of a {@link BulkImport} run, parsed from {@code --name=value} arguments.
+ */
+@Value
+public final class ImportSettings
+{
+  public static final String USAGE =
+    "Options, --file is required:\n" +
+    "  --file=PATH                the CSV or NDJSON file of readings to import\n" +
+    "  --format=FORMAT            csv or ndjson (ndjson for .ndjson and .jsonl files, otherwise csv)\n" +
+    "  --service-locator=URI      the service locator of the consumption service (http://localhost:9008)\n" +
+    "  --checkpoint=PATH          the file the lines imported so far are recorded in (<file>.checkpoint)\n" +
+    "  --import-id=ID             prefixes the reading id given to each reading by its line (the file's name)\n" +
+    "  --consumer-prefix=PREFIX   prefixes each consumer id ()\n" +
+    "  --window=N                 the lines grouped by household and PTU at a time (50000)\n" +
+    "  --batch-size=N             readings per notify-batch call (500)\n" +
+    "  --parallelism=N            the calls that may be awaiting a reply at once (16)\n" +
+    "  --retries=N                the times a failed call or reading is retried, with exponential backoff (5)\n" +
+    "  --report-interval=SECONDS  how often progress is reported (5)";
+
+  public final Path file;
+  public final ImportFormat format;
+  public final URI serviceLocator;
+  public final Path checkpoint;
+  public final String importId;
+  public final String consumerPrefix;
+  public final int window;
+  public final int batchSize;
+  public final int parallelism;
+  public final int retries;
+  public final Duration reportInterval;
+
+  public ImportSettings(Path file,
+                        ImportFormat format,
+                        URI serviceLocator,
+                        Path checkpoint,
+                        String importId,
+                        String consumerPrefix,
+                        int window,
+                        int batchSize,
+                        int parallelism,
+                        int retries,
+                        Duration reportInterval)
+  {
+    Preconditions.checkArgument(window > 0, "window must be positive");
+    Preconditions.checkArgument(batchSize > 0, "batch-size must be positive");
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    Preconditions.checkArgument(retries >= 0, "retries must not be negative");
+    Preconditions.checkArgument(reportInterval.getSeconds() > 0, "report-interval must be positive");
+    this.file = Preconditions.checkNotNull(file, "file");
+    this.format = Preconditions.checkNotNull(format, "format");
+    this.serviceLocator = Preconditions.checkNotNull(serviceLocator, "serviceLocator");
+    this.checkpoint = Preconditions.checkNotNull(checkpoint, "checkpoint");
+    this.importId = Preconditions.checkNotNull(importId, "importId");
+    this.consumerPrefix = Preconditions.checkNotNull(consumerPrefix, "consumerPrefix");
+    this.window = window;
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.retries = retries;
+    this.reportInterval = Preconditions.checkNotNull(reportInterval, "reportInterval");
+  }
+
+  /**
+   * @throws IllegalArgumentException if an argument isn't a known option, or its value isn't valid
+   */
+  public static ImportSettings parse(String... args)
+  {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Invalid argument : " + arg);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    try {
+      String fileName = options.remove("file");
+      if (fileName == null) {
+        throw new IllegalArgumentException("file is required");
+      }
+      Path file = Paths.get(fileName);
+      String format = options.remove("format");
+      ImportSettings settings = new ImportSettings(
+        file,
+        format == null ? ImportFormat.of(file) : ImportFormat.valueOf(format.toUpperCase()),
+        URI.create(option(options, "service-locator", "http://localhost:9008")),
+        Paths.get(option(options, "checkpoint", fileName + ".checkpoint")),
+        option(options, "import-id", String.valueOf(file.getFileName())),
+        option(options, "consumer-prefix", ""),
+        Integer.parseInt(option(options, "window", "50000")),
+        Integer.parseInt(option(options, "batch-size", "500")),
+        Integer.parseInt(option(options, "parallelism", "16")),
+        Integer.parseInt(option(options, "retries", "5")),
+        Duration.ofSeconds(Long.parseLong(option(options, "report-interval", "5"))));
+      if (!options.isEmpty()) {
+        throw new IllegalArgumentException("Unknown options : " + options.keySet());
+      }
+      return settings;
+    } catch (RuntimeException e) {
+      throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  private static String option(Map<String, String> options, String name, String defaultValue)
+  {
+    String value = options.remove(name);
+    return value == null ? defaultValue : value;
+  }
+}
@@ -0,0 +1,219 @@
+package consumption.tools;
+
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.ThrottleMode;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.lightbend.lagom.javadsl.client.integration.LagomClientFactory;
+import consumption.api.Consumption;
+import consumption.api.ConsumptionService;
+import metrics.LatencyHistogram;
+import org.pcollections.TreePVector;
+import scala.concurrent.duration.FiniteDuration;
+import usage.api.UsageQuery;
+import usage.api.UsageService;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends readings to the consumption service at a steady rate, then waits for the usage service to reflect them, to
+ * size clusters and soak test the ingest to usage pipeline.
+ * <p>
+ * The readings are generated (see {@link ReadingGenerator}), or replayed from a challenge CSV file (see
+ * {@link ChallengeCsv}), and sent with either a notify call per reading or notify-batch calls. Progress is reported
+ * as it runs, followed by the ingest throughput and latency percentiles, and the time from the last reading being
+ * accepted until the usage of a sample of the household days matches the readings. Run it with {@code --help} for
+ * its options.
+ */
+public class LoadGenerator
+{
+  // How often the usage of the sampled household days is queried
+  private static final long VERIFY_POLL_MILLIS = 500;
+
+  private final LoadSettings settings;
+  private final ConsumptionService consumptionService;
+  private final UsageService usageService;
+  private final Materializer materializer;
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final ExpectedUsage expectedUsage = new ExpectedUsage();
+
+  public LoadGenerator(LoadSettings settings,
+                       ConsumptionService consumptionService,
+                       UsageService usageService,
+                       Materializer materializer)
+  {
+    this.settings = settings;
+    this.consumptionService = consumptionService;
+    this.usageService = usageService;
+    this.materializer = materializer;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadSettings settings;
+    try {
+      settings = LoadSettings.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(LoadSettings.USAGE);
+      System.exit(2);
+      return;
+    }
+    LagomClientFactory clientFactory = LagomClientFactory.create("load-generator",
+                                                                 LoadGenerator.class.getClassLoader());
+    ActorSystem system = ActorSystem.create("load-generator");
+    boolean verified;
+    try {
+      LoadGenerator generator =
+        new LoadGenerator(settings,
+                          clientFactory.createDevClient(ConsumptionService.class, settings.getServiceLocator()),
+                          clientFactory.createDevClient(UsageService.class, settings.getServiceLocator()),
+                          ActorMaterializer.create(system));
+      verified = generator.run();
+    } finally {
+      clientFactory.close();
+      system.terminate();
+    }
+    System.exit(verified ? 0 : 1);
+  }
+
+  /**
+   * @return whether the usage service reflected the readings within the verify timeout
+   */
+  public boolean run() throws Exception
+  {
+    System.out.println("Sending readings for consumers " + settings.getConsumerPrefix() + "* at " +
+                       settings.getRate() + " readings/s");
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    long start = System.nanoTime();
+    long reportMillis = settings.getReportInterval().toMillis();
+    reporter.scheduleAtFixedRate(() -> reportProgress(start), reportMillis, reportMillis, TimeUnit.MILLISECONDS);
+    try {
+      ingest().toCompletableFuture().get();
+    } finally {
+      reporter.shutdownNow();
+    }
+    long ingestNanos = System.nanoTime() - start;
+    reportIngest(ingestNanos);
+    return verify();
+  }
+
+  private CompletionStage<?> ingest()
+  {
+    Source<Consumption, NotUsed> readings =
+      settings.getCsv()
+              .map(path -> ChallengeCsv.read(path, settings.getConsumerPrefix()))
+              .orElseGet(() -> Source.fromIterator(() -> new ReadingGenerator(settings)))
+              .throttle(settings.getRate(), FiniteDuration.create(1, TimeUnit.SECONDS), settings.getRate(),
+                        ThrottleMode.shaping());
+    if (settings.getBatchSize() == 0) {
+      return readings.mapAsyncUnordered(settings.getConcurrency(), reading ->
+        latency.time(() -> consumptionService.ingest().invoke(reading)).handle((done, failure) -> {
+          if (failure == null) {
+            accepted(reading);
+          } else {
+            failed.increment();
+          }
+          return done;
+        })).runWith(Sink.ignore(), materializer);
+    }
+    return readings.grouped(settings.getBatchSize())
+                   .mapAsyncUnordered(settings.getConcurrency(), batch ->
+                     latency.time(() -> consumptionService.ingestBatch().invoke(TreePVector.from(batch)))
+                            .handle((results, failure) -> {
+                              if (failure == null) {
+                                // the results are in the order of the readings
+                                for (int i = 0; i < batch.size(); i++) {
+                                  if (results.get(i).isAccepted()) {
+                                    accepted(batch.get(i));
+                                  } else {
+                                    rejected.increment();
+                                  }
+                                }
+                              } else {
+                                failed.add(batch.size());
+                              }
+                              return results;
+                            }))
+                   .runWith(Sink.ignore(), materializer);
+  }
+
+  private void accepted(Consumption reading)
+  {
+    accepted.increment();
+    expectedUsage.accepted(reading);
+  }
+
+  private void reportProgress(long start)
+  {
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long sent = accepted.sum() + rejected.sum() + failed.sum();
+    System.out.printf("%6.0fs %10d readings %10.0f readings/s  p99 %.1f ms  %d rejected  %d failed%n",
+                      seconds, sent, sent / seconds, latency.snapshot().percentile(99) / 1e6,
+                      rejected.sum(), failed.sum());
+  }
+
+  private void reportIngest(long ingestNanos)
+  {
+    LatencyHistogram.Snapshot snapshot = latency.snapshot();
+    double seconds = ingestNanos / 1e9;
+    System.out.println("Ingest");
+    System.out.printf("  readings  : %d accepted, %d rejected, %d failed%n",
+                      accepted.sum(), rejected.sum(), failed.sum());
+    System.out.printf("  throughput: %.0f readings/s over %.1f s%n", accepted.sum() / seconds, seconds);
+    System.out.printf("  latency   : p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms over %d calls%n",
+                      snapshot.percentile(50) / 1e6, snapshot.percentile(99) / 1e6,
+                      snapshot.percentile(99.9) / 1e6, snapshot.getMax() / 1e6, snapshot.getCount());
+  }
+
+  /**
+   * Queries the usage of a sample of the household days until each matches its readings, or the timeout passes.
+   */
+  private boolean verify() throws Exception
+  {
+    List<ExpectedUsage.HouseholdDay> pending = expectedUsage.sample(settings.getVerifySample(),
+                                                                    new Random(settings.getSeed()));
+    int sampled = pending.size();
+    System.out.println("Waiting for the usage of " + sampled + " of " + expectedUsage.dayCount() +
+                       " household days to reflect the readings");
+    long start = System.nanoTime();
+    long deadline = start + settings.getVerifyTimeout().toNanos();
+    while (!pending.isEmpty() && System.nanoTime() < deadline) {
+      pending.removeIf(day -> {
+        try {
+          double usage = usageService.queryUsage()
+                                     .invoke(new UsageQuery(day.getConsumerId(), day.getDate()))
+                                     .toCompletableFuture()
+                                     .get(10, TimeUnit.SECONDS);
+          return usage == expectedUsage.usage(day);
+        } catch (Exception e) {
+          return false;
+        }
+      });
+      if (!pending.isEmpty()) {
+        Thread.sleep(VERIFY_POLL_MILLIS);
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println("End to end");
+    if (pending.isEmpty()) {
+      System.out.printf("  usage reflected the readings %.1f s after the last was accepted%n", seconds);
+      return true;
+    }
+    System.out.printf("  usage of %d of %d household days didn't reflect the readings within %d s, e.g. %s%n",
+                      pending.size(), sampled, settings.getVerifyTimeout().getSeconds(), pending.get(0));
+    return false;
+  }
+}
@@ -0,0 +1,141 @@
+package consumption.tools;
+
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The settings of a {@link LoadGenerator} run, parsed from {@code --name=value} arguments.
+ */
+@Value
+public final class LoadSettings
+{
+  public static final String USAGE =
+    "Options, all optional:\n" +
+    "  --service-locator=URI      the service locator of the services (http://localhost:9008)\n" +
+    "  --households=N             the number of households to generate readings for (1000)\n" +
+    "  --readings=N               the number of readings to generate (100000)\n" +
+    "  --rate=N                   the readings to send per second (1000)\n" +
+    "  --ptu-spread=N             the number of PTUs each household's readings are spread over (48)\n" +
+    "  --late-ratio=R             the fraction of readings, 0 to 1, for an earlier time than the last (0)\n" +
+    "  --start-date=DATE          the date of the first generated reading (2018-04-01)\n" +
+    "  --csv=PATH                 replay the readings of a challenge CSV file instead of generating them\n" +
+    "  --batch-size=N             readings per notify-batch call, 0 sends each with a notify call (0)\n" +
+    "  --concurrency=N            the calls that may be awaiting a reply at once (64)\n" +
+    "  --consumer-prefix=PREFIX   prefixes each consumer id, so that runs don't share households (load-<run>-)\n" +
+    "  --verify-sample=N          the household days checked to reflect the readings in their usage (100)\n" +
+    "  --verify-timeout=SECONDS   how long to wait for the usage to reflect the readings (120)\n" +
+    "  --report-interval=SECONDS  how often progress is reported (5)\n" +
+    "  --seed=N                   the seed of the generated readings (1)";
+
+  public final URI serviceLocator;
+  public final int households;
+  public final long readings;
+  public final int rate;
+  public final int ptuSpread;
+  public final double lateRatio;
+  public final LocalDate startDate;
+  public final Optional<Path> csv;
+  public final int batchSize;
+  public final int concurrency;
+  public final String consumerPrefix;
+  public final int verifySample;
+  public final Duration verifyTimeout;
+  public final Duration reportInterval;
+  public final long seed;
+
+  public LoadSettings(URI serviceLocator,
+                      int households,
+                      long readings,
+                      int rate,
+                      int ptuSpread,
+                      double lateRatio,
+                      LocalDate startDate,
+                      Optional<Path> csv,
+                      int batchSize,
+                      int concurrency,
+                      String consumerPrefix,
+                      int verifySample,
+                      Duration verifyTimeout,
+                      Duration reportInterval,
+                      long seed)
+  {
+    Preconditions.checkArgument(households > 0, "households must be positive");
+    Preconditions.checkArgument(readings >= 0, "readings must not be negative");
+    Preconditions.checkArgument(rate > 0, "rate must be positive");
+    Preconditions.checkArgument(ptuSpread > 0, "ptu-spread must be positive");
+    Preconditions.checkArgument(lateRatio >= 0 && lateRatio <= 1, "late-ratio must be from 0 to 1");
+    Preconditions.checkArgument(batchSize >= 0, "batch-size must not be negative");
+    Preconditions.checkArgument(concurrency > 0, "concurrency must be positive");
+    Preconditions.checkArgument(verifySample >= 0, "verify-sample must not be negative");
+    Preconditions.checkArgument(reportInterval.getSeconds() > 0, "report-interval must be positive");
+    this.serviceLocator = Preconditions.checkNotNull(serviceLocator, "serviceLocator");
+    this.households = households;
+    this.readings = readings;
+    this.rate = rate;
+    this.ptuSpread = ptuSpread;
+    this.lateRatio = lateRatio;
+    this.startDate = Preconditions.checkNotNull(startDate, "startDate");
+    this.csv = Preconditions.checkNotNull(csv, "csv");
+    this.batchSize = batchSize;
+    this.concurrency = concurrency;
+    this.consumerPrefix = Preconditions.checkNotNull(consumerPrefix, "consumerPrefix");
+    this.verifySample = verifySample;
+    this.verifyTimeout = Preconditions.checkNotNull(verifyTimeout, "verifyTimeout");
+    this.reportInterval = Preconditions.checkNotNull(reportInterval, "reportInterval");
+    this.seed = seed;
+  }
+
+  /**
+   * @throws IllegalArgumentException if an argument isn't a known option, or its value isn't valid
+   */
+  public static LoadSettings parse(String... args)
+  {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals < 0) {
+        throw new IllegalArgumentException("Invalid argument : " + arg);
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    try {
+      LoadSettings settings = new LoadSettings(
+        URI.create(option(options, "service-locator", "http://localhost:9008")),
+        Integer.parseInt(option(options, "households", "1000")),
+        Long.parseLong(option(options, "readings", "100000")),
+        Integer.parseInt(option(options, "rate", "1000")),
+        Integer.parseInt(option(options, "ptu-spread", "48")),
+        Double.parseDouble(option(options, "late-ratio", "0")),
+        LocalDate.parse(option(options, "start-date", "2018-04-01")),
+        Optional.ofNullable(options.remove("csv")).map(Paths::get),
+        Integer.parseInt(option(options, "batch-size", "0")),
+        Integer.parseInt(option(options, "concurrency", "64")),
+        option(options, "consumer-prefix", "load-" + Long.toString(System.currentTimeMillis(), 36) + "-"),
+        Integer.parseInt(option(options, "verify-sample", "100")),
+        Duration.ofSeconds(Long.parseLong(option(options, "verify-timeout", "120"))),
+        Duration.ofSeconds(Long.parseLong(option(options, "report-interval", "5"))),
+        Long.parseLong(option(options, "seed", "1")));
+      if (!options.isEmpty()) {
+        throw new IllegalArgumentException("Unknown options : " + options.keySet());
+      }
+      return settings;
+    } catch (RuntimeException e) {
+      throw e instanceof IllegalArgumentException ? e : new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  private static String option(Map<String, String> options, String name, String defaultValue)
+  {
+    String value = options.remove(name);
+    return value == null ? defaultValue : value;
+  }
+}
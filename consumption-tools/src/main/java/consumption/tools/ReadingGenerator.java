@@ -0,0 +1,60 @@
+package consumption.tools;
+
+import consumption.api.Consumption;
+import consumption.api.Timestamps;
+
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Generates the readings of a {@link LoadGenerator} run, taking turns between the households.
+ * <p>
+ * Each household's readings are spread evenly, in time order, over the configured number of PTUs from the start
+ * date. The configured fraction of readings are late instead, for a random earlier time than the household's last
+ * reading. The readings are the same for the same settings and seed.
+ */
+public class ReadingGenerator implements Iterator<Consumption>
+{
+  private final LoadSettings settings;
+  private final Random random;
+  private final LocalDateTime start;
+  private final long spreadSeconds;
+  private final long readingsPerHousehold;
+  private long generated;
+
+  public ReadingGenerator(LoadSettings settings)
+  {
+    this.settings = settings;
+    this.random = new Random(settings.getSeed());
+    this.start = settings.getStartDate().atStartOfDay();
+    this.spreadSeconds = (long)settings.getPtuSpread() * Timestamps.SECONDS_PER_PTU;
+    this.readingsPerHousehold = Math.max(1, (settings.getReadings() + settings.getHouseholds() - 1) /
+                                            settings.getHouseholds());
+  }
+
+  @Override
+  public boolean hasNext()
+  {
+    return generated < settings.getReadings();
+  }
+
+  @Override
+  public Consumption next()
+  {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    long household = generated % settings.getHouseholds();
+    long householdReading = generated / settings.getHouseholds();
+    generated++;
+    long offsetSeconds = householdReading * spreadSeconds / readingsPerHousehold;
+    if (offsetSeconds > 0 && random.nextDouble() < settings.getLateRatio()) {
+      offsetSeconds = (long)(random.nextDouble() * offsetSeconds);
+    }
+    return new Consumption(settings.getConsumerPrefix() + household,
+                           start.plusSeconds(offsetSeconds).toString(),
+                           1 + random.nextInt(1000));
+  }
+}
@@ -0,0 +1,244 @@
+package consumption.tools;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.stream.javadsl.Source;
+import akka.testkit.JavaTestKit;
+import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.lightbend.lagom.javadsl.api.broker.Topic;
+import consumption.api.*;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.pcollections.PSequence;
+import org.pcollections.TreePVector;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class BulkImportTest
+{
+  private static final int READINGS = 200;
+  private static final int BATCH_SIZE = 10;
+  private static final int PARALLELISM = 2;
+  static ActorSystem system;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setup()
+  {
+    system = ActorSystem.create("BulkImportTest");
+  }
+
+  @AfterClass
+  public static void teardown()
+  {
+    JavaTestKit.shutdownActorSystem(system);
+    system = null;
+  }
+
+  @Test
+  public void testBatchesGroupReadingsByPtuAndHousehold()
+  {
+    List<BulkImport.Reading> readings = Arrays.asList(
+      BulkImport.Reading.of(new Consumption("House-2", "2018-04-01T10:05", 1), 11, "import"),
+      BulkImport.Reading.of(new Consumption("House-1", "2018-04-01T10:35", 2), 12, "import"),
+      BulkImport.Reading.of(new Consumption("House-1", "2018-04-01T10:10", 3), 13, "import"),
+      BulkImport.Reading.of(new Consumption("House-2", "2018-04-01T10:00", 4, Optional.of("sent")), 14, "import"),
+      BulkImport.Reading.of(new Consumption("House-1", "2018-04-01T10:00", 5), 15, "import"));
+    List<BulkImport.Batch> batches = BulkImport.batches(readings, 3, 10, 16);
+    // House-2's readings of the first PTU don't fit in the batch with House-1's, so they start the next one
+    assertEquals(Arrays.asList(Arrays.asList(13L, 15L), Arrays.asList(11L, 14L, 12L)),
+                 batches.stream()
+                        .map(batch -> batch.getReadings()
+                                           .stream()
+                                           .map(BulkImport.Reading::getLine)
+                                           .collect(Collectors.toList()))
+                        .collect(Collectors.toList()));
+    assertEquals(Arrays.asList(new ImportCheckpoint(10, 1), new ImportCheckpoint(16, 0)),
+                 batches.stream().map(BulkImport.Batch::getCheckpoint).collect(Collectors.toList()));
+    assertEquals(Optional.of("import:13"), batches.get(0).getReadings().get(0).getConsumption().getReadingId());
+    assertEquals(Optional.of("sent"), batches.get(1).getReadings().get(1).getConsumption().getReadingId());
+    assertEquals(Collections.singletonList(new BulkImport.Batch(Collections.emptyList(), new ImportCheckpoint(16, 0))),
+                 BulkImport.batches(Collections.emptyList(), 3, 10, 16));
+  }
+
+  @Test
+  public void testFailedImportIsResumedFromItsCheckpoint() throws Exception
+  {
+    List<String> lines = writeReadings();
+    ImportSettings settings = settings(0);
+    Set<String> received = ConcurrentHashMap.newKeySet();
+    AtomicInteger duplicates = new AtomicInteger();
+
+    assertFalse(new BulkImport(settings, new FakeConsumptionService(received, duplicates, 7, false), system).run());
+    ImportCheckpoint failed = ImportCheckpoint.read(settings);
+    assertNotEquals(ImportCheckpoint.START, failed);
+    assertTrue(new BulkImport(settings,
+                              new FakeConsumptionService(received, duplicates, Integer.MAX_VALUE, false),
+                              system).run());
+
+    assertEquals(expectedReadingIds(), received);
+    // only the readings sent after the checkpoint before the import failed are sent again
+    assertTrue(duplicates.get() <= PARALLELISM * BATCH_SIZE);
+    assertEquals(new ImportCheckpoint(lines.size(), 0), ImportCheckpoint.read(settings));
+  }
+
+  @Test
+  public void testFailedReadingsAreRetried() throws Exception
+  {
+    List<String> lines = writeReadings();
+    Set<String> received = ConcurrentHashMap.newKeySet();
+    AtomicInteger duplicates = new AtomicInteger();
+
+    // without retries, the import fails at the first batch rather than moving its checkpoint past the failed readings
+    ImportSettings withoutRetries = settings(0);
+    assertFalse(new BulkImport(withoutRetries,
+                               new FakeConsumptionService(received, duplicates, Integer.MAX_VALUE, true),
+                               system).run());
+    assertEquals(ImportCheckpoint.START, ImportCheckpoint.read(withoutRetries));
+    assertTrue(received.isEmpty());
+
+    ImportSettings settings = settings(1);
+    assertTrue(new BulkImport(settings, new FakeConsumptionService(received, duplicates, Integer.MAX_VALUE, true),
+                              system).run());
+    assertEquals(expectedReadingIds(), received);
+    assertEquals(0, duplicates.get());
+    assertEquals(new ImportCheckpoint(lines.size(), 0), ImportCheckpoint.read(settings));
+  }
+
+  /**
+   * Writes the readings.csv file of the readings, with an invalid line after them.
+   *
+   * @return the lines of the file
+   */
+  private List<String> writeReadings() throws IOException
+  {
+    List<String> lines = new ArrayList<>();
+    lines.add("Time,Consumption,House");
+    LocalDateTime start = LocalDateTime.of(2018, 4, 1, 0, 0);
+    for (int i = 0; i < READINGS; i++) {
+      lines.add(start.plusMinutes(i).format(ChallengeCsv.TIMESTAMP_FORMAT) + "," + i + "," + (i % 3 + 1));
+    }
+    lines.add("not a reading");
+    Files.write(folder.getRoot().toPath().resolve("readings.csv"), lines, StandardCharsets.UTF_8);
+    return lines;
+  }
+
+  private ImportSettings settings(int retries)
+  {
+    return new ImportSettings(folder.getRoot().toPath().resolve("readings.csv"), ImportFormat.CSV,
+                              URI.create("http://localhost:9008"),
+                              folder.getRoot().toPath().resolve("readings.checkpoint"),
+                              "readings.csv", "", 50, BATCH_SIZE, PARALLELISM, retries, Duration.ofSeconds(60));
+  }
+
+  private static Set<String> expectedReadingIds()
+  {
+    Set<String> expected = new HashSet<>();
+    for (int line = 2; line <= READINGS + 1; line++) {
+      expected.add("readings.csv:" + line);
+    }
+    return expected;
+  }
+
+  /**
+   * Accepts the readings of the calls before the failing call, recording their reading ids, and fails the rest.
+   * If failFirstSends is set, each reading fails without being recorded the first time it's sent.
+   */
+  private static final class FakeConsumptionService implements ConsumptionService
+  {
+    private final Set<String> received;
+    private final AtomicInteger duplicates;
+    private final int failingCall;
+    private final boolean failFirstSends;
+    private final AtomicInteger calls = new AtomicInteger();
+    private final Set<String> sent = ConcurrentHashMap.newKeySet();
+
+    private FakeConsumptionService(Set<String> received, AtomicInteger duplicates, int failingCall,
+                                   boolean failFirstSends)
+    {
+      this.received = received;
+      this.duplicates = duplicates;
+      this.failingCall = failingCall;
+      this.failFirstSends = failFirstSends;
+    }
+
+    @Override
+    public ServiceCall<PSequence<Consumption>, PSequence<IngestResult>> ingestBatch()
+    {
+      return readings -> {
+        CompletableFuture<PSequence<IngestResult>> results = new CompletableFuture<>();
+        if (calls.incrementAndGet() >= failingCall) {
+          results.completeExceptionally(new IllegalStateException("Unavailable"));
+          return results;
+        }
+        List<IngestResult> replies = new ArrayList<>();
+        for (Consumption reading : readings) {
+          if (failFirstSends && sent.add(reading.getReadingId().get())) {
+            replies.add(IngestResult.failed(reading, "Ask timed out"));
+            continue;
+          }
+          if (!received.add(reading.getReadingId().get())) {
+            duplicates.incrementAndGet();
+          }
+          replies.add(IngestResult.accepted(reading));
+        }
+        results.complete(TreePVector.from(replies));
+        return results;
+      };
+    }
+
+    @Override
+    public ServiceCall<Consumption, Done> ingest()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<Source<Consumption, NotUsed>, Source<IngestResult, NotUsed>> ingestStream()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<ConsumptionQuery, Integer> query()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<ProfileQuery, ConsumptionProfile> queryProfile()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ServiceCall<NotUsed, String> metrics()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Topic<ConsumerEvent> consumerEvents()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package consumption.tools;
+
+import consumption.api.Consumption;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChallengeCsvTest
+{
+  @Test
+  public void testParse()
+  {
+    assertEquals(new Consumption("run-1-House-2", "2017-09-20T13:05", 120),
+                 ChallengeCsv.parse("20/09/2017 13:05,120,2\r", "run-1-"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidTimestampIsRejected()
+  {
+    ChallengeCsv.parse("2017-09-20 13:05,120,2", "");
+  }
+}
@@ -0,0 +1,42 @@
+package consumption.tools;
+
+import consumption.api.Consumption;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class ImportFormatTest
+{
+  @Test
+  public void testParseNdjson()
+  {
+    assertEquals(new Consumption("region-1-House-2", "2017-09-20T13:05", 120),
+                 ImportFormat.NDJSON.parse("{\"consumerId\":\"House-2\",\"timestamp\":\"2017-09-20T13:05\"," +
+                                           "\"consumption\":120}", "region-1-"));
+    assertEquals(new Consumption("House-2", "2017-09-20T13:05", 120, Optional.of("meter-7")),
+                 ImportFormat.NDJSON.parse("{\"consumerId\":\"House-2\",\"timestamp\":\"2017-09-20T13:05\"," +
+                                           "\"consumption\":120,\"readingId\":\"meter-7\"}", ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNdjsonWithoutConsumptionIsRejected()
+  {
+    ImportFormat.NDJSON.parse("{\"consumerId\":\"House-2\",\"timestamp\":\"2017-09-20T13:05\"}", "");
+  }
+
+  @Test
+  public void testFormatIsDetectedByExtension()
+  {
+    assertEquals(ImportFormat.NDJSON, ImportFormat.of(Paths.get("backfill", "readings.NDJSON")));
+    assertEquals(ImportFormat.NDJSON, ImportFormat.of(Paths.get("readings.jsonl")));
+    assertEquals(ImportFormat.CSV, ImportFormat.of(Paths.get("readings.csv")));
+    ImportSettings settings = ImportSettings.parse("--file=readings.jsonl", "--window=1000");
+    assertEquals(ImportFormat.NDJSON, settings.getFormat());
+    assertEquals(Paths.get("readings.jsonl.checkpoint"), settings.getCheckpoint());
+    assertEquals("readings.jsonl", settings.getImportId());
+    assertEquals(1000, settings.getWindow());
+  }
+}
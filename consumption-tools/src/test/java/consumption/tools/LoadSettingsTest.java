@@ -0,0 +1,39 @@
+package consumption.tools;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+
+public class LoadSettingsTest
+{
+  @Test
+  public void testParse()
+  {
+    LoadSettings settings = LoadSettings.parse("--households=10", "--late-ratio=0.5", "--verify-timeout=30");
+    assertEquals(10, settings.getHouseholds());
+    assertEquals(0.5, settings.getLateRatio(), 0);
+    assertEquals(Duration.ofSeconds(30), settings.getVerifyTimeout());
+    assertEquals(Optional.empty(), settings.getCsv());
+    assertTrue(settings.getConsumerPrefix().startsWith("load-"));
+  }
+
+  @Test
+  public void testSettingsAreValidated()
+  {
+    try {
+      LoadSettings.parse("--households=0");
+      fail("Expected the households to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("households must be positive", e.getMessage());
+    }
+    try {
+      LoadSettings.parse("--house-holds=10");
+      fail("Expected the unknown option to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Unknown options : [house-holds]", e.getMessage());
+    }
+  }
+}
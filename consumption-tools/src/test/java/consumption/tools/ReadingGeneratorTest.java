@@ -0,0 +1,61 @@
+package consumption.tools;
+
+import consumption.api.Consumption;
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ReadingGeneratorTest
+{
+  @Test
+  public void testReadingsAreSpreadInOrderOverThePTUs()
+  {
+    LoadSettings settings = LoadSettings.parse("--households=2", "--readings=96", "--ptu-spread=48",
+                                               "--consumer-prefix=test-");
+    List<Consumption> readings = readAll(new ReadingGenerator(settings));
+    assertEquals(96, readings.size());
+    Map<String, List<LocalDateTime>> timestampsByConsumer = new HashMap<>();
+    for (Consumption reading : readings) {
+      timestampsByConsumer.computeIfAbsent(reading.getConsumerId(), id -> new ArrayList<>())
+                          .add(LocalDateTime.parse(reading.getTimestamp()));
+    }
+    assertEquals(new HashSet<>(Arrays.asList("test-0", "test-1")), timestampsByConsumer.keySet());
+    for (List<LocalDateTime> timestamps : timestampsByConsumer.values()) {
+      // one reading per PTU of the start date
+      assertEquals(48, timestamps.size());
+      for (int i = 0; i < timestamps.size(); i++) {
+        assertEquals(LocalDateTime.of(2018, 4, 1, 0, 0).plusMinutes(30 * i), timestamps.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testLateReadingsAreForEarlierTimes()
+  {
+    LoadSettings settings = LoadSettings.parse("--households=1", "--readings=1000", "--late-ratio=0.2");
+    List<Consumption> readings = readAll(new ReadingGenerator(settings));
+    LocalDateTime latest = LocalDateTime.MIN;
+    int late = 0;
+    for (Consumption reading : readings) {
+      LocalDateTime timestamp = LocalDateTime.parse(reading.getTimestamp());
+      if (timestamp.isBefore(latest)) {
+        late++;
+      } else {
+        latest = timestamp;
+      }
+    }
+    assertTrue("late readings : " + late, late > 100 && late < 300);
+    // the same seed generates the same readings
+    assertEquals(readings, readAll(new ReadingGenerator(settings)));
+  }
+
+  private static List<Consumption> readAll(Iterator<Consumption> generator)
+  {
+    List<Consumption> readings = new ArrayList<>();
+    generator.forEachRemaining(readings::add);
+    return readings;
+  }
+}
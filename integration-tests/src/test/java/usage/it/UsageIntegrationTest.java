@@ -9,12 +9,13 @@ import consumption.api.Consumption;
 import consumption.api.ConsumptionService;
 import org.hamcrest.Matchers;
 import org.junit.*;
-import usage.api.UsageQuery;
-import usage.api.UsageService;
+import usage.api.*;
 
 import java.net.URI;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Optional;
 import java.util.Scanner;
 import java.util.concurrent.*;
 
@@ -61,6 +62,26 @@ public class UsageIntegrationTest
     checkUsage("consumer-1", date2.toString(), 100L);
   }
 
+  @Test
+  public void testUsageRange() throws Exception
+  {
+    ingestConsumptionSync(TEST_DATE.atTime(10, 10), "consumer-3", 1500);
+    ingestConsumptionSync(TEST_DATE.plusDays(2).atTime(10, 10), "consumer-3", 500);
+    UsageRangeQuery query = new UsageRangeQuery("consumer-3",
+                                                TEST_DATE.toString(),
+                                                TEST_DATE.plusDays(2).toString(),
+                                                Optional.of(UsageGranularity.DAY));
+    await().atMost(35, TimeUnit.SECONDS)
+           .pollInterval(1, TimeUnit.SECONDS)
+           .until(() -> awaitCompletion(usageService.queryUsageRange().invoke(query)).getTotal(),
+                  Matchers.equalTo(2.0));
+    UsageSeries series = awaitCompletion(usageService.queryUsageRange().invoke(query));
+    assertEquals(Arrays.asList(new UsagePeriod(TEST_DATE.toString(), 1.5),
+                               new UsagePeriod(TEST_DATE.plusDays(1).toString(), 0),
+                               new UsagePeriod(TEST_DATE.plusDays(2).toString(), 0.5)),
+                 series.getPeriods());
+  }
+
   @Test
   public void testConsumeCSV() throws Exception
   {
@@ -0,0 +1,180 @@
+package metrics;
+
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A histogram of latencies in nanoseconds, cheap enough to record on every request.
+ * <p>
+ * Like HdrHistogram the buckets are log-linear: each power of two is split into {@link #SUB_BUCKETS} equal buckets,
+ * so a recorded value is known to within about 3%, whatever its magnitude. Values of up to {@link #MAX_VALUE} (about
+ * 39 hours) are counted, larger ones are counted as that. Each bucket is a {@link LongAdder}, so recording from many
+ * threads at once doesn't contend, and recording never allocates.
+ */
+public final class LatencyHistogram
+{
+  static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int MAX_EXPONENT = 46;
+  public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+  private final LongAdder[] buckets = new LongAdder[bucketIndex(MAX_VALUE) + 1];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public LatencyHistogram()
+  {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a latency in nanoseconds, negative latencies are recorded as 0.
+   */
+  public void record(long nanos)
+  {
+    long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    buckets[bucketIndex(value)].increment();
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Records the nanoseconds since the {@link System#nanoTime()} start.
+   */
+  public void recordSince(long startNanos)
+  {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Records the time the asynchronous operation takes to complete, whether it succeeds or fails.
+   */
+  public <T> CompletionStage<T> time(Supplier<? extends CompletionStage<T>> operation)
+  {
+    long start = System.nanoTime();
+    CompletionStage<T> result;
+    try {
+      result = operation.get();
+    } catch (RuntimeException e) {
+      recordSince(start);
+      throw e;
+    }
+    return result.whenComplete((value, failure) -> recordSince(start));
+  }
+
+  /**
+   * @return the counts recorded so far. Values recorded while the snapshot is taken may be partly included.
+   */
+  public Snapshot snapshot()
+  {
+    long[] counts = new long[buckets.length];
+    long total = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+      total += counts[i];
+    }
+    return new Snapshot(counts, total, sum.sum(), max.get());
+  }
+
+  /**
+   * Values below {@link #SUB_BUCKETS} each have their own bucket, above that each power of two is split into
+   * {@link #SUB_BUCKETS} buckets by the bits following its highest bit.
+   */
+  static int bucketIndex(long value)
+  {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return the highest value counted in the bucket
+   */
+  static long highestValue(int bucketIndex)
+  {
+    if (bucketIndex < SUB_BUCKETS) {
+      return bucketIndex;
+    }
+    int shift = bucketIndex / SUB_BUCKETS - 1;
+    long lowest = (long)(SUB_BUCKETS + bucketIndex % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /**
+   * The counts of a {@link LatencyHistogram} at a point in time.
+   */
+  public static final class Snapshot
+  {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max)
+    {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount()
+    {
+      return count;
+    }
+
+    /**
+     * @return the sum of the recorded latencies in nanoseconds
+     */
+    public long getSum()
+    {
+      return sum;
+    }
+
+    /**
+     * @return the largest recorded latency in nanoseconds
+     */
+    public long getMax()
+    {
+      return max;
+    }
+
+    /**
+     * @return the latency in nanoseconds that the percentile, from 0 to 100, of the recorded latencies are at or
+     * below, to within the precision of the buckets. 0 if nothing has been recorded.
+     */
+    public long percentile(double percentile)
+    {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long)Math.ceil(count * Math.min(percentile, 100) / 100));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highestValue(i), max);
+        }
+      }
+      return max;
+    }
+
+    /**
+     * @return the percentile in seconds, see {@link #percentile(double)}
+     */
+    public double percentileSeconds(double percentile)
+    {
+      return percentile(percentile) / (double)TimeUnit.SECONDS.toNanos(1);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package metrics;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * The metrics of a service, rendered in the Prometheus text format for the service's metrics call.
+ * <p>
+ * A metric is identified by its name and labels, given as alternating label names and values. Looking a metric up
+ * formats its labels, so metrics recorded on hot paths should be looked up once and held on to, recording to them
+ * is then cheap enough to leave on under production load.
+ */
+@Singleton
+public class Metrics
+{
+  // The quantiles that histograms are rendered with
+  private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+  /**
+   * @return the counter with the name and labels, created if it doesn't exist yet
+   */
+  public LongAdder counter(String name, String... labels)
+  {
+    return (LongAdder)family(name, "counter").metrics.computeIfAbsent(labels(labels), key -> new LongAdder());
+  }
+
+  /**
+   * Registers a counter with the name and labels, whose value is read from the supplier when the metrics are
+   * rendered, for counts that are kept elsewhere, e.g. a cache's statistics. A counter that's already registered is
+   * kept.
+   */
+  public void counter(String name, LongSupplier value, String... labels)
+  {
+    family(name, "counter").metrics.putIfAbsent(labels(labels), value);
+  }
+
+  /**
+   * @return the latency histogram with the name and labels, created if it doesn't exist yet. It's rendered as a
+   * summary in seconds.
+   */
+  public LatencyHistogram histogram(String name, String... labels)
+  {
+    return (LatencyHistogram)family(name, "summary").metrics.computeIfAbsent(labels(labels),
+                                                                            key -> new LatencyHistogram());
+  }
+
+  /**
+   * Registers a gauge with the name and labels, whose value is read from the supplier when the metrics are rendered.
+   * A gauge that's already registered is kept.
+   */
+  public void gauge(String name, DoubleSupplier value, String... labels)
+  {
+    family(name, "gauge").metrics.putIfAbsent(labels(labels), value);
+  }
+
+  /**
+   * @return the metrics in the Prometheus text format, in name order
+   */
+  public String render()
+  {
+    StringBuilder text = new StringBuilder();
+    new TreeMap<>(families).forEach((name, family) -> {
+      text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      new TreeMap<>(family.metrics).forEach((labels, metric) -> {
+        if (metric instanceof LongAdder) {
+          line(text, name, labels, null, ((LongAdder)metric).sum());
+        } else if (metric instanceof LongSupplier) {
+          line(text, name, labels, null, ((LongSupplier)metric).getAsLong());
+        } else if (metric instanceof DoubleSupplier) {
+          line(text, name, labels, null, ((DoubleSupplier)metric).getAsDouble());
+        } else {
+          LatencyHistogram.Snapshot snapshot = ((LatencyHistogram)metric).snapshot();
+          for (double quantile : QUANTILES) {
+            line(text, name, labels, "quantile=\"" + quantile + "\"", snapshot.percentileSeconds(quantile * 100));
+          }
+          line(text, name + "_sum", labels, null, snapshot.getSum() / 1e9);
+          line(text, name + "_count", labels, null, snapshot.getCount());
+        }
+      });
+    });
+    return text.toString();
+  }
+
+  private Family family(String name, String type)
+  {
+    Family family = families.computeIfAbsent(name, key -> new Family(type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+    }
+    return family;
+  }
+
+  private static String labels(String[] labels)
+  {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be pairs of names and values");
+    }
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        text.append(',');
+      }
+      text.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+          .append('"');
+    }
+    return text.toString();
+  }
+
+  private static void line(StringBuilder text, String name, String labels, String extraLabel, double value)
+  {
+    text.append(name);
+    if (!labels.isEmpty() || extraLabel != null) {
+      text.append('{').append(labels);
+      if (extraLabel != null) {
+        text.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+      }
+      text.append('}');
+    }
+    text.append(' ');
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      text.append((long)value);
+    } else {
+      text.append(value);
+    }
+    text.append('\n');
+  }
+
+  /**
+   * The metrics of one name, by their formatted labels.
+   */
+  private static final class Family
+  {
+    final String type;
+    final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+    Family(String type)
+    {
+      this.type = type;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest
+{
+  @Test
+  public void testBucketsAreContiguousAndWithinPrecision()
+  {
+    for (long value = 0; value < 1 << 20; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      long highest = LatencyHistogram.highestValue(index);
+      assertTrue(highest >= value);
+      assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKETS);
+      if (value > 0) {
+        // a value is either in the same bucket as the one before it, or the next one
+        int previous = LatencyHistogram.bucketIndex(value - 1);
+        assertTrue(index == previous || index == previous + 1);
+      }
+    }
+    assertEquals(LatencyHistogram.MAX_VALUE,
+                 LatencyHistogram.highestValue(LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE)));
+  }
+
+  @Test
+  public void testPercentiles()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().percentile(99));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+    }
+    histogram.record(TimeUnit.SECONDS.toNanos(5));
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1001, snapshot.getCount());
+    assertEquals(TimeUnit.SECONDS.toNanos(5), snapshot.getMax());
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(501), snapshot.percentile(50), 501 * 1000 / 32);
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(991), snapshot.percentile(99), 991 * 1000 / 32);
+    assertEquals(TimeUnit.SECONDS.toNanos(5), snapshot.percentile(100));
+    assertEquals(5.0, snapshot.percentileSeconds(100), 0);
+  }
+
+  @Test
+  public void testOutOfRangeValuesAreClamped()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(0, snapshot.percentile(50));
+    assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+  }
+
+  @Test
+  public void testTimeRecordsFailedOperations()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    CompletableFuture<String> operation = new CompletableFuture<>();
+    histogram.time(() -> operation);
+    assertEquals(0, histogram.snapshot().getCount());
+    operation.completeExceptionally(new IllegalStateException());
+    assertEquals(1, histogram.snapshot().getCount());
+  }
+}
@@ -0,0 +1,45 @@
+package metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest
+{
+  @Test
+  public void testRender()
+  {
+    Metrics metrics = new Metrics();
+    metrics.counter("events_total", "tag", "ConsumerEvent1").add(3);
+    metrics.counter("events_total", "tag", "ConsumerEvent0").increment();
+    metrics.gauge("lag_seconds", () -> 1.5);
+    metrics.counter("cache_hits_total", () -> 7);
+    metrics.histogram("ingest_seconds", "call", "ingest").record(TimeUnit.MILLISECONDS.toNanos(2));
+    assertSame(metrics.counter("events_total", "tag", "ConsumerEvent0"),
+               metrics.counter("events_total", "tag", "ConsumerEvent0"));
+    assertEquals("# TYPE cache_hits_total counter\n" +
+                 "cache_hits_total 7\n" +
+                 "# TYPE events_total counter\n" +
+                 "events_total{tag=\"ConsumerEvent0\"} 1\n" +
+                 "events_total{tag=\"ConsumerEvent1\"} 3\n" +
+                 "# TYPE ingest_seconds summary\n" +
+                 "ingest_seconds{call=\"ingest\",quantile=\"0.5\"} 0.002\n" +
+                 "ingest_seconds{call=\"ingest\",quantile=\"0.99\"} 0.002\n" +
+                 "ingest_seconds{call=\"ingest\",quantile=\"0.999\"} 0.002\n" +
+                 "ingest_seconds_sum{call=\"ingest\"} 0.002\n" +
+                 "ingest_seconds_count{call=\"ingest\"} 1\n" +
+                 "# TYPE lag_seconds gauge\n" +
+                 "lag_seconds 1.5\n",
+                 metrics.render());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMetricTypesCantBeMixed()
+  {
+    Metrics metrics = new Metrics();
+    metrics.counter("events_total");
+    metrics.histogram("events_total");
+  }
+}
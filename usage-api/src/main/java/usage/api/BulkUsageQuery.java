@@ -0,0 +1,28 @@
+package usage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+/**
+ * The request body sent to the Usage service for the total usage of many consumers over the same range of dates,
+ * from and to inclusive.
+ */
+@Value
+@JsonDeserialize
+public final class BulkUsageQuery
+{
+  public final PSequence<String> consumerIds;
+  public final String fromDate;
+  public final String toDate;
+
+  @JsonCreator
+  public BulkUsageQuery(PSequence<String> consumerIds, String fromDate, String toDate)
+  {
+    this.consumerIds = Preconditions.checkNotNull(consumerIds, "consumerIds");
+    this.fromDate = Preconditions.checkNotNull(fromDate, "fromDate");
+    this.toDate = Preconditions.checkNotNull(toDate, "toDate");
+  }
+}
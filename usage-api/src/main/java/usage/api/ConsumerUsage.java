@@ -0,0 +1,38 @@
+package usage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * The total usage, in kWh, of one consumer of a bulk usage query, or the reason it couldn't be read.
+ */
+@Value
+@JsonDeserialize
+public final class ConsumerUsage
+{
+  public final String consumerId;
+  public final double usage;
+  public final Optional<String> failureReason;
+
+  @JsonCreator
+  public ConsumerUsage(String consumerId, double usage, Optional<String> failureReason)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.usage = usage;
+    this.failureReason = failureReason == null ? Optional.empty() : failureReason;
+  }
+
+  public static ConsumerUsage of(String consumerId, double usage)
+  {
+    return new ConsumerUsage(consumerId, usage, Optional.empty());
+  }
+
+  public static ConsumerUsage failed(String consumerId, String reason)
+  {
+    return new ConsumerUsage(consumerId, 0, Optional.of(reason));
+  }
+}
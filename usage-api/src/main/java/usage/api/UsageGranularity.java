@@ -0,0 +1,30 @@
+package usage.api;
+
+/**
+ * The length of the periods of a {@link UsageSeries}.
+ */
+public enum UsageGranularity
+{
+  /**
+   * Half hour periods, labelled with their start, e.g. 2018-04-01T10:30.
+   */
+  PTU,
+  /**
+   * Hourly periods, labelled with their start, e.g. 2018-04-01T10:00.
+   */
+  HOUR,
+  /**
+   * Daily periods, labelled with their date, e.g. 2018-04-01.
+   */
+  DAY,
+  /**
+   * Monthly periods, labelled with their month, e.g. 2018-04. The first and last months only include the days of
+   * the range.
+   */
+  MONTH,
+  /**
+   * Yearly periods, labelled with their year, e.g. 2018. The first and last years only include the days of the
+   * range.
+   */
+  YEAR
+}
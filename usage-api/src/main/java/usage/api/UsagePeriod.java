@@ -0,0 +1,24 @@
+package usage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+/**
+ * The usage, in kWh, of one period of a {@link UsageSeries}.
+ */
+@Value
+@JsonDeserialize
+public final class UsagePeriod
+{
+  public final String period;
+  public final double usage;
+
+  @JsonCreator
+  public UsagePeriod(String period, double usage)
+  {
+    this.period = Preconditions.checkNotNull(period, "period");
+    this.usage = usage;
+  }
+}
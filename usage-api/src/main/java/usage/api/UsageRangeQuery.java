@@ -0,0 +1,31 @@
+package usage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+
+import java.util.Optional;
+
+/**
+ * The request body sent to the Usage service for the usage of a consumer over a range of dates, from and to
+ * inclusive. The granularity defaults to {@link UsageGranularity#DAY}.
+ */
+@Value
+@JsonDeserialize
+public final class UsageRangeQuery
+{
+  public final String consumerId;
+  public final String fromDate;
+  public final String toDate;
+  public final Optional<UsageGranularity> granularity;
+
+  @JsonCreator
+  public UsageRangeQuery(String consumerId, String fromDate, String toDate, Optional<UsageGranularity> granularity)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.fromDate = Preconditions.checkNotNull(fromDate, "fromDate");
+    this.toDate = Preconditions.checkNotNull(toDate, "toDate");
+    this.granularity = granularity == null ? Optional.empty() : granularity;
+  }
+}
@@ -0,0 +1,30 @@
+package usage.api;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.google.common.base.Preconditions;
+import lombok.Value;
+import org.pcollections.PSequence;
+
+/**
+ * The usage of a consumer over a range of dates, as the usage of every period in the range, in order, and the total
+ * usage of the range, all in kWh.
+ */
+@Value
+@JsonDeserialize
+public final class UsageSeries
+{
+  public final String consumerId;
+  public final UsageGranularity granularity;
+  public final PSequence<UsagePeriod> periods;
+  public final double total;
+
+  @JsonCreator
+  public UsageSeries(String consumerId, UsageGranularity granularity, PSequence<UsagePeriod> periods, double total)
+  {
+    this.consumerId = Preconditions.checkNotNull(consumerId, "consumerId");
+    this.granularity = Preconditions.checkNotNull(granularity, "granularity");
+    this.periods = Preconditions.checkNotNull(periods, "periods");
+    this.total = total;
+  }
+}
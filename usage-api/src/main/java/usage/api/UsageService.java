@@ -4,6 +4,8 @@ import static com.lightbend.lagom.javadsl.api.Service.named;
 import static com.lightbend.lagom.javadsl.api.Service.namedCall;
 import static com.lightbend.lagom.javadsl.api.Service.pathCall;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.Descriptor;
 import com.lightbend.lagom.javadsl.api.Service;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
@@ -21,11 +23,44 @@ public interface UsageService extends Service {
    */
   ServiceCall<UsageQuery, Double> queryUsage();
 
+  /**
+   * Example: curl -H "Content-Type: application/json" -X POST -d '{"consumerId" : "ABC123", "fromDate" : "2012-04-01", "toDate" : "2012-04-30", "granularity" : "DAY"}' http://localhost:9000/api/usage/range
+   * <p>
+   * The granularity is one of PTU, HOUR, DAY, MONTH or YEAR. Hourly and coarser usage is read from the rollups the
+   * usage projection maintains, reading each whole month or year within the range as a single row.
+   */
+  ServiceCall<UsageRangeQuery, UsageSeries> queryUsageRange();
+
+  /**
+   * Reads the total usage of many consumers over the same range of dates, streaming back a result per consumer,
+   * over a WebSocket, as each is read rather than in the order of the consumer ids.
+   */
+  ServiceCall<BulkUsageQuery, Source<ConsumerUsage, NotUsed>> queryUsageBulk();
+
+  /**
+   * As {@link #queryUsageBulk()}, for a stream of consumer ids sent over the WebSocket, so that a billing run
+   * doesn't need to hold all of its consumer ids in a single request.
+   */
+  ServiceCall<Source<String, NotUsed>, Source<ConsumerUsage, NotUsed>> queryUsageBulkStream(String fromDate,
+                                                                                            String toDate);
+
+  /**
+   * The service's metrics, in the Prometheus text format: the projection's events and lag by Kafka partition,
+   * Cassandra latencies by statement, and the hits and misses of the usage and prepared statement caches.
+   * <p>
+   * Example: curl http://localhost:9000/api/usage/metrics
+   */
+  ServiceCall<NotUsed, String> metrics();
+
   @Override
   default Descriptor descriptor() {
     return named("usage")
             .withCalls(
-              pathCall("/api/usage", this::queryUsage)
+              pathCall("/api/usage", this::queryUsage),
+              pathCall("/api/usage/range", this::queryUsageRange),
+              pathCall("/api/usage/bulk", this::queryUsageBulk),
+              pathCall("/api/usage/bulk-stream?fromDate&toDate", this::queryUsageBulkStream),
+              pathCall("/api/usage/metrics", this::metrics)
             ).withAutoAcl(true);
   }
 }
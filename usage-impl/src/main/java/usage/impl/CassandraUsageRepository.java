@@ -0,0 +1,206 @@
+package usage.impl;
+
+import akka.Done;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Stores the usage of each consumer in Cassandra, as counters per consumer and period, rolled up to each
+ * {@link UsageRollup} resolution in its own table: hourly, daily (the usage table) and monthly and yearly totals.
+ * <p>
+ * The statements are prepared once for the session (see {@link PreparedStatementCache}), and the consumption added
+ * to a counter is bound as a parameter. The latency of each Cassandra call is recorded by statement.
+ */
+@Singleton
+public class CassandraUsageRepository implements UsageRepository
+{
+  private static final Logger log = LoggerFactory.getLogger(CassandraUsageRepository.class);
+
+  // The most counter updates written in one batch, so that a consumer's updates spanning many hours don't exceed
+  // Cassandra's batch size limits
+  static final int MAX_BATCH_UPDATES = 100;
+  private static final String SELECT_USAGE = "SELECT consumption FROM usage WHERE consumerId = ? AND date = ?";
+  // The statements of each rollup, formatted with its table and period column
+  private static final Map<UsageRollup, String> CREATE_USAGE = rollupCql(
+    "CREATE TABLE IF NOT EXISTS %1$s " +
+    "(consumerId text, %2$s text, consumption counter, PRIMARY KEY (consumerId, %2$s))");
+  private static final Map<UsageRollup, String> SELECT_USAGE_RANGE = rollupCql(
+    "SELECT %2$s, consumption FROM %1$s WHERE consumerId = ? AND %2$s >= ? AND %2$s <= ?");
+  private static final Map<UsageRollup, String> UPDATE_USAGE = rollupCql(
+    "UPDATE %1$s SET consumption = consumption + ? WHERE consumerId = ? AND %2$s = ?");
+
+  private final CassandraSession uninitialisedSession;
+  private final PreparedStatementCache statements;
+  private final LatencyHistogram selectUsageLatency;
+  private final Map<UsageRollup, LatencyHistogram> selectUsageRangeLatencies = new EnumMap<>(UsageRollup.class);
+  private final LatencyHistogram updateUsageLatency;
+
+  // Will return the session when the Cassandra tables have been successfully created
+  private volatile CompletableFuture<CassandraSession> initialisedSession;
+
+  @Inject
+  public CassandraUsageRepository(CassandraSession uninitialisedSession, Metrics metrics)
+  {
+    this.uninitialisedSession = uninitialisedSession;
+    this.statements = new PreparedStatementCache(uninitialisedSession);
+    this.selectUsageLatency = metrics.histogram("usage_cassandra_seconds", "statement", "select-usage");
+    for (UsageRollup rollup : UsageRollup.values()) {
+      selectUsageRangeLatencies.put(rollup, metrics.histogram("usage_cassandra_seconds",
+                                                              "statement", "select-usage-range",
+                                                              "rollup", rollup.name().toLowerCase()));
+    }
+    this.updateUsageLatency = metrics.histogram("usage_cassandra_seconds", "statement", "update-usage");
+    metrics.counter("usage_statement_cache_hits_total", () -> statements.stats().getHits());
+    metrics.counter("usage_statement_cache_misses_total", () -> statements.stats().getMisses());
+    // Eagerly create the session
+    session();
+  }
+
+  private CompletionStage<CassandraSession> session()
+  {
+    // If there's no initialised session, or if the initialised session future completed
+    // with an exception, then reinitialise the session and attempt to create the tables
+    if (initialisedSession == null || initialisedSession.isCompletedExceptionally()) {
+      CompletionStage<Done> created = CompletableFuture.completedFuture(Done.getInstance());
+      for (UsageRollup rollup : UsageRollup.values()) {
+        created = created.thenCompose(done -> uninitialisedSession.executeCreateTable(CREATE_USAGE.get(rollup)));
+      }
+      initialisedSession = created.thenApply(done -> uninitialisedSession).toCompletableFuture();
+    }
+    return initialisedSession;
+  }
+
+  @Override
+  public CompletionStage<Double> getUsage(String consumerId, String date)
+  {
+    log.debug("Querying consumption for consumer {} at date {}", consumerId, date);
+    return session().thenCompose(session ->
+                                   statements.prepare(SELECT_USAGE)
+                                             .thenCompose(select -> selectUsageLatency.time(
+                                               () -> session.selectOne(select.bind(consumerId, date)))))
+                    .thenApply(rowMaybe -> rowMaybe.map(row -> row.getLong("consumption")).orElse(0L))
+                    .thenApply(watts -> watts / 1000D);
+  }
+
+  /**
+   * Reads the usage of the consumer's periods of the read's rollup, with a single read of the consumer's partition,
+   * as the periods sort in time order.
+   *
+   * @return the consumption in watts of each period with recorded consumption, by period label
+   */
+  @Override
+  public CompletionStage<SortedMap<String, Long>> getUsageRange(String consumerId, UsageRollup.Read read)
+  {
+    UsageRollup rollup = read.getRollup();
+    log.debug("Querying {} consumption for consumer {} from {} to {}", rollup, consumerId, read.getFromPeriod(),
+              read.getToPeriod());
+    return session().thenCompose(session ->
+                                   statements.prepare(SELECT_USAGE_RANGE.get(rollup))
+                                             .thenCompose(select -> selectUsageRangeLatencies.get(rollup).time(
+                                               () -> session.selectAll(select.bind(consumerId,
+                                                                                   read.getFromPeriod(),
+                                                                                   read.getToPeriod())))))
+                    .thenApply(rows -> {
+                      SortedMap<String, Long> usage = new TreeMap<>();
+                      rows.forEach(row -> usage.put(row.getString(rollup.column()), row.getLong("consumption")));
+                      return usage;
+                    });
+  }
+
+  /**
+   * Adds the consumption for each epoch hour to the consumer's usage in every rollup, summing the hours of each day,
+   * month and year first so that each period's counter is updated once. Each rollup's updates are written with a
+   * single batch, of the consumer's partition of its table, or one per {@link #MAX_BATCH_UPDATES} updates, and the
+   * batches are written one after another, from the hourly to the yearly rollup. Cassandra only allows counter
+   * updates in counter batches, which like unlogged batches aren't written to the batch log, but a batch of a single
+   * partition is applied as a whole or not at all.
+   * <p>
+   * If a batch fails, the rollups written before it keep their updates, and the later ones aren't written. Counter
+   * updates aren't idempotent, so when the projection redelivers the messages, those rollups are added to again.
+   * That only happens when a write fails part way through a consumer's update, and it's bounded to the usage of the
+   * messages redelivered, but it isn't detected.
+   */
+  @Override
+  public CompletionStage<Done> updateUsage(String consumerId, Map<Integer, Integer> consumptionByEpochHour)
+  {
+    if (consumptionByEpochHour.isEmpty()) {
+      return CompletableFuture.completedFuture(Done.getInstance());
+    }
+    Map<UsageRollup, Map<String, Long>> consumptionByPeriod = UsageRepository.rollUp(consumptionByEpochHour);
+    log.debug("Storing consumption for consumer {} for {} hours", consumerId, consumptionByEpochHour.size());
+    return session().thenCompose(session -> prepareUpdates().thenCompose(updates -> {
+      List<BatchStatement> batches = new ArrayList<>();
+      for (Map.Entry<UsageRollup, Map<String, Long>> rollup : consumptionByPeriod.entrySet()) {
+        PreparedStatement update = updates.get(rollup.getKey());
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.COUNTER);
+        for (Map.Entry<String, Long> period : rollup.getValue().entrySet()) {
+          if (batch.size() == MAX_BATCH_UPDATES) {
+            batches.add(batch);
+            batch = new BatchStatement(BatchStatement.Type.COUNTER);
+          }
+          batch.add(update.bind(period.getValue(), consumerId, period.getKey()));
+        }
+        batches.add(batch);
+      }
+      CompletionStage<Done> written = CompletableFuture.completedFuture(Done.getInstance());
+      for (BatchStatement batch : batches) {
+        written = written.thenCompose(done -> write(session, batch));
+      }
+      return written;
+    }));
+  }
+
+  /**
+   * @return the update statement of each rollup
+   */
+  private CompletionStage<Map<UsageRollup, PreparedStatement>> prepareUpdates()
+  {
+    CompletionStage<Map<UsageRollup, PreparedStatement>> updates =
+      CompletableFuture.completedFuture(new EnumMap<>(UsageRollup.class));
+    for (UsageRollup rollup : UsageRollup.values()) {
+      updates = updates.thenCombine(statements.prepare(UPDATE_USAGE.get(rollup)), (prepared, update) -> {
+        prepared.put(rollup, update);
+        return prepared;
+      });
+    }
+    return updates;
+  }
+
+  private CompletableFuture<Done> write(CassandraSession session, BatchStatement batch)
+  {
+    return updateUsageLatency.time(() -> session.executeWriteBatch(batch)).toCompletableFuture();
+  }
+
+  private static Map<UsageRollup, String> rollupCql(String format)
+  {
+    Map<UsageRollup, String> cql = new EnumMap<>(UsageRollup.class);
+    for (UsageRollup rollup : UsageRollup.values()) {
+      cql.put(rollup, String.format(format, rollup.table(), rollup.column()));
+    }
+    return cql;
+  }
+
+  /**
+   * @return the hits and misses of the prepared statement cache
+   */
+  public PreparedStatementCache.Stats statementCacheStats()
+  {
+    return statements.stats();
+  }
+}
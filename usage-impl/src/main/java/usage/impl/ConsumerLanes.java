@@ -0,0 +1,40 @@
+package usage.impl;
+
+import akka.Done;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * Orders the usage writes of each consumer while letting different consumers' writes proceed concurrently.
+ * <p>
+ * Consumers are hashed into a fixed number of lanes, and a write submitted to a lane only starts once the lane's
+ * previous write has completed, so the writes for one consumer happen in the order they were submitted. Once a write
+ * fails, every later write in its lane fails without being started.
+ * <p>
+ * Writes must be submitted from a single thread, e.g. from within a stream stage.
+ */
+public final class ConsumerLanes
+{
+  private final CompletableFuture<?>[] tails;
+
+  public ConsumerLanes(int laneCount)
+  {
+    tails = new CompletableFuture<?>[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      tails[i] = CompletableFuture.completedFuture(Done.getInstance());
+    }
+  }
+
+  /**
+   * @return a stage completed when the write, started after all earlier writes in the consumer's lane, is
+   */
+  public CompletionStage<Done> submit(String consumerId, Supplier<CompletionStage<Done>> write)
+  {
+    int lane = (consumerId.hashCode() & Integer.MAX_VALUE) % tails.length;
+    CompletableFuture<Done> result = tails[lane].thenCompose(previous -> write.get()).toCompletableFuture();
+    tails[lane] = result;
+    return result;
+  }
+}
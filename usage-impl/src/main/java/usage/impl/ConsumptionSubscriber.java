@@ -1,44 +1,127 @@
 package usage.impl;
 
 import akka.Done;
+import akka.NotUsed;
 import akka.stream.javadsl.Flow;
+import com.lightbend.lagom.javadsl.api.broker.Message;
 import consumption.api.ConsumerEvent;
 import consumption.api.ConsumptionService;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.concurrent.duration.FiniteDuration;
 
 import javax.inject.Inject;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.util.concurrent.CompletableFuture;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * This subscribes to the ConsumptionService event stream.
+ * <p>
+ * Messages are collected into batches of up to the configured size, or whatever arrives within the configured window,
+ * and each batch's consumption is summed by consumer and hour before the usage is updated (see {@link UsageBatch}).
+ * The repository rolls each hour's consumption up to its day, month and year (see {@link UsageRollup}).
+ * The messages of a batch are only acknowledged, so their offsets committed, once all of its updates have succeeded.
+ * <p>
+ * Up to the configured parallelism of batches are written at once. Each consumer's writes are kept in order by
+ * hashing consumers into that many lanes (see {@link ConsumerLanes}), and the batches are acknowledged in order.
+ * <p>
+ * The events received, and the lag of the projection once their usage is written, are recorded by Kafka partition
+ * (see {@link ProjectionMetrics}).
  */
 public class ConsumptionSubscriber
 {
+  private static final Logger log = LoggerFactory.getLogger(ConsumptionSubscriber.class);
+
+  /**
+   * Adds the consumption for each epoch hour to the usage of the consumer.
+   */
+  @FunctionalInterface
+  public interface UsageUpdater
+  {
+    CompletionStage<Done> updateUsage(String consumerId, Map<Integer, Integer> consumptionByEpochHour);
+  }
+
   @Inject
-  public ConsumptionSubscriber(ConsumptionService consumptionService, UsageRepository repository)
+  public ConsumptionSubscriber(ConsumptionService consumptionService,
+                               UsageRepository repository,
+                               UsageCache cache,
+                               Metrics metrics,
+                               ProjectionSettings settings)
   {
-    // Create a subscriber
-    consumptionService.consumerEvents().subscribe()
+    ProjectionMetrics projectionMetrics = new ProjectionMetrics(metrics);
+    // Invalidate the cached usage of the updated days once the update is written
+    UsageUpdater updater = (consumerId, consumptionByEpochHour) ->
+      repository.updateUsage(consumerId, consumptionByEpochHour).thenApply(done -> {
+        cache.invalidate(consumerId, epochDays(consumptionByEpochHour.keySet()));
+        return done;
+      });
+    // Create a subscriber, with the Kafka metadata of each message
+    consumptionService.consumerEvents().subscribe().withMetadata()
                       // And subscribe to it with at least once processing semantics.
-                      .atLeastOnce(
-                        // Create a flow that emits a Done for each message it processes
-                        Flow.<ConsumerEvent>create().mapAsync(1, event -> {
-                          System.out.println("Usage Service received " + event);
-                          if (event instanceof ConsumerEvent.ConsumptionRecorded) {
-                            ConsumerEvent.ConsumptionRecorded consumptionRecorded =
-                              (ConsumerEvent.ConsumptionRecorded)event;
-                            // Update the message
-                            LocalDateTime timestamp = LocalDateTime.parse(consumptionRecorded.getTimestamp());
-                            return repository.updateUsage(consumptionRecorded.getConsumerId(),
-                                                          timestamp,
-                                                          consumptionRecorded.getConsumption());
-                          } else {
-                            // Ignore all other events
-                            return CompletableFuture.completedFuture(Done.getInstance());
-                          }
-                        })
-                      );
+                      .atLeastOnce(Flow.<Message<ConsumerEvent>>create()
+                                       .map(message -> {
+                                         projectionMetrics.received(message);
+                                         return message;
+                                       })
+                                       .via(usageFlow(updater, settings,
+                                                      batch -> projectionMetrics.written(batch.newestEpochSeconds()))));
 
   }
+
+  private static Set<Integer> epochDays(Collection<Integer> epochHours)
+  {
+    Set<Integer> epochDays = new HashSet<>();
+    for (int epochHour : epochHours) {
+      epochDays.add(UsageRollup.epochDay(epochHour));
+    }
+    return epochDays;
+  }
+
+  /**
+   * @return a flow that updates the usage for the messages it processes, and emits a Done for each of them once
+   * the update has been written
+   */
+  public static Flow<ConsumerEvent, Done, NotUsed> usageFlow(UsageUpdater updater, ProjectionSettings settings)
+  {
+    return Flow.<ConsumerEvent>create()
+               .map(Message::create)
+               .via(usageFlow(updater, settings, written -> { }));
+  }
+
+  /**
+   * @param written passed each batch once its usage has been written, in the order of the messages
+   * @return a flow that updates the usage for the messages it processes, and emits a Done for each of them once
+   * the update has been written
+   */
+  static Flow<Message<ConsumerEvent>, Done, NotUsed> usageFlow(UsageUpdater updater,
+                                                                ProjectionSettings settings,
+                                                                Consumer<UsageBatch> written)
+  {
+    return Flow.<Message<ConsumerEvent>>create()
+               .groupedWithin(settings.getBatchSize(),
+                              FiniteDuration.create(settings.getBatchWindow().toNanos(), TimeUnit.NANOSECONDS))
+               // Start writing each batch in the lanes of this materialization of the flow
+               .statefulMapConcat(() -> {
+                 ConsumerLanes lanes = new ConsumerLanes(settings.getParallelism());
+                 return messages -> {
+                   UsageBatch batch = UsageBatch.ofMessages(messages);
+                   log.debug("Usage Service received {} messages, writing {} usage updates for {} consumers",
+                             batch.messageCount(), batch.updateCount(), batch.consumerCount());
+                   return Collections.singletonList(batch.write(updater, lanes).thenApply(done -> batch));
+                 };
+               })
+               .mapAsync(settings.getParallelism(), batch -> batch)
+               // Acknowledge every message of each batch once all of its updates are written
+               .mapConcat(batch -> {
+                 written.accept(batch);
+                 return Collections.nCopies(batch.messageCount(), Done.getInstance());
+               });
+  }
 }
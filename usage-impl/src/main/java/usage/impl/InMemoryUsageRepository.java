@@ -0,0 +1,90 @@
+package usage.impl;
+
+import akka.Done;
+
+import javax.inject.Singleton;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Stores the usage of each consumer on the heap, for tests, benchmarks and small environments. The usage is lost
+ * when the service stops, and isn't shared between instances of the service.
+ * <p>
+ * The consumers are hashed into stripes, each a map of its consumers' usage guarded by its own lock, so updates and
+ * reads of consumers in different stripes don't contend. A consumer's usage is held as a sorted map of each rollup's
+ * periods, so range reads are a copy of a sub map.
+ */
+@Singleton
+public class InMemoryUsageRepository implements UsageRepository
+{
+  private static final int LOCK_STRIPES = 64;
+
+  // consumer id -> rollup -> period label -> consumption in watts, by stripe
+  @SuppressWarnings("unchecked")
+  private final Map<String, Map<UsageRollup, NavigableMap<String, Long>>>[] stripes = new Map[LOCK_STRIPES];
+
+  public InMemoryUsageRepository()
+  {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new HashMap<>();
+    }
+  }
+
+  @Override
+  public CompletionStage<Double> getUsage(String consumerId, String date)
+  {
+    Map<String, Map<UsageRollup, NavigableMap<String, Long>>> stripe = stripe(consumerId);
+    long watts;
+    synchronized (stripe) {
+      Map<UsageRollup, NavigableMap<String, Long>> usage = stripe.get(consumerId);
+      watts = usage == null ? 0 : usage.get(UsageRollup.DAY).getOrDefault(date, 0L);
+    }
+    return CompletableFuture.completedFuture(watts / 1000D);
+  }
+
+  @Override
+  public CompletionStage<SortedMap<String, Long>> getUsageRange(String consumerId, UsageRollup.Read read)
+  {
+    Map<String, Map<UsageRollup, NavigableMap<String, Long>>> stripe = stripe(consumerId);
+    SortedMap<String, Long> periods = new TreeMap<>();
+    synchronized (stripe) {
+      Map<UsageRollup, NavigableMap<String, Long>> usage = stripe.get(consumerId);
+      if (usage != null) {
+        periods.putAll(usage.get(read.getRollup()).subMap(read.getFromPeriod(), true, read.getToPeriod(), true));
+      }
+    }
+    return CompletableFuture.completedFuture(periods);
+  }
+
+  @Override
+  public CompletionStage<Done> updateUsage(String consumerId, Map<Integer, Integer> consumptionByEpochHour)
+  {
+    Map<UsageRollup, Map<String, Long>> consumptionByPeriod = UsageRepository.rollUp(consumptionByEpochHour);
+    Map<String, Map<UsageRollup, NavigableMap<String, Long>>> stripe = stripe(consumerId);
+    synchronized (stripe) {
+      Map<UsageRollup, NavigableMap<String, Long>> usage = stripe.computeIfAbsent(consumerId, id -> {
+        Map<UsageRollup, NavigableMap<String, Long>> rollups = new EnumMap<>(UsageRollup.class);
+        for (UsageRollup rollup : UsageRollup.values()) {
+          rollups.put(rollup, new TreeMap<>());
+        }
+        return rollups;
+      });
+      consumptionByPeriod.forEach((rollup, periods) -> {
+        NavigableMap<String, Long> rollupUsage = usage.get(rollup);
+        periods.forEach((period, consumption) -> rollupUsage.merge(period, consumption, Long::sum));
+      });
+    }
+    return CompletableFuture.completedFuture(Done.getInstance());
+  }
+
+  private Map<String, Map<UsageRollup, NavigableMap<String, Long>>> stripe(String consumerId)
+  {
+    return stripes[Math.floorMod(consumerId.hashCode(), LOCK_STRIPES)];
+  }
+}
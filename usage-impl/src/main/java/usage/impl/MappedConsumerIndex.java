@@ -0,0 +1,101 @@
+package usage.impl;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Numbers each consumer densely from 0, in the order they're first seen, so that a consumer's usage can be held in a
+ * fixed size slot at its number in each {@link MappedSegment}.
+ * <p>
+ * The consumers are held in a file in their order, each as its id's length in UTF-8 bytes, as 2 bytes, and then its
+ * bytes, and are read back into a map when the index is opened. A consumer is written, and forced to disk, before its
+ * number is used, so a number is never given to another consumer after a crash. An entry that was only partly written
+ * is truncated when the index is next opened.
+ */
+final class MappedConsumerIndex
+{
+  private static final int MAX_ID_BYTES = 0xFFFF;
+
+  private final FileChannel channel;
+  private final ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<>();
+
+  MappedConsumerIndex(Path file) throws IOException
+  {
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+    ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(file));
+    while (entries.remaining() >= Short.BYTES) {
+      int length = entries.getShort(entries.position()) & MAX_ID_BYTES;
+      if (entries.remaining() < Short.BYTES + length) {
+        break;
+      }
+      entries.position(entries.position() + Short.BYTES);
+      byte[] id = new byte[length];
+      entries.get(id);
+      slots.put(new String(id, StandardCharsets.UTF_8), slots.size());
+    }
+    if (entries.hasRemaining()) {
+      System.out.println("Truncating the partly written last consumer of " + file);
+      channel.truncate(entries.position());
+    }
+    channel.position(entries.position());
+  }
+
+  /**
+   * @return the consumer's slot, -1 if it hasn't been given one
+   */
+  public int slot(String consumerId)
+  {
+    Integer slot = slots.get(consumerId);
+    return slot == null ? -1 : slot;
+  }
+
+  /**
+   * @return the consumer's slot, giving it the next one if it hasn't been given one
+   */
+  public int slotFor(String consumerId) throws IOException
+  {
+    int slot = slot(consumerId);
+    return slot >= 0 ? slot : add(consumerId);
+  }
+
+  private synchronized int add(String consumerId) throws IOException
+  {
+    Integer slot = slots.get(consumerId);
+    if (slot != null) {
+      return slot;
+    }
+    byte[] id = consumerId.getBytes(StandardCharsets.UTF_8);
+    Preconditions.checkArgument(id.length <= MAX_ID_BYTES, "Consumer id is longer than %s bytes", MAX_ID_BYTES);
+    ByteBuffer entry = ByteBuffer.allocate(Short.BYTES + id.length);
+    entry.putShort((short)id.length).put(id).flip();
+    while (entry.hasRemaining()) {
+      channel.write(entry);
+    }
+    channel.force(false);
+    slots.put(consumerId, slots.size());
+    return slots.size() - 1;
+  }
+
+  public int size()
+  {
+    return slots.size();
+  }
+
+  /**
+   * Closes the index's file, after which no consumers can be added.
+   */
+  public synchronized void close() throws IOException
+  {
+    channel.close();
+  }
+}
@@ -0,0 +1,137 @@
+package usage.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file of counters, held as a fixed size slot of longs for each consumer at its number in the
+ * {@link MappedConsumerIndex}.
+ * <p>
+ * The file is memory-mapped in blocks of {@link #BLOCK_SLOTS} slots, each mapped the first time it's used, so that no
+ * single mapping exceeds the 2GB a buffer can address however many consumers there are. The file is extended a block
+ * at a time as consumers are added, and the blocks' untouched pages take no disk space on file systems with sparse
+ * files. Counters are read and added to in place in the mapped pages, so they're never copied in or out of the heap.
+ * The operating system writes the pages back to the file in its own time, and {@link #force()} writes back the blocks
+ * added to since it was last called. Callers must not read or add to a slot's counters from two threads at once.
+ */
+final class MappedSegment
+{
+  static final int BLOCK_SLOTS = 4096;
+
+  private final Path file;
+  private final int slotLongs;
+  private final long blockBytes;
+  // the blocks mapped so far by block number, null if not mapped, replaced with a longer copy to map more blocks
+  private volatile MappedByteBuffer[] blocks = new MappedByteBuffer[0];
+  // the numbers of the blocks added to since they were last forced
+  private final Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+  MappedSegment(Path file, int slotLongs)
+  {
+    this.file = file;
+    this.slotLongs = slotLongs;
+    this.blockBytes = (long)BLOCK_SLOTS * slotLongs * Long.BYTES;
+  }
+
+  /**
+   * @return the slot's counter, 0 if it has never been added to
+   */
+  public long get(int slot, int counter)
+  {
+    MappedByteBuffer block = block(slot / BLOCK_SLOTS, false);
+    return block == null ? 0 : block.getLong(offset(slot, counter));
+  }
+
+  /**
+   * Adds the value to the slot's counter.
+   */
+  public void add(int slot, int counter, long value)
+  {
+    MappedByteBuffer block = block(slot / BLOCK_SLOTS, true);
+    int offset = offset(slot, counter);
+    block.putLong(offset, block.getLong(offset) + value);
+    dirty.add(slot / BLOCK_SLOTS);
+  }
+
+  /**
+   * Writes the blocks added to since the last force back to the file, so that every addition made before the call is
+   * on disk once it returns.
+   */
+  public void force()
+  {
+    for (Integer number : dirty) {
+      // an addition made after the block is removed is either written now, or leaves it dirty for the next force
+      dirty.remove(number);
+      blocks[number].force();
+    }
+  }
+
+  /**
+   * Maps the block holding the slot, extending the file if need be, so that adding to its counters can't fail.
+   */
+  public void reserve(int slot)
+  {
+    block(slot / BLOCK_SLOTS, true);
+  }
+
+  private int offset(int slot, int counter)
+  {
+    return ((slot % BLOCK_SLOTS) * slotLongs + counter) * Long.BYTES;
+  }
+
+  /**
+   * @return the mapped block, or if it's not in the file and create is false, null
+   */
+  private MappedByteBuffer block(int number, boolean create)
+  {
+    MappedByteBuffer[] mapped = blocks;
+    if (number < mapped.length && mapped[number] != null) {
+      return mapped[number];
+    }
+    return map(number, create);
+  }
+
+  private synchronized MappedByteBuffer map(int number, boolean create)
+  {
+    MappedByteBuffer[] mapped = blocks;
+    if (number < mapped.length && mapped[number] != null) {
+      return mapped[number];
+    }
+    long position = number * blockBytes;
+    try {
+      if (!create && size() < position + blockBytes) {
+        return null;
+      }
+      // mapping a region beyond the end of the file extends it, and the mapping stays valid once it's closed
+      MappedByteBuffer block;
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                  StandardOpenOption.WRITE)) {
+        block = channel.map(FileChannel.MapMode.READ_WRITE, position, blockBytes);
+      }
+      MappedByteBuffer[] remapped = Arrays.copyOf(mapped, Math.max(mapped.length, number + 1));
+      remapped[number] = block;
+      blocks = remapped;
+      return block;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to map block " + number + " of " + file, e);
+    }
+  }
+
+  private long size() throws IOException
+  {
+    try {
+      return Files.size(file);
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+}
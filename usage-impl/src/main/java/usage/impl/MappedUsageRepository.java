@@ -0,0 +1,342 @@
+package usage.impl;
+
+import akka.Done;
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stores the usage of each consumer in memory-mapped files in a directory on the service's own disk, for single-site
+ * deployments and edge aggregators that serve usage queries without a Cassandra cluster.
+ * <p>
+ * Each consumer is given a dense number by the consumer index (see {@link MappedConsumerIndex}), and its usage is held
+ * in a fixed size slot at that number in a segment file per month, holding the counters of each hour of the month and
+ * then of each day, and a segment file per year, holding the counters of each month and then of the year (see
+ * {@link MappedSegment}). So updates add to each counter in place, and reads of a range of periods read consecutive
+ * counters straight from the mapped pages.
+ * <p>
+ * A consumer's counters are only read and updated while holding the lock of its stripe. An update only completes once
+ * the blocks it added to have been forced to disk, so the projection only commits the offsets of messages whose usage
+ * survives a failure of the host. The blocks are forced by a single flusher thread, as soon as the previous force
+ * has finished, so the updates made while a force is in progress share the next one, rather than each waiting for a
+ * force of its own. If a force fails, its updates fail, although their counters have been added to, so the
+ * redelivered messages add to them again.
+ * <p>
+ * The repository is closed when the application stops: the flusher finishes its force, the blocks added to since are
+ * forced, the updates still waiting complete, and the consumer index is closed. Updates after that fail, so their
+ * messages aren't acknowledged. The blocks stay mapped until they're garbage collected, as Java has no API to unmap
+ * them, but their files aren't held open.
+ */
+@Singleton
+public class MappedUsageRepository implements UsageRepository
+{
+  private static final int HOURS_PER_DAY = 24;
+  private static final int MAX_DAYS_PER_MONTH = 31;
+  // A month segment's slot: the hours of each day of the month, then the days
+  private static final int MONTH_HOURS = MAX_DAYS_PER_MONTH * HOURS_PER_DAY;
+  private static final int MONTH_SLOT_LONGS = MONTH_HOURS + MAX_DAYS_PER_MONTH;
+  // A year segment's slot: the months, then the year
+  private static final int YEAR_COUNTER = 12;
+  private static final int YEAR_SLOT_LONGS = YEAR_COUNTER + 1;
+  private static final String SEGMENT_SUFFIX = ".usage";
+  private static final int LOCK_STRIPES = 64;
+
+  private final Path directory;
+  private final MappedConsumerIndex consumers;
+  // segment file name -> segment, the segments used so far
+  private final ConcurrentMap<String, MappedSegment> segments = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[LOCK_STRIPES];
+  private final LatencyHistogram selectUsageLatency;
+  private final LatencyHistogram selectUsageRangeLatency;
+  private final LatencyHistogram updateUsageLatency;
+  // The updates waiting for their blocks to be forced, and whether a force is scheduled
+  private final Queue<CompletableFuture<Done>> unforced = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean forceScheduled = new AtomicBoolean();
+  private volatile boolean closed;
+  private final ExecutorService flusher = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "usage-mapped-flusher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Inject
+  public MappedUsageRepository(Config config, Metrics metrics, ApplicationLifecycle lifecycle) throws IOException
+  {
+    this(Paths.get(config.getString("usage.mapped.directory")), metrics);
+    lifecycle.addStopHook(() -> {
+      close();
+      return CompletableFuture.completedFuture(Done.getInstance());
+    });
+  }
+
+  public MappedUsageRepository(Path directory, Metrics metrics) throws IOException
+  {
+    this.directory = Files.createDirectories(directory);
+    this.consumers = new MappedConsumerIndex(directory.resolve("consumers"));
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+    this.selectUsageLatency = metrics.histogram("usage_mapped_seconds", "operation", "select-usage");
+    this.selectUsageRangeLatency = metrics.histogram("usage_mapped_seconds", "operation", "select-usage-range");
+    this.updateUsageLatency = metrics.histogram("usage_mapped_seconds", "operation", "update-usage");
+    metrics.gauge("usage_mapped_consumers", consumers::size);
+    System.out.println("Storing usage in " + directory.toAbsolutePath() + ", for " + consumers.size() +
+                       " consumers");
+  }
+
+  @Override
+  public CompletionStage<Double> getUsage(String consumerId, String date)
+  {
+    long start = System.nanoTime();
+    int slot = consumers.slot(consumerId);
+    long watts = 0;
+    if (slot >= 0) {
+      try {
+        LocalDate day = LocalDate.parse(date);
+        synchronized (lock(slot)) {
+          watts = monthSegment(day).get(slot, dayCounter(day));
+        }
+      } catch (DateTimeParseException e) {
+        // no usage is recorded for a date that isn't one
+      }
+    }
+    selectUsageLatency.recordSince(start);
+    return CompletableFuture.completedFuture(watts / 1000D);
+  }
+
+  @Override
+  public CompletionStage<SortedMap<String, Long>> getUsageRange(String consumerId, UsageRollup.Read read)
+  {
+    long start = System.nanoTime();
+    SortedMap<String, Long> usage = new TreeMap<>();
+    int slot = consumers.slot(consumerId);
+    if (slot >= 0) {
+      synchronized (lock(slot)) {
+        readRange(slot, read, usage);
+      }
+    }
+    selectUsageRangeLatency.recordSince(start);
+    return CompletableFuture.completedFuture(usage);
+  }
+
+  /**
+   * Adds the consumption in watts of each of the read's periods with recorded consumption to the usage.
+   */
+  private void readRange(int slot, UsageRollup.Read read, Map<String, Long> usage)
+  {
+    String from = read.getFromPeriod();
+    String to = read.getToPeriod();
+    switch (read.getRollup()) {
+      case HOUR:
+        int fromHour = (int)LocalDate.parse(from.substring(0, 10)).toEpochDay() * HOURS_PER_DAY + hour(from);
+        int toHour = (int)LocalDate.parse(to.substring(0, 10)).toEpochDay() * HOURS_PER_DAY + hour(to);
+        for (int epochHour = fromHour; epochHour <= toHour; epochHour++) {
+          LocalDate day = LocalDate.ofEpochDay(UsageRollup.epochDay(epochHour));
+          put(usage, UsageRollup.hourPeriod(epochHour), monthSegment(day).get(slot, hourCounter(day, epochHour)));
+        }
+        break;
+      case DAY:
+        LocalDate toDay = LocalDate.parse(to);
+        for (LocalDate day = LocalDate.parse(from); !day.isAfter(toDay); day = day.plusDays(1)) {
+          put(usage, day.toString(), monthSegment(day).get(slot, dayCounter(day)));
+        }
+        break;
+      case MONTH:
+        YearMonth toMonth = YearMonth.parse(to);
+        for (YearMonth month = YearMonth.parse(from); !month.isAfter(toMonth); month = month.plusMonths(1)) {
+          put(usage, month.toString(), yearSegment(month.getYear()).get(slot, month.getMonthValue() - 1));
+        }
+        break;
+      case YEAR:
+        for (Year year = Year.parse(from); !year.isAfter(Year.parse(to)); year = year.plusYears(1)) {
+          put(usage, year.toString(), yearSegment(year.getValue()).get(slot, YEAR_COUNTER));
+        }
+        break;
+    }
+  }
+
+  private static void put(Map<String, Long> usage, String period, long watts)
+  {
+    if (watts != 0) {
+      usage.put(period, watts);
+    }
+  }
+
+  /**
+   * Adds the consumption for each epoch hour to the consumer's counters of the hour, and of its day, month and year.
+   * Every block the update adds to is mapped before any counter is added to, so that an update that fails to map a
+   * block adds none of its consumption.
+   *
+   * @return a stage completed once the counters added to have been forced to disk
+   */
+  @Override
+  public CompletionStage<Done> updateUsage(String consumerId, Map<Integer, Integer> consumptionByEpochHour)
+  {
+    if (consumptionByEpochHour.isEmpty()) {
+      return CompletableFuture.completedFuture(Done.getInstance());
+    }
+    long start = System.nanoTime();
+    CompletableFuture<Done> updated = new CompletableFuture<>();
+    try {
+      Preconditions.checkState(!closed, "The usage repository in %s is closed", directory);
+      int slot = consumers.slotFor(consumerId);
+      for (int epochHour : consumptionByEpochHour.keySet()) {
+        LocalDate day = LocalDate.ofEpochDay(UsageRollup.epochDay(epochHour));
+        monthSegment(day).reserve(slot);
+        yearSegment(day.getYear()).reserve(slot);
+      }
+      synchronized (lock(slot)) {
+        consumptionByEpochHour.forEach((epochHour, consumption) -> {
+          LocalDate day = LocalDate.ofEpochDay(UsageRollup.epochDay(epochHour));
+          MappedSegment month = monthSegment(day);
+          month.add(slot, hourCounter(day, epochHour), consumption);
+          month.add(slot, dayCounter(day), consumption);
+          MappedSegment year = yearSegment(day.getYear());
+          year.add(slot, day.getMonthValue() - 1, consumption);
+          year.add(slot, YEAR_COUNTER, consumption);
+        });
+      }
+      unforced.add(updated);
+      scheduleForce();
+    } catch (IOException | UncheckedIOException | IllegalArgumentException | IllegalStateException e) {
+      updated.completeExceptionally(e);
+    }
+    return updated.whenComplete((done, failure) -> updateUsageLatency.recordSince(start));
+  }
+
+  private void scheduleForce()
+  {
+    if (forceScheduled.compareAndSet(false, true)) {
+      try {
+        flusher.execute(this::force);
+      } catch (RejectedExecutionException e) {
+        // it's being closed, and the flusher has stopped
+        force();
+      }
+    }
+  }
+
+  /**
+   * Forces the blocks added to, then completes the updates that were waiting for them before it started.
+   */
+  private void force()
+  {
+    forceScheduled.set(false);
+    List<CompletableFuture<Done>> forced = drainUnforced();
+    if (!forced.isEmpty()) {
+      force(forced);
+    }
+  }
+
+  private List<CompletableFuture<Done>> drainUnforced()
+  {
+    List<CompletableFuture<Done>> drained = new ArrayList<>();
+    for (CompletableFuture<Done> update = unforced.poll(); update != null; update = unforced.poll()) {
+      drained.add(update);
+    }
+    return drained;
+  }
+
+  /**
+   * Forces the blocks added to, then completes the updates.
+   */
+  private void force(List<CompletableFuture<Done>> forced)
+  {
+    try {
+      for (MappedSegment segment : segments.values()) {
+        segment.force();
+      }
+      forced.forEach(update -> update.complete(Done.getInstance()));
+    } catch (RuntimeException e) {
+      System.out.println("Failed to force the usage to disk : " + e);
+      forced.forEach(update -> update.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * Stops the flusher once its force has finished, then forces the blocks added to since and completes the updates
+   * waiting for them, and closes the consumer index.
+   */
+  public void close() throws IOException, InterruptedException
+  {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flusher.shutdown();
+    flusher.awaitTermination(1, TimeUnit.MINUTES);
+    // the updates that started before it was closed may have added to their blocks after the flusher's last force
+    force(drainUnforced());
+    consumers.close();
+    System.out.println("Closed the usage in " + directory.toAbsolutePath());
+  }
+
+  private Object lock(int slot)
+  {
+    return locks[slot % LOCK_STRIPES];
+  }
+
+  private MappedSegment monthSegment(LocalDate day)
+  {
+    return segment(YearMonth.from(day).toString(), MONTH_SLOT_LONGS);
+  }
+
+  private MappedSegment yearSegment(int year)
+  {
+    return segment(Year.of(year).toString(), YEAR_SLOT_LONGS);
+  }
+
+  private MappedSegment segment(String period, int slotLongs)
+  {
+    return segments.computeIfAbsent(period, name -> new MappedSegment(directory.resolve(name + SEGMENT_SUFFIX),
+                                                                      slotLongs));
+  }
+
+  private static int hourCounter(LocalDate day, int epochHour)
+  {
+    return (day.getDayOfMonth() - 1) * HOURS_PER_DAY + Math.floorMod(epochHour, HOURS_PER_DAY);
+  }
+
+  private static int dayCounter(LocalDate day)
+  {
+    return MONTH_HOURS + day.getDayOfMonth() - 1;
+  }
+
+  /**
+   * @return the hour of the {@link UsageRollup#HOUR} label
+   */
+  private static int hour(String hourPeriod)
+  {
+    return Integer.parseInt(hourPeriod.substring(11));
+  }
+}
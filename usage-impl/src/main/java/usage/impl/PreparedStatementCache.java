@@ -0,0 +1,68 @@
+package usage.impl;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
+import lombok.Value;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepares each CQL statement once for a Cassandra session, so that only the bound values are sent when it is
+ * executed.
+ * <p>
+ * Concurrent requests for a statement that is still being prepared share the same preparation, and a statement whose
+ * preparation failed is prepared again when it is next requested.
+ */
+public final class PreparedStatementCache
+{
+  /**
+   * The number of requests for a statement that had already been prepared, or was being prepared, and the number
+   * that had to prepare it.
+   */
+  @Value
+  public static final class Stats
+  {
+    public final long hits;
+    public final long misses;
+  }
+
+  private final CassandraSession session;
+  private final ConcurrentMap<String, CompletableFuture<PreparedStatement>> statements = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public PreparedStatementCache(CassandraSession session)
+  {
+    this.session = session;
+  }
+
+  /**
+   * @return the prepared statement for the CQL
+   */
+  public CompletionStage<PreparedStatement> prepare(String cql)
+  {
+    CompletableFuture<PreparedStatement> statement = statements.get(cql);
+    if (statement != null && !statement.isCompletedExceptionally()) {
+      hits.increment();
+      return statement;
+    }
+    return statements.compute(cql, (key, current) -> {
+      if (current != null && !current.isCompletedExceptionally()) {
+        // prepared by a concurrent request
+        hits.increment();
+        return current;
+      }
+      misses.increment();
+      return session.prepare(cql).toCompletableFuture();
+    });
+  }
+
+  public Stats stats()
+  {
+    return new Stats(hits.sum(), misses.sum());
+  }
+}
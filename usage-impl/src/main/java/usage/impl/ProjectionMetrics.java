@@ -0,0 +1,79 @@
+package usage.impl;
+
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import consumption.api.ConsumerEvent;
+import metrics.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of the usage projection by Kafka partition: the number of events received, and the lag of the
+ * projection, from the time of the newest reading whose usage has been written to when it was written.
+ * <p>
+ * The lag is recorded as each batch's usage is written, for the newest reading of the partition written so far, so a
+ * batch of late readings doesn't move it backwards in event time. The newest readings are those {@link UsageBatch}
+ * found while summing the batch, so their timestamps aren't parsed again.
+ */
+class ProjectionMetrics
+{
+  private final Metrics metrics;
+  private final ConcurrentMap<Integer, Partition> partitions = new ConcurrentHashMap<>();
+
+  ProjectionMetrics(Metrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Records a message received, from its partition, -1 if it isn't known.
+   */
+  void received(Message<ConsumerEvent> message)
+  {
+    partition(message).events.increment();
+  }
+
+  /**
+   * Records the lag of the partitions of a batch whose usage has been written.
+   *
+   * @param newestEpochSeconds the epoch second of the newest reading of each partition in the batch, by partition
+   */
+  void written(Map<Integer, Long> newestEpochSeconds)
+  {
+    long writtenMillis = System.currentTimeMillis();
+    newestEpochSeconds.forEach((partition, epochSecond) -> partition(partition).written(epochSecond, writtenMillis));
+  }
+
+  private Partition partition(Message<ConsumerEvent> message)
+  {
+    return partition(message.get(KafkaMetadataKeys.PARTITION).orElse(-1));
+  }
+
+  private Partition partition(int partition)
+  {
+    return partitions.computeIfAbsent(partition, Partition::new);
+  }
+
+  private final class Partition
+  {
+    final LongAdder events;
+    long newestEpochSecond = Long.MIN_VALUE;
+    volatile long lagMillis;
+
+    Partition(int partition)
+    {
+      String label = Integer.toString(partition);
+      this.events = metrics.counter("usage_projection_events_total", "partition", label);
+      metrics.gauge("usage_projection_lag_seconds", () -> lagMillis / 1000D, "partition", label);
+    }
+
+    synchronized void written(long epochSecond, long writtenMillis)
+    {
+      newestEpochSecond = Math.max(newestEpochSecond, epochSecond);
+      lagMillis = writtenMillis - newestEpochSecond * 1000;
+    }
+  }
+}
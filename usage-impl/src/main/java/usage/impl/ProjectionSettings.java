@@ -0,0 +1,46 @@
+package usage.impl;
+
+import com.google.common.base.Preconditions;
+import com.typesafe.config.Config;
+import lombok.Value;
+
+import javax.inject.Inject;
+import java.time.Duration;
+
+/**
+ * The settings of the usage projection, read from the usage.projection configuration.
+ */
+@Value
+public final class ProjectionSettings
+{
+  /**
+   * The maximum number of messages whose consumption is summed into one batch of usage updates.
+   */
+  public final int batchSize;
+  /**
+   * The maximum time to wait for a batch to fill before it is written.
+   */
+  public final Duration batchWindow;
+  /**
+   * The number of lanes consumers are hashed into, and the number of batches that may be being written at once.
+   * Each consumer's writes are in order, 1 writes the batches one at a time.
+   */
+  public final int parallelism;
+
+  @Inject
+  public ProjectionSettings(Config config)
+  {
+    this(config.getInt("usage.projection.batch-size"),
+         config.getDuration("usage.projection.batch-window"),
+         config.getInt("usage.projection.parallelism"));
+  }
+
+  public ProjectionSettings(int batchSize, Duration batchWindow, int parallelism)
+  {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+    this.batchSize = batchSize;
+    this.batchWindow = Preconditions.checkNotNull(batchWindow, "batchWindow");
+    this.parallelism = parallelism;
+  }
+}
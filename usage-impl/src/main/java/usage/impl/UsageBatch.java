@@ -0,0 +1,148 @@
+package usage.impl;
+
+import akka.Done;
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import consumption.api.ConsumerEvent;
+import consumption.api.Timestamps;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The consumption of a batch of messages from the ConsumptionService event stream, summed by consumer and hour so
+ * that each consumer's usage for an hour, and the day, month and year it rolls up to, is updated once however many of
+ * its readings are in the batch.
+ */
+public final class UsageBatch
+{
+  private static final int UNKNOWN_PARTITION = -1;
+
+  private final int messageCount;
+  // consumer id -> epoch hour -> consumption, in the order the consumers first appear in the batch
+  private final Map<String, Map<Integer, Integer>> consumptions;
+  private final int updateCount;
+  // Kafka partition -> the epoch second of its newest reading in the batch
+  private final Map<Integer, Long> newestEpochSeconds;
+
+  private UsageBatch(int messageCount,
+                     Map<String, Map<Integer, Integer>> consumptions,
+                     int updateCount,
+                     Map<Integer, Long> newestEpochSeconds)
+  {
+    this.messageCount = messageCount;
+    this.consumptions = consumptions;
+    this.updateCount = updateCount;
+    this.newestEpochSeconds = newestEpochSeconds;
+  }
+
+  /**
+   * @return the summed consumption of the messages, ignoring any events other than consumption recorded events
+   */
+  public static UsageBatch of(List<ConsumerEvent> messages)
+  {
+    return of(messages, message -> UNKNOWN_PARTITION);
+  }
+
+  /**
+   * @return the summed consumption of the messages, ignoring any events other than consumption recorded events, with
+   * the newest reading of each of their Kafka partitions
+   */
+  static UsageBatch ofMessages(List<Message<ConsumerEvent>> messages)
+  {
+    List<ConsumerEvent> events = new ArrayList<>(messages.size());
+    for (Message<ConsumerEvent> message : messages) {
+      events.add(message.getPayload());
+    }
+    return of(events, i -> messages.get(i).get(KafkaMetadataKeys.PARTITION).orElse(UNKNOWN_PARTITION));
+  }
+
+  /**
+   * @param partitions the Kafka partition of the message at each index
+   */
+  private static UsageBatch of(List<ConsumerEvent> messages, IntUnaryOperator partitions)
+  {
+    Map<String, Map<Integer, Integer>> consumptions = new LinkedHashMap<>();
+    int updateCount = 0;
+    Map<Integer, Long> newestEpochSeconds = new HashMap<>();
+    int i = 0;
+    for (ConsumerEvent event : messages) {
+      if (event instanceof ConsumerEvent.ConsumptionRecorded) {
+        ConsumerEvent.ConsumptionRecorded consumptionRecorded = (ConsumerEvent.ConsumptionRecorded)event;
+        long epochSecond = Timestamps.parseEpochSecond(consumptionRecorded.getTimestamp());
+        newestEpochSeconds.merge(partitions.applyAsInt(i), epochSecond, Math::max);
+        int epochHour = Timestamps.epochHour(epochSecond);
+        Map<Integer, Integer> hours = consumptions.computeIfAbsent(consumptionRecorded.getConsumerId(),
+                                                                   consumerId -> new HashMap<>());
+        if (hours.putIfAbsent(epochHour, consumptionRecorded.getConsumption()) != null) {
+          hours.merge(epochHour, consumptionRecorded.getConsumption(), Integer::sum);
+        } else {
+          updateCount++;
+        }
+      }
+      i++;
+    }
+    return new UsageBatch(messages.size(), consumptions, updateCount, newestEpochSeconds);
+  }
+
+  /**
+   * @return the number of messages in the batch
+   */
+  public int messageCount()
+  {
+    return messageCount;
+  }
+
+  /**
+   * @return the number of consumers with consumption in the batch
+   */
+  public int consumerCount()
+  {
+    return consumptions.size();
+  }
+
+  /**
+   * @return the number of hourly usage updates the batch is written with, one per consumer and hour
+   */
+  public int updateCount()
+  {
+    return updateCount;
+  }
+
+  /**
+   * @return the epoch second of the newest reading of each Kafka partition in the batch, by partition, -1 for the
+   * messages whose partition isn't known
+   */
+  Map<Integer, Long> newestEpochSeconds()
+  {
+    return newestEpochSeconds;
+  }
+
+  /**
+   * @return the summed consumption of the consumer for the epoch hour, 0 if the batch has none
+   */
+  public int consumption(String consumerId, int epochHour)
+  {
+    return consumptions.getOrDefault(consumerId, Collections.emptyMap()).getOrDefault(epochHour, 0);
+  }
+
+  /**
+   * Writes each consumer's usage, passing the updater all of the consumer's hours at once so that they can be written
+   * together. Each consumer's write is submitted to its lane, so it starts once the consumer's writes from earlier
+   * batches have completed.
+   *
+   * @return a stage completed when all the updates are, or exceptionally if any of them fails
+   */
+  public CompletionStage<Done> write(ConsumptionSubscriber.UsageUpdater updater, ConsumerLanes lanes)
+  {
+    CompletableFuture<?>[] updates = new CompletableFuture<?>[consumptions.size()];
+    int i = 0;
+    for (Map.Entry<String, Map<Integer, Integer>> consumer : consumptions.entrySet()) {
+      updates[i++] = lanes.submit(consumer.getKey(), () -> updater.updateUsage(consumer.getKey(), consumer.getValue()))
+                          .toCompletableFuture();
+    }
+    return CompletableFuture.allOf(updates).thenApply(done -> Done.getInstance());
+  }
+}
@@ -0,0 +1,109 @@
+package usage.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.typesafe.config.Config;
+import consumption.api.Timestamps;
+import lombok.Value;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A read-through cache of the daily usage of each consumer, in front of {@link UsageRepository#getUsage}.
+ * <p>
+ * The cache holds the future of each read rather than its result, so concurrent reads of a date that isn't cached
+ * share a single read from the repository. A read that fails is removed so that it is retried by the next one.
+ * <p>
+ * Entries expire after the configured time and the least recently used are evicted beyond the configured size. The
+ * {@link ConsumptionSubscriber} invalidates the dates it has updated, once their updates are written.
+ */
+@Singleton
+public class UsageCache
+{
+  /**
+   * Reads the usage of the consumer on the ISO-8601 date in kWh.
+   */
+  @FunctionalInterface
+  public interface UsageReader
+  {
+    CompletionStage<Double> getUsage(String consumerId, String date);
+  }
+
+  private final UsageReader reader;
+  private final Cache<Key, CompletableFuture<Double>> cache;
+
+  @Inject
+  public UsageCache(UsageRepository repository, Config config)
+  {
+    this(repository::getUsage,
+         config.getLong("usage.cache.maximum-size"),
+         config.getDuration("usage.cache.expire-after-write"));
+  }
+
+  public UsageCache(UsageReader reader, long maximumSize, Duration expireAfterWrite)
+  {
+    this.reader = reader;
+    this.cache = CacheBuilder.newBuilder()
+                             .maximumSize(maximumSize)
+                             .expireAfterWrite(expireAfterWrite.toNanos(), TimeUnit.NANOSECONDS)
+                             .recordStats()
+                             .build();
+  }
+
+  /**
+   * @return the usage of the consumer on the ISO-8601 date in kWh, from the cache if it's been read recently
+   */
+  public CompletionStage<Double> getUsage(String consumerId, String date)
+  {
+    Key key = new Key(consumerId, date);
+    CompletableFuture<Double> usage;
+    try {
+      usage = cache.get(key, () -> reader.getUsage(consumerId, date).toCompletableFuture());
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      // getUsage threw rather than returning a failed future
+      CompletableFuture<Double> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e.getCause());
+      return failed;
+    }
+    usage.whenComplete((watts, failure) -> {
+      if (failure != null) {
+        cache.asMap().remove(key, usage);
+      }
+    });
+    return usage;
+  }
+
+  /**
+   * Removes the consumer's usage on each of the epoch days, so that the next read of them is from the repository.
+   */
+  public void invalidate(String consumerId, Collection<Integer> epochDays)
+  {
+    for (int epochDay : epochDays) {
+      cache.invalidate(new Key(consumerId, Timestamps.isoDate(epochDay)));
+    }
+  }
+
+  /**
+   * @return the hits, misses and evictions of the cache
+   */
+  public CacheStats stats()
+  {
+    return cache.stats();
+  }
+
+  @Value
+  private static class Key
+  {
+    String consumerId;
+    String date;
+  }
+}
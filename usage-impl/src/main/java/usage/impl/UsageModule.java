@@ -2,7 +2,9 @@ package usage.impl;
 
 import com.google.inject.AbstractModule;
 import com.lightbend.lagom.javadsl.server.ServiceGuiceSupport;
+import com.typesafe.config.Config;
 import consumption.api.ConsumptionService;
+import play.Environment;
 import usage.api.UsageService;
 
 /**
@@ -10,6 +12,13 @@ import usage.api.UsageService;
  */
 public class UsageModule extends AbstractModule implements ServiceGuiceSupport
 {
+  private final Config config;
+
+  public UsageModule(Environment environment, Config config)
+  {
+    this.config = config;
+  }
+
   @Override
   protected void configure()
   {
@@ -17,6 +26,21 @@ public class UsageModule extends AbstractModule implements ServiceGuiceSupport
     bindService(UsageService.class, UsageServiceImpl.class);
     // Bind the ConsumptionService client
     bindClient(ConsumptionService.class);
+    // Bind the configured repository
+    String repository = config.getString("usage.repository");
+    switch (repository) {
+      case "cassandra":
+        bind(UsageRepository.class).to(CassandraUsageRepository.class);
+        break;
+      case "mapped":
+        bind(UsageRepository.class).to(MappedUsageRepository.class);
+        break;
+      case "memory":
+        bind(UsageRepository.class).to(InMemoryUsageRepository.class);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown usage.repository " + repository);
+    }
     // Bind the subscriber eagerly to ensure it starts up
     bind(ConsumptionSubscriber.class).asEagerSingleton();
   }
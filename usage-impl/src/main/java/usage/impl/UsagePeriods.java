@@ -0,0 +1,116 @@
+package usage.impl;
+
+import org.pcollections.TreePVector;
+import usage.api.UsageGranularity;
+import usage.api.UsagePeriod;
+import usage.api.UsageSeries;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the {@link UsageSeries} of a range of dates from the consumption in watts recorded for it, including a
+ * period of no usage for each period without recorded consumption.
+ */
+public final class UsagePeriods
+{
+  public static final int PTUS_PER_DAY = 48;
+  private static final int HOURS_PER_DAY = 24;
+
+  private UsagePeriods()
+  {
+  }
+
+  /**
+   * @return the rollup whose periods are those of the granularity
+   * @throws IllegalArgumentException for {@link UsageGranularity#PTU}, which isn't rolled up by the usage service
+   */
+  public static UsageRollup rollup(UsageGranularity granularity)
+  {
+    switch (granularity) {
+      case HOUR:
+        return UsageRollup.HOUR;
+      case DAY:
+        return UsageRollup.DAY;
+      case MONTH:
+        return UsageRollup.MONTH;
+      case YEAR:
+        return UsageRollup.YEAR;
+      default:
+        throw new IllegalArgumentException("No rollup of " + granularity + " usage");
+    }
+  }
+
+  /**
+   * @param wattsByPeriod the consumption of each period of the range with recorded consumption, by the label of its
+   *                      rollup, of the granularity or any finer one (see {@link UsageRollup#reads}). Periods
+   *                      starting outside the range are ignored.
+   * @return the hourly, daily, monthly or yearly series of the dates from and to, inclusive
+   */
+  public static UsageSeries fromRollups(String consumerId,
+                                        LocalDate fromDate,
+                                        LocalDate toDate,
+                                        UsageGranularity granularity,
+                                        Map<String, Long> wattsByPeriod)
+  {
+    UsageRollup rollup = rollup(granularity);
+    // As labels are prefixes of those of the periods they contain, the finer periods sum into their prefixes
+    Map<String, Long> watts = new HashMap<>();
+    long total = 0;
+    String fromHour = UsageRollup.HOUR.firstPeriod(fromDate);
+    String toHour = UsageRollup.HOUR.lastPeriod(toDate);
+    for (Map.Entry<String, Long> period : wattsByPeriod.entrySet()) {
+      String label = period.getKey();
+      if (label.compareTo(fromHour.substring(0, label.length())) >= 0 &&
+          label.compareTo(toHour.substring(0, label.length())) <= 0) {
+        watts.merge(rollup.period(label), period.getValue(), Long::sum);
+        total += period.getValue();
+      }
+    }
+    List<UsagePeriod> periods = new ArrayList<>();
+    for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+      if (rollup == UsageRollup.HOUR) {
+        for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+          String period = date + (hour < 10 ? "T0" : "T") + hour;
+          periods.add(new UsagePeriod(period + ":00", watts.getOrDefault(period, 0L) / 1000D));
+        }
+        continue;
+      }
+      String period = rollup.firstPeriod(date);
+      if (periods.isEmpty() || !periods.get(periods.size() - 1).getPeriod().equals(period)) {
+        periods.add(new UsagePeriod(period, watts.getOrDefault(period, 0L) / 1000D));
+      }
+    }
+    return new UsageSeries(consumerId, granularity, TreePVector.from(periods), total / 1000D);
+  }
+
+  /**
+   * @param wattsByPTU the consumption of each PTU of the dates, starting with the first PTU of the from date
+   * @return the PTU series of the dates from and to, inclusive
+   */
+  public static UsageSeries fromPTUUsage(String consumerId, LocalDate fromDate, LocalDate toDate, int[] wattsByPTU)
+  {
+    List<UsagePeriod> periods = new ArrayList<>(wattsByPTU.length);
+    long total = 0;
+    int i = 0;
+    for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+      for (int ptu = 0; ptu < PTUS_PER_DAY; ptu++, i++) {
+        periods.add(new UsagePeriod(ptuStart(date, ptu), wattsByPTU[i] / 1000D));
+        total += wattsByPTU[i];
+      }
+    }
+    return new UsageSeries(consumerId, UsageGranularity.PTU, TreePVector.from(periods), total / 1000D);
+  }
+
+  /**
+   * @return the ISO-8601 local date-time of the start of the PTU of the date
+   */
+  public static String ptuStart(LocalDate date, int ptu)
+  {
+    return date.atTime(LocalTime.of(ptu / 2, ptu % 2 * 30)).toString();
+  }
+}
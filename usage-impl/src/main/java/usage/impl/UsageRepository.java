@@ -1,64 +1,73 @@
 package usage.impl;
 
 import akka.Done;
-import com.lightbend.lagom.javadsl.persistence.cassandra.CassandraSession;
 
-import javax.inject.Inject;
-import javax.inject.Singleton;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
-@Singleton
-public class UsageRepository
+/**
+ * Stores the usage of each consumer as counters per consumer and period, rolled up to each {@link UsageRollup}
+ * resolution, which the projection adds the consumption it receives to.
+ * <p>
+ * The usage is stored in Cassandra by default (see {@link CassandraUsageRepository}), in memory-mapped files on the
+ * service's own disk (see {@link MappedUsageRepository}), or on the heap (see {@link InMemoryUsageRepository}), as
+ * configured by usage.repository.
+ */
+public interface UsageRepository
 {
-  private final CassandraSession uninitialisedSession;
+  /**
+   * @return the consumption of the consumer on the date, in kWh, 0 if none has been recorded
+   */
+  CompletionStage<Double> getUsage(String consumerId, String date);
 
-  // Will return the session when the Cassandra tables have been successfully created
-  private volatile CompletableFuture<CassandraSession> initialisedSession;
+  /**
+   * Reads the usage of the consumer's periods of the read's rollup.
+   *
+   * @return the consumption in watts of each period with recorded consumption, by period label
+   */
+  CompletionStage<SortedMap<String, Long>> getUsageRange(String consumerId, UsageRollup.Read read);
 
-  @Inject
-  public UsageRepository(CassandraSession uninitialisedSession)
+  /**
+   * Reads the usage of the consumer for all of the reads at once (see {@link UsageRollup#reads}).
+   *
+   * @return the consumption in watts of each period with recorded consumption, by period label
+   */
+  default CompletionStage<SortedMap<String, Long>> getUsageRange(String consumerId, List<UsageRollup.Read> reads)
   {
-    this.uninitialisedSession = uninitialisedSession;
-    // Eagerly create the session
-    session();
-  }
-
-  private CompletionStage<CassandraSession> session()
-  {
-    // If there's no initialised session, or if the initialised session future completed
-    // with an exception, then reinitialise the session and attempt to create the tables
-    if (initialisedSession == null || initialisedSession.isCompletedExceptionally()) {
-      initialisedSession = uninitialisedSession.executeCreateTable(
-        "CREATE TABLE IF NOT EXISTS usage (consumerId text, date text, consumption counter, PRIMARY KEY (consumerId, date))"
-      ).thenApply(done -> uninitialisedSession).toCompletableFuture();
+    CompletableFuture<SortedMap<String, Long>> usage = CompletableFuture.completedFuture(new TreeMap<>());
+    for (UsageRollup.Read read : reads) {
+      usage = usage.thenCombine(getUsageRange(consumerId, read), (all, periods) -> {
+        all.putAll(periods);
+        return all;
+      });
     }
-    return initialisedSession;
+    return usage;
   }
 
-  public CompletionStage<Double> getUsage(String consumerId, String date)
-  {
-    System.out.println("Querying consumption for consumer " + consumerId + " at date " + date);
-    return session().thenCompose(session ->
-                                   session.selectOne("SELECT consumption FROM usage " +
-                                                     "WHERE consumerId = ? AND date = ?",
-                                                     consumerId,
-                                                     date))
-                    .thenApply(rowMaybe -> rowMaybe.map(row -> row.getLong("consumption")).orElse(0L))
-                    .thenApply(watts -> watts / 1000D);
-  }
+  /**
+   * Adds the consumption in watts for each epoch hour to the consumer's usage in every rollup.
+   */
+  CompletionStage<Done> updateUsage(String consumerId, Map<Integer, Integer> consumptionByEpochHour);
 
-  public CompletionStage<Done> updateUsage(String consumerId, LocalDateTime timestamp, int consumption)
+  /**
+   * @return the consumption of each period of each rollup containing any of the hours
+   */
+  static Map<UsageRollup, Map<String, Long>> rollUp(Map<Integer, Integer> consumptionByEpochHour)
   {
-    String date = LocalDate.from(timestamp).toString();
-    System.out.println("Storing " + consumption + " for consumer " + consumerId + " at date " + date);
-    return session().thenCompose(session ->
-                                   session.executeWrite("UPDATE usage " +
-                                                        "SET consumption = consumption + " + consumption + " " +
-                                                        "WHERE consumerId = ? AND date = ?",
-                                                        consumerId, date)
-    );
+    Map<UsageRollup, Map<String, Long>> consumptionByPeriod = new EnumMap<>(UsageRollup.class);
+    for (UsageRollup rollup : UsageRollup.values()) {
+      consumptionByPeriod.put(rollup, new TreeMap<>());
+    }
+    consumptionByEpochHour.forEach((epochHour, consumption) -> {
+      String hour = UsageRollup.hourPeriod(epochHour);
+      consumptionByPeriod.forEach((rollup, periods) -> periods.merge(rollup.period(hour), (long)consumption,
+                                                                     Long::sum));
+    });
+    return consumptionByPeriod;
   }
 }
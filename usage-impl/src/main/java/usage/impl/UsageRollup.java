@@ -0,0 +1,177 @@
+package usage.impl;
+
+import consumption.api.Timestamps;
+import lombok.Value;
+
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The resolutions the usage of each consumer is rolled up to by the projection, each held in its own table of
+ * counters, partitioned by consumer and clustered by period.
+ * <p>
+ * A period is labelled with the ISO-8601 prefix of its start at the rollup's resolution, e.g. 2018-04-01T10 for an
+ * hour, 2018-04-01 for a day, 2018-04 for a month and 2018 for a year. So the label of any period is a prefix of the
+ * labels of the finer periods it contains, and periods sort in time order within a consumer's partition.
+ */
+public enum UsageRollup
+{
+  HOUR("usage_hourly", "period", 13),
+  // The original daily table
+  DAY("usage", "date", 10),
+  MONTH("usage_monthly", "period", 7),
+  YEAR("usage_yearly", "period", 4);
+
+  private static final int HOURS_PER_DAY = 24;
+
+  private final String table;
+  private final String column;
+  private final int periodLength;
+
+  UsageRollup(String table, String column, int periodLength)
+  {
+    this.table = table;
+    this.column = column;
+    this.periodLength = periodLength;
+  }
+
+  public String table()
+  {
+    return table;
+  }
+
+  /**
+   * @return the clustering column holding the period label
+   */
+  public String column()
+  {
+    return column;
+  }
+
+  /**
+   * @return the label of the period of this rollup containing the hour, given by its {@link #HOUR} label
+   */
+  public String period(String hourPeriod)
+  {
+    return hourPeriod.substring(0, periodLength);
+  }
+
+  /**
+   * @return the {@link #HOUR} label of the epoch hour, e.g. 2018-04-01T10
+   */
+  public static String hourPeriod(int epochHour)
+  {
+    int hour = Math.floorMod(epochHour, HOURS_PER_DAY);
+    return Timestamps.isoDate(epochDay(epochHour)) + (hour < 10 ? "T0" : "T") + hour;
+  }
+
+  /**
+   * @return the epoch day of the epoch hour
+   */
+  public static int epochDay(int epochHour)
+  {
+    return Math.floorDiv(epochHour, HOURS_PER_DAY);
+  }
+
+  /**
+   * @return the label of the first period of this rollup on the date
+   */
+  public String firstPeriod(LocalDate date)
+  {
+    return this == HOUR ? date + "T00" : date.toString().substring(0, periodLength);
+  }
+
+  /**
+   * @return the label of the last period of this rollup on the date
+   */
+  public String lastPeriod(LocalDate date)
+  {
+    return this == HOUR ? date + "T23" : date.toString().substring(0, periodLength);
+  }
+
+  /**
+   * Plans the reads of the usage of the dates from and to, inclusive, reading each whole period of the coarsest
+   * rollup within the range from its own table, and the partial periods at either end from the next finer rollups.
+   * So a range of whole years is a read of a row per year, and the usage of 2017-11-15 to 2019-02-10 is read as the
+   * days to the end of November 2017, the month of December 2017, the year 2018, the month of January 2019, and the
+   * days of February 2019.
+   *
+   * @return the reads, of contiguous ranges of periods, which between them cover every day of the range once
+   */
+  public static List<Read> reads(LocalDate fromDate, LocalDate toDate, UsageRollup coarsest)
+  {
+    List<Read> reads = new ArrayList<>();
+    addReads(reads, fromDate, toDate, coarsest);
+    return reads;
+  }
+
+  /**
+   * Plans the reads of the usage of the dates from and to, inclusive, as {@link #reads(LocalDate, LocalDate,
+   * UsageRollup)} does, but only reading the monthly and yearly rollups from the date they hold all the usage from.
+   * The dates before it are read from the daily usage, which holds the usage recorded before the rollups were.
+   *
+   * @param rollupsFrom the first date whose usage is all in the monthly and yearly rollups
+   */
+  public static List<Read> reads(LocalDate fromDate, LocalDate toDate, UsageRollup coarsest, LocalDate rollupsFrom)
+  {
+    if (!fromDate.isBefore(rollupsFrom) || coarsest == HOUR || coarsest == DAY) {
+      return reads(fromDate, toDate, coarsest);
+    }
+    List<Read> reads = new ArrayList<>();
+    LocalDate dailyTo = toDate.isBefore(rollupsFrom) ? toDate : rollupsFrom.minusDays(1);
+    reads.add(new Read(DAY, DAY.firstPeriod(fromDate), DAY.lastPeriod(dailyTo)));
+    if (!toDate.isBefore(rollupsFrom)) {
+      addReads(reads, rollupsFrom, toDate, coarsest);
+    }
+    return reads;
+  }
+
+  private static void addReads(List<Read> reads, LocalDate fromDate, LocalDate toDate, UsageRollup rollup)
+  {
+    if (rollup == HOUR || rollup == DAY) {
+      reads.add(new Read(rollup, rollup.firstPeriod(fromDate), rollup.lastPeriod(toDate)));
+      return;
+    }
+    UsageRollup finer = rollup == YEAR ? MONTH : DAY;
+    // The first and last days of the whole periods within the range
+    LocalDate wholeFrom = rollup.periodStart(fromDate).equals(fromDate) ? fromDate :
+                          rollup.periodEnd(fromDate).plusDays(1);
+    LocalDate wholeTo = rollup.periodEnd(toDate).equals(toDate) ? toDate : rollup.periodStart(toDate).minusDays(1);
+    if (wholeFrom.isAfter(wholeTo)) {
+      addReads(reads, fromDate, toDate, finer);
+      return;
+    }
+    if (fromDate.isBefore(wholeFrom)) {
+      addReads(reads, fromDate, wholeFrom.minusDays(1), finer);
+    }
+    reads.add(new Read(rollup, rollup.firstPeriod(wholeFrom), rollup.lastPeriod(wholeTo)));
+    if (toDate.isAfter(wholeTo)) {
+      addReads(reads, wholeTo.plusDays(1), toDate, finer);
+    }
+  }
+
+  private LocalDate periodStart(LocalDate date)
+  {
+    return this == YEAR ? date.with(TemporalAdjusters.firstDayOfYear()) :
+           date.with(TemporalAdjusters.firstDayOfMonth());
+  }
+
+  private LocalDate periodEnd(LocalDate date)
+  {
+    return this == YEAR ? date.with(TemporalAdjusters.lastDayOfYear()) :
+           date.with(TemporalAdjusters.lastDayOfMonth());
+  }
+
+  /**
+   * A read of the usage of a consumer's periods of a rollup, from and to the period labels inclusive.
+   */
+  @Value
+  public static final class Read
+  {
+    public final UsageRollup rollup;
+    public final String fromPeriod;
+    public final String toPeriod;
+  }
+}
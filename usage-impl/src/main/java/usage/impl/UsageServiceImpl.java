@@ -1,28 +1,181 @@
 package usage.impl;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Source;
 import com.lightbend.lagom.javadsl.api.ServiceCall;
+import com.lightbend.lagom.javadsl.api.transport.BadRequest;
+import com.typesafe.config.Config;
 import consumption.api.ConsumptionService;
+import consumption.api.ProfileQuery;
+import consumption.api.Timestamps;
+import metrics.Metrics;
 import usage.api.*;
 
 import javax.inject.Inject;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Implementation of the UsageService.
  */
 public class UsageServiceImpl implements UsageService
 {
+  // The longest ranges that can be queried, PTU series hold 48 periods for each day and hourly series 24, while
+  // monthly and yearly usage and the totals of bulk queries are mostly read from the monthly and yearly rollups
+  private static final int MAX_PTU_RANGE_DAYS = 31;
+  private static final int MAX_HOUR_RANGE_DAYS = 366;
+  private static final int MAX_DAY_RANGE_DAYS = 3660;
+  private static final int MAX_ROLLUP_RANGE_DAYS = 36600;
+
   private final ConsumptionService consumptionService;
   private final UsageRepository repository;
+  private final UsageCache cache;
+  private final Metrics metrics;
+  private final int bulkParallelism;
+  // The first date whose usage is all in the monthly and yearly rollups, usage before it is read from the daily usage
+  private final LocalDate rollupsFrom;
 
   @Inject
-  public UsageServiceImpl(ConsumptionService consumptionService, UsageRepository repository) {
+  public UsageServiceImpl(ConsumptionService consumptionService,
+                          UsageRepository repository,
+                          UsageCache cache,
+                          Metrics metrics,
+                          Config config) {
     this.consumptionService = consumptionService;
     this.repository = repository;
+    this.cache = cache;
+    this.metrics = metrics;
+    this.bulkParallelism = config.getInt("usage.bulk.parallelism");
+    String rollupsFrom = config.getString("usage.rollups.complete-from");
+    this.rollupsFrom = rollupsFrom.isEmpty() ? LocalDate.MIN : LocalDate.parse(rollupsFrom);
+    metrics.counter("usage_cache_hits_total", () -> cache.stats().hitCount());
+    metrics.counter("usage_cache_misses_total", () -> cache.stats().missCount());
+    metrics.counter("usage_cache_evictions_total", () -> cache.stats().evictionCount());
+  }
+
+  @Override
+  public ServiceCall<NotUsed, String> metrics()
+  {
+    return request -> CompletableFuture.completedFuture(metrics.render());
   }
 
   @Override
   public ServiceCall<UsageQuery, Double> queryUsage()
   {
-    return usageQuery -> repository.getUsage(usageQuery.getConsumerId(), usageQuery.getDate());
+    return usageQuery -> cache.getUsage(usageQuery.getConsumerId(), usageQuery.getDate());
+  }
+
+  @Override
+  public ServiceCall<UsageRangeQuery, UsageSeries> queryUsageRange()
+  {
+    return query -> {
+      LocalDate fromDate = Timestamps.parseDate(query.getFromDate());
+      LocalDate toDate = Timestamps.parseDate(query.getToDate());
+      UsageGranularity granularity = query.getGranularity().orElse(UsageGranularity.DAY);
+      checkRange(fromDate, toDate, granularity);
+      if (granularity == UsageGranularity.PTU) {
+        return queryPTUUsage(query.getConsumerId(), fromDate, toDate);
+      }
+      return repository.getUsageRange(query.getConsumerId(),
+                                      UsageRollup.reads(fromDate, toDate, UsagePeriods.rollup(granularity),
+                                                        rollupsFrom))
+                       .thenApply(wattsByPeriod -> UsagePeriods.fromRollups(query.getConsumerId(),
+                                                                            fromDate,
+                                                                            toDate,
+                                                                            granularity,
+                                                                            wattsByPeriod));
+    };
+  }
+
+  @Override
+  public ServiceCall<BulkUsageQuery, Source<ConsumerUsage, NotUsed>> queryUsageBulk()
+  {
+    return query -> {
+      Flow<String, ConsumerUsage, NotUsed> lookup = totalUsageLookup(query.getFromDate(), query.getToDate());
+      System.out.println("Querying usage of " + query.getConsumerIds().size() + " consumers");
+      return CompletableFuture.completedFuture(Source.from(query.getConsumerIds()).via(lookup));
+    };
+  }
+
+  @Override
+  public ServiceCall<Source<String, NotUsed>, Source<ConsumerUsage, NotUsed>> queryUsageBulkStream(String fromDate,
+                                                                                                   String toDate)
+  {
+    return consumerIds -> {
+      Flow<String, ConsumerUsage, NotUsed> lookup = totalUsageLookup(fromDate, toDate);
+      return CompletableFuture.completedFuture(consumerIds.via(lookup));
+    };
+  }
+
+  /**
+   * @return a flow reading the total usage of each consumer id of the dates from and to, up to the configured number
+   * at once, and emitting the usages as they're read. Each total is read from the coarsest rollups covering the
+   * range, so a year's total is a single row, other than the dates before usage.rollups.complete-from.
+   */
+  private Flow<String, ConsumerUsage, NotUsed> totalUsageLookup(String from, String to)
+  {
+    LocalDate fromDate = Timestamps.parseDate(from);
+    LocalDate toDate = Timestamps.parseDate(to);
+    checkRange(fromDate, toDate, UsageGranularity.YEAR);
+    List<UsageRollup.Read> reads = UsageRollup.reads(fromDate, toDate, UsageRollup.YEAR, rollupsFrom);
+    return Flow.<String>create().mapAsyncUnordered(bulkParallelism, consumerId ->
+      repository.getUsageRange(consumerId, reads).handle((wattsByPeriod, failure) -> {
+        if (failure != null) {
+          return ConsumerUsage.failed(consumerId, failure.getMessage());
+        }
+        long watts = 0;
+        for (long periodWatts : wattsByPeriod.values()) {
+          watts += periodWatts;
+        }
+        return ConsumerUsage.of(consumerId, watts / 1000D);
+      }));
+  }
+
+  /**
+   * The usage rollups are no finer than hours, so the PTU values are read from the consumption service, as the
+   * profile of the whole range in one call.
+   */
+  private CompletionStage<UsageSeries> queryPTUUsage(String consumerId, LocalDate fromDate, LocalDate toDate)
+  {
+    return consumptionService.queryProfile()
+                             .invoke(new ProfileQuery(consumerId, fromDate.toString(), Optional.of(toDate.toString())))
+                             .thenApply(profile -> UsagePeriods.fromPTUUsage(consumerId,
+                                                                             fromDate,
+                                                                             toDate,
+                                                                             profile.getPtuValues()));
+  }
+
+  /**
+   * @throws BadRequest if the range is empty, or longer than can be queried at the granularity
+   */
+  private static void checkRange(LocalDate fromDate, LocalDate toDate, UsageGranularity granularity)
+  {
+    long days = ChronoUnit.DAYS.between(fromDate, toDate) + 1;
+    if (days < 1) {
+      throw new BadRequest("toDate must not be before fromDate");
+    }
+    int maxDays = maxRangeDays(granularity);
+    if (days > maxDays) {
+      throw new BadRequest("At most " + maxDays + " days of " + granularity + " usage can be queried");
+    }
+  }
+
+  private static int maxRangeDays(UsageGranularity granularity)
+  {
+    switch (granularity) {
+      case PTU:
+        return MAX_PTU_RANGE_DAYS;
+      case HOUR:
+        return MAX_HOUR_RANGE_DAYS;
+      case DAY:
+        return MAX_DAY_RANGE_DAYS;
+      default:
+        return MAX_ROLLUP_RANGE_DAYS;
+    }
   }
 }
@@ -0,0 +1,141 @@
+package usage.impl;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.testkit.JavaTestKit;
+import consumption.api.ConsumerEvent;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConsumptionSubscriberTest
+{
+  private static final int TEST_EPOCH_DAY = (int)LocalDate.of(2018, 4, 1).toEpochDay();
+  // 2018-04-01T10
+  private static final int TEST_EPOCH_HOUR = TEST_EPOCH_DAY * 24 + 10;
+  static ActorSystem system;
+  static Materializer materializer;
+
+  @BeforeClass
+  public static void setup()
+  {
+    system = ActorSystem.create("ConsumptionSubscriberTest");
+    materializer = ActorMaterializer.create(system);
+  }
+
+  @AfterClass
+  public static void teardown()
+  {
+    JavaTestKit.shutdownActorSystem(system);
+    system = null;
+  }
+
+  @Test
+  public void testBatchSumsConsumptionByConsumerAndHour()
+  {
+    UsageBatch batch = UsageBatch.of(Arrays.asList(
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:10", 100),
+      new ConsumerEvent.ConsumptionRecorded("consumer-2", "2018-04-01T10:10", 5),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:50:00Z", 20),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T11:10", 3)));
+    assertEquals(4, batch.messageCount());
+    assertEquals(3, batch.updateCount());
+    assertEquals(2, batch.consumerCount());
+    assertEquals(120, batch.consumption("consumer-1", TEST_EPOCH_HOUR));
+    assertEquals(3, batch.consumption("consumer-1", TEST_EPOCH_HOUR + 1));
+    assertEquals(5, batch.consumption("consumer-2", TEST_EPOCH_HOUR));
+    assertEquals(0, batch.consumption("consumer-2", TEST_EPOCH_HOUR + 1));
+  }
+
+  @Test
+  public void testFlowWritesOneUpdatePerConsumerAndHourAndAcknowledgesEveryMessage() throws Exception
+  {
+    List<String> updates = Collections.synchronizedList(new ArrayList<>());
+    List<ConsumerEvent> messages = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      messages.add(new ConsumerEvent.ConsumptionRecorded("consumer-" + (i % 2), "2018-04-01T10:" + (10 + i), i));
+    }
+    List<Done> dones = Source.from(messages)
+                             .via(ConsumptionSubscriber.usageFlow((consumerId, consumptionByEpochHour) -> {
+                               consumptionByEpochHour.forEach((epochHour, consumption) ->
+                                 updates.add(consumerId + "@" + epochHour + "=" + consumption));
+                               return CompletableFuture.completedFuture(Done.getInstance());
+                             }, new ProjectionSettings(100, Duration.ofMillis(50), 1)))
+                             .runWith(Sink.seq(), materializer)
+                             .toCompletableFuture()
+                             .get(10, TimeUnit.SECONDS);
+    assertEquals(messages.size(), dones.size());
+    assertEquals(new HashSet<>(Arrays.asList("consumer-0@" + TEST_EPOCH_HOUR + "=20",
+                                             "consumer-1@" + TEST_EPOCH_HOUR + "=25")),
+                 new HashSet<>(updates));
+    assertEquals(2, updates.size());
+  }
+
+  @Test
+  public void testFlowDoesNotAcknowledgeBatchWhenAnUpdateFails() throws Exception
+  {
+    CompletableFuture<Done> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("Cassandra unavailable"));
+    try {
+      Source.single((ConsumerEvent)new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:10", 1))
+            .via(ConsumptionSubscriber.usageFlow((consumerId, consumptionByEpochHour) -> failed,
+                                                 new ProjectionSettings(100, Duration.ofMillis(50), 1)))
+            .runWith(Sink.seq(), materializer)
+            .toCompletableFuture()
+            .get(10, TimeUnit.SECONDS);
+      fail("Expected the stream to fail");
+    } catch (ExecutionException e) {
+      assertEquals("Cassandra unavailable", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testFlowKeepsEachConsumersWritesInOrderWhileOthersProceed() throws Exception
+  {
+    List<String> writes = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Done> firstWrite = new CompletableFuture<>();
+    List<ConsumerEvent> messages = Arrays.asList(
+      new ConsumerEvent.ConsumptionRecorded("consumer-0", "2018-04-01T10:00", 1),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:00", 1),
+      new ConsumerEvent.ConsumptionRecorded("consumer-0", "2018-04-01T10:30", 2),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-01T10:30", 2));
+    CompletableFuture<List<Done>> dones =
+      Source.from(messages)
+            .via(ConsumptionSubscriber.usageFlow((consumerId, consumptionByEpochHour) -> {
+              String write = consumerId + "=" + consumptionByEpochHour.get(TEST_EPOCH_HOUR);
+              writes.add(write);
+              // hold up the first write of consumer-0
+              return write.equals("consumer-0=1") ?
+                     firstWrite :
+                     CompletableFuture.completedFuture(Done.getInstance());
+            }, new ProjectionSettings(1, Duration.ofMillis(50), 4)))
+            .runWith(Sink.seq(), materializer)
+            .toCompletableFuture();
+
+    // consumer-1 isn't held up by consumer-0, whose second write waits for its first
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!writes.contains("consumer-1=2") && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(writes.contains("consumer-1=2"));
+    assertFalse(writes.contains("consumer-0=2"));
+    assertFalse(dones.isDone());
+
+    firstWrite.complete(Done.getInstance());
+    assertEquals(messages.size(), dones.get(10, TimeUnit.SECONDS).size());
+    assertTrue(writes.indexOf("consumer-0=2") > writes.indexOf("consumer-0=1"));
+  }
+}
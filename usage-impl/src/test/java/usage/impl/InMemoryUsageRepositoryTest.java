@@ -0,0 +1,10 @@
+package usage.impl;
+
+public class InMemoryUsageRepositoryTest extends UsageRepositoryTest
+{
+  @Override
+  protected UsageRepository repository()
+  {
+    return new InMemoryUsageRepository();
+  }
+}
@@ -0,0 +1,102 @@
+package usage.impl;
+
+import akka.Done;
+import metrics.Metrics;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class MappedUsageRepositoryTest extends UsageRepositoryTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Override
+  protected UsageRepository repository() throws Exception
+  {
+    return new MappedUsageRepository(folder.getRoot().toPath(), new Metrics());
+  }
+
+  @Test
+  public void testUsageIsReadAfterReopening() throws Exception
+  {
+    Path directory = folder.getRoot().toPath();
+    MappedUsageRepository repository = new MappedUsageRepository(directory, new Metrics());
+    repository.updateUsage("consumer-1", Collections.singletonMap(TEST_EPOCH_HOUR, 100)).toCompletableFuture().get();
+    repository.updateUsage("consumer-2", Collections.singletonMap(TEST_EPOCH_HOUR, 20)).toCompletableFuture().get();
+
+    MappedUsageRepository reopened = new MappedUsageRepository(directory, new Metrics());
+    assertEquals(0.1, get(reopened.getUsage("consumer-1", "2018-04-30")), 0);
+    assertEquals(0.02, get(reopened.getUsage("consumer-2", "2018-04-30")), 0);
+    reopened.updateUsage("consumer-3", Collections.singletonMap(TEST_EPOCH_HOUR, 3)).toCompletableFuture().get();
+    assertEquals(0.003, get(reopened.getUsage("consumer-3", "2018-04-30")), 0);
+    assertEquals(0.1, get(reopened.getUsage("consumer-1", "2018-04-30")), 0);
+  }
+
+  @Test
+  public void testUpdatesFailOnceClosed() throws Exception
+  {
+    Path directory = folder.getRoot().toPath();
+    MappedUsageRepository repository = new MappedUsageRepository(directory, new Metrics());
+    CompletableFuture<Done> updated =
+      repository.updateUsage("consumer-1", Collections.singletonMap(TEST_EPOCH_HOUR, 100)).toCompletableFuture();
+    repository.close();
+    // the update made before it was closed is forced by then
+    assertTrue(updated.isDone());
+    updated.get();
+    try {
+      repository.updateUsage("consumer-1", Collections.singletonMap(TEST_EPOCH_HOUR, 1)).toCompletableFuture().get();
+      fail("Updated the usage once the repository was closed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    repository.close();
+
+    MappedUsageRepository reopened = new MappedUsageRepository(directory, new Metrics());
+    assertEquals(0.1, get(reopened.getUsage("consumer-1", "2018-04-30")), 0);
+    reopened.close();
+  }
+
+  @Test
+  public void testPartlyWrittenConsumerIsTruncated() throws Exception
+  {
+    Path index = folder.getRoot().toPath().resolve("consumers");
+    MappedConsumerIndex consumers = new MappedConsumerIndex(index);
+    assertEquals(0, consumers.slotFor("consumer-1"));
+    assertEquals(1, consumers.slotFor("consumer-2"));
+    assertEquals(0, consumers.slotFor("consumer-1"));
+    long size = Files.size(index);
+    // the length and first byte of a third consumer's id
+    Files.write(index, new byte[] {0, 10, 'c'}, StandardOpenOption.APPEND);
+
+    MappedConsumerIndex reopened = new MappedConsumerIndex(index);
+    assertEquals(size, Files.size(index));
+    assertEquals(2, reopened.size());
+    assertEquals(1, reopened.slot("consumer-2"));
+    assertEquals(-1, reopened.slot("consumer-3"));
+    assertEquals(2, reopened.slotFor("consumer-3"));
+  }
+
+  @Test
+  public void testSlotsBeyondTheFirstBlock()
+  {
+    MappedSegment segment = new MappedSegment(folder.getRoot().toPath().resolve("test.usage"), 3);
+    assertEquals(0, segment.get(MappedSegment.BLOCK_SLOTS + 1, 2));
+    segment.add(MappedSegment.BLOCK_SLOTS + 1, 2, 5);
+    segment.add(MappedSegment.BLOCK_SLOTS + 1, 2, 6);
+    segment.add(1, 2, 7);
+    assertEquals(11, segment.get(MappedSegment.BLOCK_SLOTS + 1, 2));
+    assertEquals(0, segment.get(MappedSegment.BLOCK_SLOTS + 1, 1));
+    assertEquals(7, segment.get(1, 2));
+    assertEquals(0, segment.get(2 * MappedSegment.BLOCK_SLOTS, 2));
+  }
+}
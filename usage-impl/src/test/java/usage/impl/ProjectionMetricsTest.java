@@ -0,0 +1,62 @@
+package usage.impl;
+
+import com.lightbend.lagom.javadsl.api.broker.Message;
+import com.lightbend.lagom.javadsl.broker.kafka.KafkaMetadataKeys;
+import consumption.api.ConsumerEvent;
+import metrics.Metrics;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ProjectionMetricsTest
+{
+  @Test
+  public void testLagIsOfTheNewestReadingWritten()
+  {
+    Metrics metrics = new Metrics();
+    ProjectionMetrics projectionMetrics = new ProjectionMetrics(metrics);
+    Message<ConsumerEvent> minuteOld = message(3, 60);
+    Message<ConsumerEvent> hourOld = message(3, 3600);
+    projectionMetrics.received(minuteOld);
+    projectionMetrics.received(hourOld);
+    // the lag is only recorded once the usage is written
+    assertEquals(0, value(metrics, "usage_projection_lag_seconds{partition=\"3\"}"), 0);
+    assertEquals(2, value(metrics, "usage_projection_events_total{partition=\"3\"}"), 0);
+
+    projectionMetrics.written(UsageBatch.ofMessages(Arrays.asList(hourOld, minuteOld)).newestEpochSeconds());
+    assertEquals(60, value(metrics, "usage_projection_lag_seconds{partition=\"3\"}"), 5);
+    // a later batch of late readings doesn't move the lag back to them
+    projectionMetrics.written(UsageBatch.ofMessages(Collections.singletonList(message(3, 7200)))
+                                        .newestEpochSeconds());
+    assertEquals(60, value(metrics, "usage_projection_lag_seconds{partition=\"3\"}"), 5);
+
+    projectionMetrics.written(UsageBatch.ofMessages(Collections.singletonList(message(1, 600)))
+                                        .newestEpochSeconds());
+    assertEquals(600, value(metrics, "usage_projection_lag_seconds{partition=\"1\"}"), 5);
+    assertEquals(60, value(metrics, "usage_projection_lag_seconds{partition=\"3\"}"), 5);
+  }
+
+  private static Message<ConsumerEvent> message(int partition, long secondsAgo)
+  {
+    String timestamp = Instant.now().minusSeconds(secondsAgo).toString();
+    return Message.<ConsumerEvent>create(new ConsumerEvent.ConsumptionRecorded("consumer-1", timestamp, 10))
+                  .add(KafkaMetadataKeys.PARTITION, partition);
+  }
+
+  /**
+   * @return the value of the rendered metric with the name and labels
+   */
+  private static double value(Metrics metrics, String metric)
+  {
+    for (String line : metrics.render().split("\n")) {
+      if (line.startsWith(metric + " ")) {
+        return Double.parseDouble(line.substring(metric.length() + 1));
+      }
+    }
+    throw new AssertionError("No metric " + metric);
+  }
+}
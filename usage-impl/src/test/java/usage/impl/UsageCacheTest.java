@@ -0,0 +1,80 @@
+package usage.impl;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UsageCacheTest
+{
+  private static final int TEST_EPOCH_DAY = (int)LocalDate.of(2018, 4, 1).toEpochDay();
+
+  @Test
+  public void testConcurrentMissesShareOneRead() throws Exception
+  {
+    AtomicInteger reads = new AtomicInteger();
+    CompletableFuture<Double> read = new CompletableFuture<>();
+    UsageCache cache = new UsageCache((consumerId, date) -> {
+      reads.incrementAndGet();
+      return read;
+    }, 100, Duration.ofMinutes(5));
+
+    CompletionStage<Double> first = cache.getUsage("consumer-1", "2018-04-01");
+    CompletionStage<Double> second = cache.getUsage("consumer-1", "2018-04-01");
+    assertEquals(1, reads.get());
+    read.complete(1.5);
+    assertEquals(1.5, first.toCompletableFuture().get(), 0);
+    assertEquals(1.5, second.toCompletableFuture().get(), 0);
+
+    cache.getUsage("consumer-1", "2018-04-02");
+    cache.getUsage("consumer-2", "2018-04-01");
+    assertEquals(3, reads.get());
+    assertEquals(1, cache.stats().hitCount());
+  }
+
+  @Test
+  public void testInvalidatedDaysAreReadAgain() throws Exception
+  {
+    AtomicInteger reads = new AtomicInteger();
+    UsageCache cache = new UsageCache(
+      (consumerId, date) -> CompletableFuture.completedFuture((double)reads.incrementAndGet()),
+      100, Duration.ofMinutes(5));
+
+    assertEquals(1, cache.getUsage("consumer-1", "2018-04-01").toCompletableFuture().get(), 0);
+    assertEquals(2, cache.getUsage("consumer-1", "2018-04-02").toCompletableFuture().get(), 0);
+    cache.invalidate("consumer-1", Collections.singleton(TEST_EPOCH_DAY));
+    assertEquals(3, cache.getUsage("consumer-1", "2018-04-01").toCompletableFuture().get(), 0);
+    assertEquals(2, cache.getUsage("consumer-1", "2018-04-02").toCompletableFuture().get(), 0);
+  }
+
+  @Test
+  public void testFailedReadsAreNotCached() throws Exception
+  {
+    AtomicInteger reads = new AtomicInteger();
+    UsageCache cache = new UsageCache((consumerId, date) -> {
+      CompletableFuture<Double> read = new CompletableFuture<>();
+      if (reads.incrementAndGet() == 1) {
+        read.completeExceptionally(new IllegalStateException("Cassandra unavailable"));
+      } else {
+        read.complete(4.0);
+      }
+      return read;
+    }, 100, Duration.ofMinutes(5));
+
+    try {
+      cache.getUsage("consumer-1", "2018-04-01").toCompletableFuture().get();
+      fail("Expected the read to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(4, cache.getUsage("consumer-1", "2018-04-01").toCompletableFuture().get(), 0);
+    assertEquals(2, reads.get());
+  }
+}
@@ -0,0 +1,99 @@
+package usage.impl;
+
+import org.junit.Test;
+import usage.api.UsageGranularity;
+import usage.api.UsagePeriod;
+import usage.api.UsageSeries;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UsagePeriodsTest
+{
+  private static final LocalDate FROM_DATE = LocalDate.of(2018, 3, 30);
+  private static final LocalDate TO_DATE = LocalDate.of(2018, 4, 2);
+
+  private static Map<String, Long> wattsByDate()
+  {
+    Map<String, Long> wattsByDate = new HashMap<>();
+    wattsByDate.put("2018-03-30", 1500L);
+    wattsByDate.put("2018-04-01", 250L);
+    wattsByDate.put("2018-04-02", 1000L);
+    return wattsByDate;
+  }
+
+  @Test
+  public void testDailySeriesIncludesDaysWithoutUsage()
+  {
+    UsageSeries series = UsagePeriods.fromRollups("consumer-1", FROM_DATE, TO_DATE, UsageGranularity.DAY,
+                                                  wattsByDate());
+    assertEquals(Arrays.asList(new UsagePeriod("2018-03-30", 1.5),
+                               new UsagePeriod("2018-03-31", 0),
+                               new UsagePeriod("2018-04-01", 0.25),
+                               new UsagePeriod("2018-04-02", 1)),
+                 series.getPeriods());
+    assertEquals(2.75, series.getTotal(), 0);
+    assertEquals(UsageGranularity.DAY, series.getGranularity());
+  }
+
+  @Test
+  public void testMonthlySeriesOnlyIncludesDaysOfTheRange()
+  {
+    Map<String, Long> wattsByDate = wattsByDate();
+    wattsByDate.put("2018-03-01", 10000L);
+    UsageSeries series = UsagePeriods.fromRollups("consumer-1", FROM_DATE, TO_DATE, UsageGranularity.MONTH,
+                                                  wattsByDate);
+    assertEquals(Arrays.asList(new UsagePeriod("2018-03", 1.5),
+                               new UsagePeriod("2018-04", 1.25)),
+                 series.getPeriods());
+    assertEquals(2.75, series.getTotal(), 0);
+  }
+
+  @Test
+  public void testYearlySeriesSumsFinerRollupsIntoTheirPeriods()
+  {
+    Map<String, Long> wattsByPeriod = new HashMap<>();
+    wattsByPeriod.put("2017-12-31", 500L);
+    wattsByPeriod.put("2018", 2000L);
+    wattsByPeriod.put("2019-01", 250L);
+    wattsByPeriod.put("2019-02-01", 250L);
+    UsageSeries series = UsagePeriods.fromRollups("consumer-1", LocalDate.of(2017, 12, 31), LocalDate.of(2019, 2, 1),
+                                                  UsageGranularity.YEAR, wattsByPeriod);
+    assertEquals(Arrays.asList(new UsagePeriod("2017", 0.5),
+                               new UsagePeriod("2018", 2),
+                               new UsagePeriod("2019", 0.5)),
+                 series.getPeriods());
+    assertEquals(3, series.getTotal(), 0);
+  }
+
+  @Test
+  public void testHourlySeries()
+  {
+    Map<String, Long> wattsByHour = new HashMap<>();
+    wattsByHour.put("2018-04-02T10", 300L);
+    UsageSeries series = UsagePeriods.fromRollups("consumer-1", TO_DATE.minusDays(1), TO_DATE, UsageGranularity.HOUR,
+                                                  wattsByHour);
+    assertEquals(48, series.getPeriods().size());
+    assertEquals(new UsagePeriod("2018-04-01T00:00", 0), series.getPeriods().get(0));
+    assertEquals(new UsagePeriod("2018-04-02T10:00", 0.3), series.getPeriods().get(34));
+    assertEquals(0.3, series.getTotal(), 0);
+  }
+
+  @Test
+  public void testPTUSeries()
+  {
+    int[] wattsByPTU = new int[2 * UsagePeriods.PTUS_PER_DAY];
+    wattsByPTU[0] = 100;
+    wattsByPTU[UsagePeriods.PTUS_PER_DAY + 21] = 300;
+    UsageSeries series = UsagePeriods.fromPTUUsage("consumer-1", TO_DATE.minusDays(1), TO_DATE, wattsByPTU);
+    assertEquals(wattsByPTU.length, series.getPeriods().size());
+    assertEquals(new UsagePeriod("2018-04-01T00:00", 0.1), series.getPeriods().get(0));
+    assertEquals(new UsagePeriod("2018-04-01T23:30", 0), series.getPeriods().get(UsagePeriods.PTUS_PER_DAY - 1));
+    assertEquals(new UsagePeriod("2018-04-02T10:30", 0.3), series.getPeriods().get(UsagePeriods.PTUS_PER_DAY + 21));
+    assertEquals(0.4, series.getTotal(), 0);
+  }
+}
@@ -0,0 +1,119 @@
+package usage.impl;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * The tests every {@link UsageRepository} must pass, run against each implementation by its subclass.
+ */
+public abstract class UsageRepositoryTest
+{
+  static final int TEST_EPOCH_DAY = (int)LocalDate.of(2018, 4, 30).toEpochDay();
+  // 2018-04-30T23
+  static final int TEST_EPOCH_HOUR = TEST_EPOCH_DAY * 24 + 23;
+  private static final int THREADS = 8;
+  private static final int UPDATES_PER_THREAD = 1000;
+  private static final int CONSUMERS = 10;
+
+  /**
+   * @return a new, empty repository
+   */
+  protected abstract UsageRepository repository() throws Exception;
+
+  @Test
+  public void testUpdatesAreRolledUp() throws Exception
+  {
+    UsageRepository repository = repository();
+    Map<Integer, Integer> consumptionByEpochHour = new HashMap<>();
+    consumptionByEpochHour.put(TEST_EPOCH_HOUR - 1, 100);
+    consumptionByEpochHour.put(TEST_EPOCH_HOUR, 20);
+    // 2018-05-01T00
+    consumptionByEpochHour.put(TEST_EPOCH_HOUR + 1, 3);
+    repository.updateUsage("consumer-1", consumptionByEpochHour).toCompletableFuture().get();
+    repository.updateUsage("consumer-1", Collections.singletonMap(TEST_EPOCH_HOUR, 5)).toCompletableFuture().get();
+    repository.updateUsage("consumer-2", Collections.singletonMap(TEST_EPOCH_HOUR, 7)).toCompletableFuture().get();
+
+    assertEquals(0.125, get(repository.getUsage("consumer-1", "2018-04-30")), 0);
+    assertEquals(0.003, get(repository.getUsage("consumer-1", "2018-05-01")), 0);
+    assertEquals(0.007, get(repository.getUsage("consumer-2", "2018-04-30")), 0);
+    assertEquals(0, get(repository.getUsage("consumer-1", "2018-04-29")), 0);
+    assertEquals(0, get(repository.getUsage("consumer-3", "2018-04-30")), 0);
+    assertEquals(0, get(repository.getUsage("consumer-1", "not-a-date")), 0);
+
+    assertEquals(usage("2018-04-30T22", 100, "2018-04-30T23", 25, "2018-05-01T00", 3),
+                 get(repository.getUsageRange("consumer-1", new UsageRollup.Read(UsageRollup.HOUR, "2018-04-30T00",
+                                                                                 "2018-05-01T23"))));
+    assertEquals(usage("2018-04-30", 125, "2018-05-01", 3),
+                 get(repository.getUsageRange("consumer-1", new UsageRollup.Read(UsageRollup.DAY, "2018-04-01",
+                                                                                 "2018-05-31"))));
+    assertEquals(usage("2018-04", 125, "2018-05", 3),
+                 get(repository.getUsageRange("consumer-1", new UsageRollup.Read(UsageRollup.MONTH, "2017-12",
+                                                                                 "2018-12"))));
+    assertEquals(usage("2018", 128),
+                 get(repository.getUsageRange("consumer-1", new UsageRollup.Read(UsageRollup.YEAR, "2017", "2019"))));
+    assertEquals(usage("2018-05-01", 3, "2018", 128),
+                 get(repository.getUsageRange("consumer-1", Arrays.asList(
+                   new UsageRollup.Read(UsageRollup.DAY, "2018-05-01", "2018-05-01"),
+                   new UsageRollup.Read(UsageRollup.YEAR, "2018", "2018")))));
+    assertEquals(new TreeMap<>(),
+                 get(repository.getUsageRange("consumer-3", new UsageRollup.Read(UsageRollup.YEAR, "2018", "2018"))));
+  }
+
+  @Test
+  public void testConcurrentUpdatesAreAllAdded() throws Exception
+  {
+    UsageRepository repository = repository();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> updates = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        updates.add(executor.submit(() -> {
+          for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+            repository.updateUsage("consumer-" + i % CONSUMERS, Collections.singletonMap(TEST_EPOCH_HOUR - i % 24, 1))
+                      .toCompletableFuture()
+                      .join();
+          }
+        }));
+      }
+      for (Future<?> update : updates) {
+        update.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (int consumer = 0; consumer < CONSUMERS; consumer++) {
+      assertEquals(usage("2018", THREADS * UPDATES_PER_THREAD / CONSUMERS),
+                   get(repository.getUsageRange("consumer-" + consumer,
+                                                new UsageRollup.Read(UsageRollup.YEAR, "2018", "2018"))));
+    }
+  }
+
+  static SortedMap<String, Long> usage(Object... periodsAndWatts)
+  {
+    SortedMap<String, Long> usage = new TreeMap<>();
+    for (int i = 0; i < periodsAndWatts.length; i += 2) {
+      usage.put((String)periodsAndWatts[i], ((Number)periodsAndWatts[i + 1]).longValue());
+    }
+    return usage;
+  }
+
+  static <T> T get(CompletionStage<T> stage) throws Exception
+  {
+    return stage.toCompletableFuture().get();
+  }
+}
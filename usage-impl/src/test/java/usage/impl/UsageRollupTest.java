@@ -0,0 +1,83 @@
+package usage.impl;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UsageRollupTest
+{
+  private static final int TEST_EPOCH_DAY = (int)LocalDate.of(2018, 4, 1).toEpochDay();
+
+  @Test
+  public void testPeriods()
+  {
+    String hour = UsageRollup.hourPeriod(TEST_EPOCH_DAY * 24 + 9);
+    assertEquals("2018-04-01T09", hour);
+    assertEquals("2018-04-01", UsageRollup.DAY.period(hour));
+    assertEquals("2018-04", UsageRollup.MONTH.period(hour));
+    assertEquals("2018", UsageRollup.YEAR.period(hour));
+    assertEquals("1969-12-31T23", UsageRollup.hourPeriod(-1));
+    assertEquals(-1, UsageRollup.epochDay(-1));
+  }
+
+  @Test
+  public void testReadsUseTheCoarsestRollupOfEachWholePeriod()
+  {
+    assertEquals(Arrays.asList(new UsageRollup.Read(UsageRollup.DAY, "2017-11-15", "2017-11-30"),
+                               new UsageRollup.Read(UsageRollup.MONTH, "2017-12", "2017-12"),
+                               new UsageRollup.Read(UsageRollup.YEAR, "2018", "2018"),
+                               new UsageRollup.Read(UsageRollup.MONTH, "2019-01", "2019-01"),
+                               new UsageRollup.Read(UsageRollup.DAY, "2019-02-01", "2019-02-10")),
+                 UsageRollup.reads(LocalDate.of(2017, 11, 15), LocalDate.of(2019, 2, 10), UsageRollup.YEAR));
+    assertEquals(Collections.singletonList(new UsageRollup.Read(UsageRollup.YEAR, "2016", "2018")),
+                 UsageRollup.reads(LocalDate.of(2016, 1, 1), LocalDate.of(2018, 12, 31), UsageRollup.YEAR));
+    assertEquals(Collections.singletonList(new UsageRollup.Read(UsageRollup.DAY, "2018-04-02", "2018-04-29")),
+                 UsageRollup.reads(LocalDate.of(2018, 4, 2), LocalDate.of(2018, 4, 29), UsageRollup.YEAR));
+    assertEquals(Arrays.asList(new UsageRollup.Read(UsageRollup.MONTH, "2018-02", "2018-03"),
+                               new UsageRollup.Read(UsageRollup.DAY, "2018-04-01", "2018-04-01")),
+                 UsageRollup.reads(LocalDate.of(2018, 2, 1), LocalDate.of(2018, 4, 1), UsageRollup.MONTH));
+    assertEquals(Collections.singletonList(new UsageRollup.Read(UsageRollup.HOUR, "2018-04-01T00", "2018-04-02T23")),
+                 UsageRollup.reads(LocalDate.of(2018, 4, 1), LocalDate.of(2018, 4, 2), UsageRollup.HOUR));
+  }
+
+  @Test
+  public void testReadsBeforeTheRollupsAreCompleteUseTheDailyUsage()
+  {
+    LocalDate rollupsFrom = LocalDate.of(2018, 4, 15);
+    assertEquals(Arrays.asList(new UsageRollup.Read(UsageRollup.DAY, "2017-11-15", "2018-04-14"),
+                               new UsageRollup.Read(UsageRollup.DAY, "2018-04-15", "2018-04-30"),
+                               new UsageRollup.Read(UsageRollup.MONTH, "2018-05", "2018-12"),
+                               new UsageRollup.Read(UsageRollup.YEAR, "2019", "2019")),
+                 UsageRollup.reads(LocalDate.of(2017, 11, 15), LocalDate.of(2019, 12, 31), UsageRollup.YEAR,
+                                   rollupsFrom));
+    assertEquals(Collections.singletonList(new UsageRollup.Read(UsageRollup.DAY, "2017-01-01", "2017-12-31")),
+                 UsageRollup.reads(LocalDate.of(2017, 1, 1), LocalDate.of(2017, 12, 31), UsageRollup.YEAR,
+                                   rollupsFrom));
+    assertEquals(UsageRollup.reads(LocalDate.of(2019, 1, 1), LocalDate.of(2019, 12, 31), UsageRollup.YEAR),
+                 UsageRollup.reads(LocalDate.of(2019, 1, 1), LocalDate.of(2019, 12, 31), UsageRollup.YEAR,
+                                   rollupsFrom));
+  }
+
+  @Test
+  public void testRepositoryRollsHoursUpToEachPeriodOnce()
+  {
+    Map<Integer, Integer> consumptionByEpochHour = new HashMap<>();
+    consumptionByEpochHour.put(TEST_EPOCH_DAY * 24 + 10, 100);
+    consumptionByEpochHour.put(TEST_EPOCH_DAY * 24 + 11, 20);
+    consumptionByEpochHour.put(TEST_EPOCH_DAY * 24 - 1, 3);
+    Map<UsageRollup, Map<String, Long>> rollups = UsageRepository.rollUp(consumptionByEpochHour);
+    assertEquals(3, rollups.get(UsageRollup.HOUR).size());
+    assertEquals(Long.valueOf(3), rollups.get(UsageRollup.HOUR).get("2018-03-31T23"));
+    assertEquals(Long.valueOf(120), rollups.get(UsageRollup.DAY).get("2018-04-01"));
+    assertEquals(Long.valueOf(3), rollups.get(UsageRollup.DAY).get("2018-03-31"));
+    assertEquals(Long.valueOf(3), rollups.get(UsageRollup.MONTH).get("2018-03"));
+    assertEquals(Long.valueOf(120), rollups.get(UsageRollup.MONTH).get("2018-04"));
+    assertEquals(Collections.singletonMap("2018", 123L), rollups.get(UsageRollup.YEAR));
+  }
+}
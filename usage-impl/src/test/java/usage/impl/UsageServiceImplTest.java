@@ -0,0 +1,96 @@
+package usage.impl;
+
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.testkit.JavaTestKit;
+import com.typesafe.config.ConfigFactory;
+import consumption.api.ConsumerEvent;
+import metrics.Metrics;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.pcollections.TreePVector;
+import usage.api.*;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the projection and the usage queries against the {@link InMemoryUsageRepository}, so without Cassandra.
+ */
+public class UsageServiceImplTest
+{
+  static ActorSystem system;
+  static Materializer materializer;
+
+  @BeforeClass
+  public static void setup()
+  {
+    system = ActorSystem.create("UsageServiceImplTest");
+    materializer = ActorMaterializer.create(system);
+  }
+
+  @AfterClass
+  public static void teardown()
+  {
+    JavaTestKit.shutdownActorSystem(system);
+    system = null;
+  }
+
+  @Test
+  public void testProjectedUsageIsQueried() throws Exception
+  {
+    InMemoryUsageRepository repository = new InMemoryUsageRepository();
+    List<ConsumerEvent> messages = Arrays.asList(
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-30T23:10", 100),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-04-30T23:40", 20),
+      new ConsumerEvent.ConsumptionRecorded("consumer-1", "2018-05-01T00:10", 3),
+      new ConsumerEvent.ConsumptionRecorded("consumer-2", "2018-05-02T10:10", 7));
+    Source.from(messages)
+          .via(ConsumptionSubscriber.usageFlow(repository::updateUsage,
+                                               new ProjectionSettings(100, Duration.ofMillis(50), 2)))
+          .runWith(Sink.ignore(), materializer)
+          .toCompletableFuture()
+          .get(10, TimeUnit.SECONDS);
+    UsageServiceImpl service = new UsageServiceImpl(null,
+                                                    repository,
+                                                    new UsageCache(repository::getUsage, 100, Duration.ofMinutes(1)),
+                                                    new Metrics(),
+                                                    ConfigFactory.parseString("usage.bulk.parallelism = 2\n" +
+                                                                              "usage.rollups.complete-from = " +
+                                                                              "\"2018-04-15\""));
+
+    assertEquals(0.12, service.queryUsage().invoke(new UsageQuery("consumer-1", "2018-04-30"))
+                              .toCompletableFuture().get(), 0);
+    UsageSeries daily = service.queryUsageRange()
+                               .invoke(new UsageRangeQuery("consumer-1", "2018-04-30", "2018-05-02", Optional.empty()))
+                               .toCompletableFuture()
+                               .get();
+    assertEquals(TreePVector.from(Arrays.asList(new UsagePeriod("2018-04-30", 0.12),
+                                                new UsagePeriod("2018-05-01", 0.003),
+                                                new UsagePeriod("2018-05-02", 0))),
+                 daily.getPeriods());
+    assertEquals(0.123, daily.getTotal(), 1e-9);
+    List<ConsumerUsage> totals = service.queryUsageBulk()
+                                        .invoke(new BulkUsageQuery(TreePVector.from(Arrays.asList("consumer-1",
+                                                                                                  "consumer-2",
+                                                                                                  "consumer-3")),
+                                                                   "2018-01-01", "2018-05-01"))
+                                        .thenCompose(usages -> usages.runWith(Sink.seq(), materializer))
+                                        .toCompletableFuture()
+                                        .get(10, TimeUnit.SECONDS);
+    assertEquals(new HashSet<>(Arrays.asList(ConsumerUsage.of("consumer-1", 0.123),
+                                             ConsumerUsage.of("consumer-2", 0),
+                                             ConsumerUsage.of("consumer-3", 0))),
+                 new HashSet<>(totals));
+  }
+}